@@ -0,0 +1,107 @@
+// BenchDocuments.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * the small, medium and large documents from PerformanceTest, so numbers line up with it
+ */
+class BenchDocuments {
+
+    static DBObject get( String size ){
+        if ( "small".equals( size ) )
+            return small();
+        if ( "medium".equals( size ) )
+            return medium();
+        if ( "large".equals( size ) )
+            return large();
+        throw new IllegalArgumentException( "unknown document size: " + size );
+    }
+
+    static DBObject small(){
+        return new BasicDBObject();
+    }
+
+    static DBObject medium(){
+        BasicDBList a = new BasicDBList();
+        a.put( "0" , "test" );
+        a.put( "1" , "benchmark" );
+        return BasicDBObjectBuilder.start()
+            .add( "integer" , 5 )
+            .add( "number" , 5.05 )
+            .add( "boolean" , false )
+            .add( "array" , a )
+            .get();
+    }
+
+    static DBObject large(){
+        BasicDBList harvest = new BasicDBList();
+        for ( int i=0; i<20; i++ ){
+            harvest.put( i*14+0 , "10gen" );
+            harvest.put( i*14+1 , "web" );
+            harvest.put( i*14+2 , "open" );
+            harvest.put( i*14+3 , "source" );
+            harvest.put( i*14+4 , "application" );
+            harvest.put( i*14+5 , "paas" );
+            harvest.put( i*14+6 , "platform-as-a-service" );
+            harvest.put( i*14+7 , "technology" );
+            harvest.put( i*14+8 , "helps" );
+            harvest.put( i*14+9 , "developers" );
+            harvest.put( i*14+10 , "focus" );
+            harvest.put( i*14+11 , "building" );
+            harvest.put( i*14+12 , "mongodb" );
+            harvest.put( i*14+13 , "mongo" );
+        }
+        return BasicDBObjectBuilder.start()
+            .add( "base_url" , "http://www.example.com/test-me" )
+            .add( "total_word_count" , 6743 )
+            .add( "access_time" , new Date( 1262304000000L ) )
+            .add( "meta_tags" , BasicDBObjectBuilder.start()
+                  .add( "description" , "i am a long description string" )
+                  .add( "author" , "Holly Man" )
+                  .add( "dynamically_created_meta_tag" , "who know\n what" )
+                  .get() )
+            .add( "page_structure" , BasicDBObjectBuilder.start()
+                  .add( "counted_tags" , 3450 )
+                  .add( "no_of_js_attached" , 10 )
+                  .add( "no_of_images" , 6 )
+                  .get() )
+            .add( "harvested_words" , harvest )
+            .get();
+    }
+
+    /**
+     * @return a heap buffer holding just the encoded document, positioned at 0
+     */
+    static ByteBuffer encode( DBObject o ){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder.putObject( o );
+            encoder.flip();
+            ByteBuffer buf = ByteBuffer.wrap( encoder.getBytes() );
+            buf.order( Bytes.ORDER );
+            return buf;
+        }
+        finally {
+            encoder.done();
+        }
+    }
+}
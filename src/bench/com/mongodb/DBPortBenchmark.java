@@ -0,0 +1,144 @@
+// DBPortBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * query round trips through a DBPort to a FakeMongod over loopback.
+ * the collection holds BATCH copies of the document and every query gets all of them, so the
+ * time includes FakeMongod matching and encoding them
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+public class DBPortBenchmark {
+
+    static final int BATCH = 10;
+
+    @State( Scope.Benchmark )
+    public static class Server {
+
+        @Param( { "small" , "medium" , "large" } )
+        public String size;
+
+        @Setup
+        public void setup()
+            throws IOException {
+            _server = new FakeMongod();
+
+            Mongo m = new Mongo( "127.0.0.1" , _server.getPort() );
+            try {
+                DBCollection c = m.getDB( "bench" ).getCollection( "fake" );
+                c.setWriteConcern( DB.WriteConcern.STRICT );
+                for ( int i=0; i<BATCH; i++ ){
+                    DBObject doc = new BasicDBObject( BenchDocuments.get( size ).toMap() );
+                    doc.put( "_id" , i );
+                    c.insert( doc );
+                }
+            }
+            finally {
+                m.close();
+            }
+        }
+
+        @TearDown
+        public void tearDown(){
+            _server.close();
+        }
+
+        FakeMongod _server;
+    }
+
+    @State( Scope.Thread )
+    public static class Client {
+
+        @Setup
+        public void setup( Server server )
+            throws IOException {
+            _port = new DBPort( new InetSocketAddress( "127.0.0.1" , server._server.getPort() ) );
+            _decoder = ByteDecoder.get( null , null );
+
+            ByteEncoder encoder = ByteEncoder.get();
+            try {
+                encoder._putInt( 0 ); // options
+                encoder._put( "bench.fake" );
+                encoder._putInt( 0 ); // skip
+                encoder._putInt( -BATCH ); // all of them in one reply, and no cursor left behind
+                encoder.putObject( new BasicDBObject() );
+                encoder.flip();
+                _query = ByteBuffer.wrap( encoder.getBytes() );
+            }
+            finally {
+                encoder.done();
+            }
+        }
+
+        @TearDown
+        public void tearDown(){
+            _port.close();
+            _decoder.done();
+        }
+
+        DBMessage call()
+            throws IOException {
+            _decoder.reset();
+            DBMessage reply = _port.call( new DBMessage( 2004 , new ByteBuffer[]{ _query } ) , _decoder );
+            _decoder.doneReading( reply.dataLen() );
+            return reply;
+        }
+
+        DBPort _port;
+        ByteDecoder _decoder;
+        ByteBuffer _query;
+    }
+
+    @Benchmark
+    public int roundTrip( Client client )
+        throws IOException {
+        return client.call().dataLen();
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public int roundTripContended( Client client )
+        throws IOException {
+        return client.call().dataLen();
+    }
+
+    @Benchmark
+    public int roundTripAndDecode( Client client )
+        throws IOException {
+        client.call();
+        ByteDecoder decoder = client._decoder;
+        DBApiLayer.QueryHeader header = new DBApiLayer.QueryHeader( decoder._buf , 0 );
+        decoder._buf.position( header.headerSize() );
+        int n = 0;
+        while ( decoder.more() && decoder.readObject() != null )
+            n++;
+        return n;
+    }
+}
@@ -0,0 +1,65 @@
+// DBPortPoolBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * get()/done() on one DBPortPool from more threads than it has ports.
+ * the ports never get opened, so no db needed.
+ * SampleTime shows how long the unlucky threads wait, run with -t to change the thread count
+ */
+@BenchmarkMode( { Mode.Throughput , Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+@Threads( 64 )
+@State( Scope.Benchmark )
+public class DBPortPoolBenchmark {
+
+    @Param( { "2" , "10" , "100" } )
+    public int connectionsPerHost;
+
+    @Setup
+    public void setup(){
+        MongoOptions options = new MongoOptions();
+        options.connectionsPerHost = connectionsPerHost;
+        // nobody should be turned away however many threads -t asks for
+        options.threadsAllowedToBlockForConnectionMultiplier = 10000;
+        _pool = new DBPortPool( new InetSocketAddress( "127.0.0.1" , DBPort.PORT ) , options );
+    }
+
+    @TearDown
+    public void tearDown(){
+        _pool.close();
+    }
+
+    @Benchmark
+    public DBPort getDone(){
+        DBPort p = _pool.get();
+        _pool.done( p );
+        return p;
+    }
+
+    DBPortPool _pool;
+}
@@ -0,0 +1,59 @@
+// JSONBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.mongodb.util.*;
+
+/**
+ * JSON.serialize and JSON.parse of PerformanceTest's documents
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class JSONBenchmark {
+
+    @Param( { "small" , "medium" , "large" } )
+    public String size;
+
+    @Setup
+    public void setup(){
+        _doc = BenchDocuments.get( size );
+        _json = JSON.serialize( _doc );
+    }
+
+    @Benchmark
+    public String serialize(){
+        return JSON.serialize( _doc );
+    }
+
+    @Benchmark
+    public Object parse(){
+        return JSON.parse( _json );
+    }
+
+    DBObject _doc;
+    String _json;
+}
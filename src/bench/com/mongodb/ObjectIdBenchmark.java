@@ -0,0 +1,78 @@
+// ObjectIdBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * generating ObjectIds, alone and from 4 threads at once, and going to and from their hex form
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class ObjectIdBenchmark {
+
+    @Setup
+    public void setup(){
+        _id = new ObjectId();
+        _hex = _id.toString();
+    }
+
+    @Benchmark
+    public ObjectId generate(){
+        return new ObjectId();
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public ObjectId generateContended(){
+        return new ObjectId();
+    }
+
+    /** per id, when a batch insert of 100 takes its ids in one block */
+    @Benchmark
+    @Threads( 4 )
+    @OperationsPerInvocation( 100 )
+    public ObjectId[] generateBlockContended(){
+        return ObjectId.generate( 100 );
+    }
+
+    @Benchmark
+    public ObjectId parse(){
+        return new ObjectId( _hex );
+    }
+
+    @Benchmark
+    public String format(){
+        return _id.toString();
+    }
+
+    @Benchmark
+    public boolean isValid(){
+        return ObjectId.isValid( _hex );
+    }
+
+    ObjectId _id;
+    String _hex;
+}
@@ -0,0 +1,67 @@
+// RawDBObjectBenchmark.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * field lookups on the large document.
+ * shared* all hit one instance from every thread, fresh* build a new one per call like DBTCPConnector._getError
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5 , time = 1 )
+@Measurement( iterations = 5 , time = 1 )
+@Fork( 1 )
+@Threads( 4 )
+@State( Scope.Benchmark )
+public class RawDBObjectBenchmark {
+
+    @Setup
+    public void setup(){
+        _buf = BenchDocuments.encode( BenchDocuments.large() );
+        _shared = new RawDBObject( _buf );
+    }
+
+    @Benchmark
+    public Object sharedFirst(){
+        return _shared.get( "base_url" );
+    }
+
+    @Benchmark
+    public Object sharedDate(){
+        return _shared.get( "access_time" );
+    }
+
+    @Benchmark
+    public Object sharedMissing(){
+        return _shared.get( "not_there" );
+    }
+
+    @Benchmark
+    public Object freshMissing(){
+        return new RawDBObject( _buf ).get( "$err" );
+    }
+
+    ByteBuffer _buf;
+    RawDBObject _shared;
+}
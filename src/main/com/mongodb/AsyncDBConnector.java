@@ -0,0 +1,610 @@
+// AsyncDBConnector.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Non-blocking connector behind the *Async methods on DBCollection.
+ * One selector thread owns a non-blocking socket per host.  Callers queue messages
+ * and get a Future back, replies are matched up by responseTo, so any number of
+ * operations can be in flight without a thread waiting on each one.
+ * <p>
+ * MongoOptions.connectTimeout and socketTimeout are enforced by the selector thread:
+ * a connect that takes too long fails everything queued on that host, and a reply that doesn't
+ * show up in time fails just its own future.  Either way with a <code>MongoException.Network</code>.
+ */
+class AsyncDBConnector {
+
+    static Logger _logger = Logger.getLogger( Bytes.LOGGER.getName() + ".async" );
+
+    AsyncDBConnector( DBTCPConnector connector )
+        throws IOException {
+        _connector = connector;
+        _connectTimeout = connector._mongo._options.connectTimeout;
+        _socketTimeout = connector._mongo._options.socketTimeout;
+        _selector = Selector.open();
+
+        _thread = new Thread( "MongoAsyncConnector" ){
+                public void run(){
+                    _loop();
+                }
+            };
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    /**
+     * sends a message that the db will answer
+     * @return future for the reply
+     */
+    Response call( int op , ByteBuffer body ){
+        return _send( Collections.singletonList( new DBMessage( op , body ) ) , true );
+    }
+
+    /**
+     * sends messages that the db won't answer, in order, on the same socket
+     * @param getLastError if true, a getlasterror query is sent right behind them and the future is for its reply.
+     *                     otherwise the future finishes with null once everything has been written
+     */
+    Response say( int op , List<ByteBuffer> bodies , boolean getLastError ){
+        List<DBMessage> msgs = new ArrayList<DBMessage>( bodies.size() + 1 );
+        for ( ByteBuffer b : bodies )
+            msgs.add( new DBMessage( op , b ) );
+        if ( getLastError )
+            msgs.add( new DBMessage( 2004 , _lastErrorQuery.duplicate() ) );
+        return _send( msgs , getLastError );
+    }
+
+    /**
+     * Fails everything still in flight, closes the sockets and stops the selector thread.
+     * Anything sent after this fails right away.
+     */
+    void close(){
+        _closed = true;
+        _failAll();
+        _selector.wakeup();
+    }
+
+    private void _failAll(){
+        for ( Conn c : _conns.values() )
+            c._fail( new IOException( "async connector closed" ) );
+    }
+
+    private Response _send( List<DBMessage> msgs , boolean expectReply ){
+        final Response r = new Response();
+        final DBMessage last = msgs.get( msgs.size() - 1 );
+
+        if ( _closed ){
+            r._fail( new IOException( "async connector closed" ) );
+            return r;
+        }
+
+        final Conn c;
+        try {
+            c = _conn( _connector.getAddress().getSocketAddress() );
+        }
+        catch ( IOException ioe ){
+            r._fail( ioe );
+            return r;
+        }
+
+        synchronized ( c ){
+            if ( c._closed ){
+                r._fail( new IOException( "connection to " + c._addr + " closed" ) );
+                return r;
+            }
+
+            final long deadline = _socketTimeout > 0 ? System.currentTimeMillis() + _socketTimeout : 0;
+            if ( expectReply ){
+                r._deadline = deadline;
+                c._pending.put( last._id , r );
+            }
+            for ( DBMessage m : msgs )
+                c._out.add( new Out( m , ( m == last && ! expectReply ) ? r : null , deadline ) );
+        }
+
+        _dirty.add( c );
+        _selector.wakeup();
+        return r;
+    }
+
+    private Conn _conn( InetSocketAddress addr )
+        throws IOException {
+        Conn c = _conns.get( addr );
+        if ( c != null )
+            return c;
+
+        synchronized ( _conns ){
+            c = _conns.get( addr );
+            if ( c != null )
+                return c;
+            c = new Conn( addr );
+            _conns.put( addr , c );
+        }
+        return c;
+    }
+
+    private void _loop(){
+        while ( ! _closed ){
+            try {
+                final long next = _nextDeadline();
+                if ( next == 0 )
+                    _selector.select();
+                else
+                    _selector.select( Math.max( 1 , next - System.currentTimeMillis() ) );
+
+                Conn c;
+                while ( ( c = _dirty.poll() ) != null ){
+                    try {
+                        c._register();
+                    }
+                    catch ( IOException ioe ){
+                        c._fail( ioe );
+                    }
+                }
+
+                Iterator<SelectionKey> i = _selector.selectedKeys().iterator();
+                while ( i.hasNext() ){
+                    SelectionKey k = i.next();
+                    i.remove();
+
+                    Conn conn = (Conn)k.attachment();
+                    try {
+                        if ( k.isValid() && k.isConnectable() )
+                            conn._finishConnect();
+                        if ( k.isValid() && k.isReadable() )
+                            conn._read();
+                        if ( k.isValid() && k.isWritable() )
+                            conn._write();
+                    }
+                    catch ( IOException ioe ){
+                        conn._fail( ioe );
+                    }
+                    catch ( CancelledKeyException cke ){
+                        // connection got failed by someone else
+                    }
+                }
+
+                if ( next != 0 )
+                    _expire( System.currentTimeMillis() );
+            }
+            catch ( Throwable t ){
+                _logger.log( Level.SEVERE , "error in async connector loop" , t );
+            }
+        }
+
+        // anything that got in while close() was running
+        _failAll();
+        try {
+            _selector.close();
+        }
+        catch ( IOException ioe ){
+            // don't care
+        }
+    }
+
+    /**
+     * @return the soonest connect or request deadline of any connection, 0 if there's none
+     */
+    private long _nextDeadline(){
+        long next = 0;
+        for ( Conn c : _conns.values() ){
+            final long d = c._nextDeadline();
+            if ( d != 0 && ( next == 0 || d < next ) )
+                next = d;
+        }
+        return next;
+    }
+
+    private void _expire( long now ){
+        for ( Conn c : _conns.values() )
+            c._expire( now );
+    }
+
+    /**
+     * copies what's in a flipped encoder so it can be returned to the pool before the write happens
+     */
+    static ByteBuffer copy( ByteEncoder encoder ){
+        ByteBuffer b = ByteBuffer.wrap( encoder.getBytes() );
+        b.order( Bytes.ORDER );
+        return b;
+    }
+
+    class Conn {
+
+        Conn( InetSocketAddress addr )
+            throws IOException {
+            _addr = addr;
+            _channel = SocketChannel.open();
+            _channel.configureBlocking( false );
+            _channel.socket().setTcpNoDelay( ! DBPort.USE_NAGLE );
+            _connected = _channel.connect( addr );
+            _connectBy = _connected || _connectTimeout <= 0 ? 0 : System.currentTimeMillis() + _connectTimeout;
+            _header.order( Bytes.ORDER );
+        }
+
+        // ---- everything below here only runs on the selector thread ----
+
+        void _register()
+            throws IOException {
+            if ( _closed )
+                return;
+
+            if ( _key == null )
+                _key = _channel.register( _selector , _connected ? _interest() : SelectionKey.OP_CONNECT , this );
+            else if ( _connected )
+                _key.interestOps( _interest() );
+        }
+
+        int _interest(){
+            synchronized ( this ){
+                return SelectionKey.OP_READ | ( _out.isEmpty() ? 0 : SelectionKey.OP_WRITE );
+            }
+        }
+
+        void _finishConnect()
+            throws IOException {
+            if ( ! _channel.finishConnect() )
+                return;
+            _connected = true;
+            _connectBy = 0;
+            _key.interestOps( _interest() );
+        }
+
+        /**
+         * requests go in in deadline order, so only the oldest pending reply and queued write need looking at
+         */
+        long _nextDeadline(){
+            synchronized ( this ){
+                if ( _closed )
+                    return 0;
+                long next = _connectBy;
+                if ( ! _pending.isEmpty() )
+                    next = _min( next , _pending.values().iterator().next()._deadline );
+                if ( ! _out.isEmpty() )
+                    next = _min( next , _out.peek()._deadline );
+                return next;
+            }
+        }
+
+        /**
+         * a slow connect, or a write the server isn't taking, fails the whole connection.
+         * a late reply fails only the requests it was for, the reply is dropped if it shows up after all
+         */
+        void _expire( long now ){
+            if ( _connectBy != 0 && _connectBy <= now ){
+                _fail( new SocketTimeoutException( "connect to " + _addr + " timed out after " + _connectTimeout + "ms" ) , true );
+                return;
+            }
+
+            List<Response> late = null;
+            synchronized ( this ){
+                final Out o = _out.peek();
+                if ( o != null && o._deadline != 0 && o._deadline <= now ){
+                    // fall through to failing everything, outside the lock
+                }
+                else {
+                    for ( Iterator<Response> i = _pending.values().iterator(); i.hasNext(); ){
+                        final Response r = i.next();
+                        if ( r._deadline == 0 || r._deadline > now )
+                            break;
+                        i.remove();
+                        if ( late == null )
+                            late = new ArrayList<Response>();
+                        late.add( r );
+                    }
+                    if ( late == null )
+                        return;
+                }
+            }
+
+            if ( late == null ){
+                _fail( new SocketTimeoutException( "write to " + _addr + " timed out after " + _socketTimeout + "ms" ) , true );
+                return;
+            }
+
+            final IOException ioe = new SocketTimeoutException( "no reply from " + _addr + " after " + _socketTimeout + "ms" );
+            for ( Response r : late )
+                r._fail( new MongoException.Network( ioe.getMessage() , ioe ) );
+        }
+
+        void _write()
+            throws IOException {
+            while ( true ){
+                Out o;
+                synchronized ( this ){
+                    o = _out.peek();
+                }
+                if ( o == null )
+                    break;
+
+                _channel.write( o._bufs );
+                if ( o.remaining() )
+                    break; // socket buffer is full, wait to be writable again
+
+                synchronized ( this ){
+                    _out.poll();
+                }
+                if ( o._whenWritten != null )
+                    o._whenWritten._done( null );
+            }
+            _key.interestOps( _interest() );
+        }
+
+        void _read()
+            throws IOException {
+            while ( true ){
+                final ByteBuffer target = _body == null ? _header : _body;
+                if ( _channel.read( target ) < 0 )
+                    throw new EOFException( "connection closed by server" );
+                if ( target.remaining() > 0 )
+                    return;
+
+                if ( _body == null ){
+                    _header.flip();
+                    final int len = _header.getInt( 0 );
+                    if ( len <= DBMessage.HEADER_LENGTH )
+                        throw new IOException( "db sent invalid length : " + len );
+                    _body = ByteBuffer.allocate( len - DBMessage.HEADER_LENGTH );
+                    _body.order( Bytes.ORDER );
+                    continue;
+                }
+
+                _body.flip();
+                DBMessage reply = new DBMessage( _header , _body );
+                Response r;
+                synchronized ( this ){
+                    r = _pending.remove( reply._responseTo );
+                }
+                if ( r != null )
+                    r._done( reply );
+
+                _header.clear();
+                _body = null;
+            }
+        }
+
+        /**
+         * can be called from any thread
+         */
+        void _fail( IOException ioe ){
+            _fail( ioe , false );
+        }
+
+        /**
+         * @param timedOut if true callers get a <code>MongoException.Network</code> rather than the IOException itself
+         */
+        void _fail( IOException ioe , boolean timedOut ){
+            List<Response> toFail = new ArrayList<Response>();
+            synchronized ( this ){
+                if ( _closed )
+                    return;
+                _closed = true;
+
+                toFail.addAll( _pending.values() );
+                _pending.clear();
+                for ( Out o : _out )
+                    if ( o._whenWritten != null )
+                        toFail.add( o._whenWritten );
+                _out.clear();
+            }
+
+            _logger.log( Level.INFO , "async connection to " + _addr + " failed" , ioe );
+            _conns.remove( _addr , this );
+
+            if ( _key != null )
+                _key.cancel();
+            try {
+                _channel.close();
+            }
+            catch ( IOException e ){
+                // don't care
+            }
+
+            final Throwable t = timedOut ? new MongoException.Network( ioe.getMessage() , ioe ) : ioe;
+            for ( Response r : toFail )
+                r._fail( t );
+        }
+
+        final InetSocketAddress _addr;
+        final SocketChannel _channel;
+
+        final LinkedList<Out> _out = new LinkedList<Out>();
+        /** in the order they were sent, so also in deadline order */
+        final Map<Integer,Response> _pending = new LinkedHashMap<Integer,Response>();
+        boolean _closed = false;
+
+        private SelectionKey _key;
+        private boolean _connected;
+        /** 0 once connected, or if there's no connect timeout */
+        private long _connectBy;
+        private final ByteBuffer _header = ByteBuffer.allocate( DBMessage.HEADER_LENGTH );
+        private ByteBuffer _body;
+    }
+
+    static class Out {
+        Out( DBMessage msg , Response whenWritten , long deadline ){
+            _bufs = msg.toSend();
+            _whenWritten = whenWritten;
+            _deadline = deadline;
+        }
+
+        boolean remaining(){
+            for ( ByteBuffer b : _bufs )
+                if ( b.remaining() > 0 )
+                    return true;
+            return false;
+        }
+
+        final ByteBuffer[] _bufs;
+        final Response _whenWritten;
+        /** when it has to be written by, 0 for never */
+        final long _deadline;
+    }
+
+    /**
+     * raw reply from the db.  never run, just set when the reply (or failure) shows up
+     */
+    static class Response extends FutureTask<DBMessage> {
+        Response(){
+            super( NOTHING );
+        }
+
+        void _done( DBMessage m ){
+            set( m );
+        }
+
+        void _fail( Throwable t ){
+            setException( t );
+        }
+
+        /** when the reply has to be in by, 0 for never.  set before it's visible to the selector thread */
+        long _deadline;
+    }
+
+    /**
+     * what the *Async methods hand back.  turns the raw reply into something useful
+     * on the caller's thread, so the selector thread never decodes anything
+     */
+    static abstract class Reply<T> implements Future<T> {
+
+        Reply( Response r , boolean ignoreErrors ){
+            _response = r;
+            _ignoreErrors = ignoreErrors;
+        }
+
+        abstract T convert( DBMessage m );
+
+        public boolean cancel( boolean mayInterruptIfRunning ){
+            return _response.cancel( mayInterruptIfRunning );
+        }
+
+        public boolean isCancelled(){
+            return _response.isCancelled();
+        }
+
+        public boolean isDone(){
+            return _response.isDone();
+        }
+
+        public T get()
+            throws InterruptedException , ExecutionException {
+            try {
+                return _finish( _response.get() );
+            }
+            catch ( ExecutionException ee ){
+                if ( _ignoreErrors )
+                    return null;
+                throw ee;
+            }
+        }
+
+        public T get( long timeout , TimeUnit unit )
+            throws InterruptedException , ExecutionException , TimeoutException {
+            try {
+                return _finish( _response.get( timeout , unit ) );
+            }
+            catch ( ExecutionException ee ){
+                if ( _ignoreErrors )
+                    return null;
+                throw ee;
+            }
+        }
+
+        private synchronized T _finish( DBMessage m )
+            throws ExecutionException {
+            if ( ! _converted ){
+                try {
+                    _value = convert( m );
+                }
+                catch ( RuntimeException e ){
+                    _error = e;
+                }
+                _converted = true;
+            }
+
+            if ( _error != null )
+                throw new Failed( _error );
+            return _value;
+        }
+
+        final Response _response;
+        final boolean _ignoreErrors;
+
+        private boolean _converted = false;
+        private T _value;
+        private RuntimeException _error;
+    }
+
+    static class Failed extends ExecutionException {
+        Failed( Throwable t ){
+            super( t.toString() , t );
+        }
+    }
+
+    private static long _min( long a , long b ){
+        if ( a == 0 )
+            return b;
+        if ( b == 0 )
+            return a;
+        return Math.min( a , b );
+    }
+
+    private static ByteBuffer _buildLastErrorQuery(){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder._putInt( 0 ); // options
+            encoder._put( "admin.$cmd" );
+            encoder._putInt( 0 ); // skip
+            encoder._putInt( -1 ); // num to return
+            encoder.putObject( new BasicDBObject( "getlasterror" , 1 ) );
+            encoder.flip();
+            return copy( encoder ).asReadOnlyBuffer();
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    final DBTCPConnector _connector;
+    final Selector _selector;
+    final Thread _thread;
+
+    final int _connectTimeout;
+    final int _socketTimeout;
+
+    final ConcurrentMap<InetSocketAddress,Conn> _conns = new ConcurrentHashMap<InetSocketAddress,Conn>();
+    final Queue<Conn> _dirty = new ConcurrentLinkedQueue<Conn>();
+    private volatile boolean _closed = false;
+
+    static final ByteBuffer _lastErrorQuery = _buildLastErrorQuery();
+
+    private static final Callable<DBMessage> NOTHING = new Callable<DBMessage>(){
+        public DBMessage call(){
+            return null;
+        }
+    };
+}
@@ -38,6 +38,13 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
     public BasicDBObject(){
     }
 
+    /**
+     * room for size fields before the map grows
+     */
+    BasicDBObject( int size ){
+        super( size );
+    }
+
     /**
      * Convenience CTOR
      * @param key  key under which to store
@@ -106,7 +113,7 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
      * @return the field value (or default)
      */
     public int getInt( String key ){
-        return ((Number)get( key )).intValue();
+        return _int( this , key );
     }
 
     /** Returns the value of a field as an <code>int</code>.
@@ -115,10 +122,7 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
      * @return the field value (or default)
      */
     public int getInt( String key , int def ){
-        Object foo = get( key );
-        if ( foo == null )
-            return def;
-        return ((Number)foo).intValue();
+        return _int( this , key , def );
     }
 
     /**
@@ -128,8 +132,7 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
      * @return the field value 
      */
     public long getLong( String key){
-        Object foo = get( key );
-        return ((Number)foo).longValue();
+        return _long( this , key );
     }
 
 
@@ -138,7 +141,28 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
      * @return the value of the field, converted to a string
      */
     public String getString( String key ){
-        Object foo = get( key );
+        return _string( this , key );
+    }
+
+    // ---- the typed getters for any DBObject, so the driver doesn't have to cast what it decodes
+
+    static int _int( DBObject o , String key ){
+        return ((Number)o.get( key )).intValue();
+    }
+
+    static int _int( DBObject o , String key , int def ){
+        Object foo = o.get( key );
+        if ( foo == null )
+            return def;
+        return ((Number)foo).intValue();
+    }
+
+    static long _long( DBObject o , String key ){
+        return ((Number)o.get( key )).longValue();
+    }
+
+    static String _string( DBObject o , String key ){
+        Object foo = o.get( key );
         if ( foo == null )
             return null;
         return foo.toString();
@@ -190,15 +214,22 @@ public class BasicDBObject extends LinkedHashMap<String,Object> implements DBObj
     }
 
     public boolean equals( Object o ){
+        return _equals( this , o );
+    }
+
+    /**
+     * same fields, with numbers compared by value.  for other DBObjects that want to equal a BasicDBObject
+     */
+    static boolean _equals( DBObject me , Object o ){
         if ( ! ( o instanceof DBObject ) )
             return false;
         
         DBObject other = (DBObject)o;
-        if ( ! keySet().equals( other.keySet() ) )
+        if ( ! me.keySet().equals( other.keySet() ) )
             return false;
 
-        for ( String key : keySet() ){
-            Object a = get( key );
+        for ( String key : me.keySet() ){
+            Object a = me.get( key );
             Object b = other.get( key );
 
             if ( a instanceof Number && b instanceof Number ){
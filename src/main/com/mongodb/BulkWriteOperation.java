@@ -0,0 +1,239 @@
+// BulkWriteOperation.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.*;
+
+import com.mongodb.util.*;
+
+/**
+ * A list of inserts, updates and removes on one collection that are sent together.
+ * Get one from DBCollection.initializeOrderedBulkOperation() or initializeUnorderedBulkOperation().
+ * <p>
+ * Every document is encoded once, when it's added.  execute() packs runs of inserts into as few
+ * messages as the size and count limits allow, sends everything on one connection without waiting
+ * in between, and with WriteConcern.STRICT asks for getlasterror once per batch rather than once per write.
+ * <p>
+ * getlasterror only knows about the last write on the connection.  So every message is a batch of its own:
+ * one update, one remove, or one message of inserts.  An ordered operation stops at the first one with an error.
+ * An unordered one inserts with continue on error, sends every message with its getlasterror before reading
+ * any of the replies, and throws the first error at the end.
+ */
+public class BulkWriteOperation {
+
+    /** most documents in one insert message */
+    static final int MAX_INSERTS_PER_MESSAGE = 1000;
+    /** biggest message body, same as what one encoder will hold */
+    static final int MAX_MESSAGE_SIZE = ByteEncoder.MAX_SIZE;
+
+    BulkWriteOperation( DBCollection collection , boolean ordered ){
+        _collection = collection;
+        _ordered = ordered;
+    }
+
+    /**
+     * Adds an insert.  The document gets its _id now if it doesn't have one.
+     * @return this
+     */
+    public BulkWriteOperation insert( DBObject o ){
+        _collection.apply( o );
+        Object id = o.get( "_id" );
+        if ( id instanceof ObjectId )
+            ((ObjectId)id)._new = false;
+
+        _writes.add( new Write( 2002 , 0 , _encode( o ) , null ) );
+        return this;
+    }
+
+    /**
+     * Adds an update.
+     * @return this
+     */
+    public BulkWriteOperation update( DBObject q , DBObject o , boolean upsert , boolean multi ){
+        int flags = 0;
+        if ( upsert ) flags |= 1;
+        if ( multi ) flags |= 2;
+        _writes.add( new Write( 2001 , flags , _encode( q ) , _encode( o ) ) );
+        return this;
+    }
+
+    /**
+     * Adds a remove of everything matching q.
+     * @return this
+     */
+    public BulkWriteOperation remove( DBObject q ){
+        Collection<String> keys = q.keySet();
+        int flags = 0;
+        if ( keys.size() == 1 &&
+             keys.iterator().next().equals( "_id" ) &&
+             q.get( "_id" ) instanceof ObjectId )
+            flags = 1;
+        _writes.add( new Write( 2006 , flags , _encode( q ) , null ) );
+        return this;
+    }
+
+    /**
+     * @return how many writes have been added
+     */
+    public int size(){
+        return _writes.size();
+    }
+
+    public boolean isOrdered(){
+        return _ordered;
+    }
+
+    /**
+     * Sends everything that's been added, using the collection's write concern.
+     * Can only be done once.
+     * @return how many messages were sent, not counting getlasterror
+     * @throws MongoException the first error getlasterror found, with WriteConcern.STRICT
+     */
+    public int execute()
+        throws MongoException {
+        if ( _executed )
+            throw new IllegalStateException( "already executed" );
+        _executed = true;
+
+        if ( _writes.size() == 0 )
+            return 0;
+
+        DB db = _collection.getDB();
+        if ( ! ( db instanceof DBApiLayer ) )
+            throw new UnsupportedOperationException( "bulk writes need a DBApiLayer" );
+
+        List<List<DBMessage>> batches = _batches();
+        ((DBApiLayer)db).doBulk( batches , _collection.getWriteConcern() , _ordered );
+
+        int n = 0;
+        for ( List<DBMessage> b : batches )
+            n += b.size();
+        return n;
+    }
+
+    /**
+     * splits the writes into messages, each in a batch of its own that gets one getlasterror
+     */
+    List<List<DBMessage>> _batches(){
+        final String ns = _collection.getFullName();
+        final ByteBuffer insertHeader = _header( ns , _ordered ? 0 : 1 , null );
+
+        List<List<DBMessage>> batches = new ArrayList<List<DBMessage>>();
+
+        int i = 0;
+        while ( i < _writes.size() ){
+            Write w = _writes.get( i );
+
+            DBMessage m;
+            if ( w._op == 2002 ){
+                List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+                parts.add( insertHeader.duplicate() );
+                int size = insertHeader.limit();
+                int count = 0;
+
+                while ( i < _writes.size() && count < MAX_INSERTS_PER_MESSAGE ){
+                    Write next = _writes.get( i );
+                    if ( next._op != 2002 )
+                        break;
+                    if ( count > 0 && size + next._a.limit() > MAX_MESSAGE_SIZE )
+                        break;
+                    parts.add( next._a.duplicate() );
+                    size += next._a.limit();
+                    count++;
+                    i++;
+                }
+                m = new DBMessage( 2002 , parts.toArray( new ByteBuffer[ parts.size() ] ) );
+            }
+            else {
+                ByteBuffer h = _header( ns , 0 , w._flags );
+                if ( w._b == null )
+                    m = new DBMessage( w._op , new ByteBuffer[]{ h , w._a.duplicate() } );
+                else
+                    m = new DBMessage( w._op , new ByteBuffer[]{ h , w._a.duplicate() , w._b.duplicate() } );
+                i++;
+            }
+
+            List<DBMessage> batch = new ArrayList<DBMessage>( 1 );
+            batch.add( m );
+            batches.add( batch );
+        }
+
+        return batches;
+    }
+
+    /**
+     * the part of an insert, update or remove before the documents.
+     * the first int is reserved for updates and removes, and holds the flags for an insert
+     */
+    static ByteBuffer _header( String ns , int first , Integer flags ){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder._putInt( first );
+            encoder._put( ns );
+            if ( flags != null )
+                encoder._putInt( flags );
+            return _wrap( encoder.getBytes() );
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    static ByteBuffer _encode( DBObject o ){
+        if ( DBApiLayer.SHOW ) System.out.println( "bulk: " + JSON.serialize( o ) );
+
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder.putObject( o );
+            return _wrap( encoder.getBytes() );
+        }
+        catch ( BufferOverflowException boe ){
+            throw new IllegalArgumentException( "object too big for one message" );
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    static ByteBuffer _wrap( byte[] b ){
+        ByteBuffer buf = ByteBuffer.wrap( b );
+        buf.order( Bytes.ORDER );
+        return buf;
+    }
+
+    static class Write {
+        Write( int op , int flags , ByteBuffer a , ByteBuffer b ){
+            _op = op;
+            _flags = flags;
+            _a = a;
+            _b = b;
+        }
+
+        final int _op;
+        final int _flags;
+        final ByteBuffer _a;
+        final ByteBuffer _b;
+    }
+
+    final DBCollection _collection;
+    final boolean _ordered;
+    final List<Write> _writes = new ArrayList<Write>();
+    private boolean _executed = false;
+}
@@ -19,6 +19,7 @@
 package com.mongodb;
 
 import com.mongodb.util.SimplePool;
+import com.mongodb.util.ThreadAffinePool;
 
 import java.util.Date;
 import java.util.regex.Pattern;
@@ -44,12 +45,17 @@ public class ByteDecoder extends Bytes {
     }
 
     /** Returns this decoder to the pool.
+     * A buffer grown past the slab is dropped, so a pooled decoder only ever holds its slab.
+     * One made around someone else's buffer was never in the pool and isn't put there.
      */
     protected void done(){
+        if ( ! _private )
+            return;
+        _buf = _slab;
         _pool.done( this );
     }
 
-    final static SimplePool<ByteDecoder> _pool = new SimplePool<ByteDecoder>( "ByteDecoders" , NUM_ENCODERS * 3 , NUM_ENCODERS * 6 ){
+    final static SimplePool<ByteDecoder> _pool = new ThreadAffinePool<ByteDecoder>( "ByteDecoders" , NUM_ENCODERS * 3 , NUM_ENCODERS * 6 ){
 
         protected ByteDecoder createNew(){
 	    if ( D ) System.out.println( "creating new ByteDecoder" );
@@ -57,19 +63,74 @@ public class ByteDecoder extends Bytes {
         }
     };
 
+    /**
+     * direct buffer each pooled decoder starts with.  most replies fit
+     */
+    static final int SLAB_SIZE = 1024 * 64;
+
     // ---
     
     public ByteDecoder( ByteBuffer buf ){
         reset( buf );
+        _slab = null;
         _private = false;
     }
 
     private ByteDecoder(){
-        _buf = ByteBuffer.allocateDirect( 1024 + ( MAX_OBJECT_SIZE * 2 ) );
+        _slab = ByteBuffer.allocateDirect( SLAB_SIZE );
+        _buf = _slab;
         _private = true;
         reset();
     }
 
+    /**
+     * Makes sure a reply body of len bytes fits, growing to the next power of two past the slab if it doesn't.
+     * @return the buffer to read the body into, positioned at 0 with its limit at len
+     */
+    ByteBuffer ensureCapacity( int len ){
+        if ( _buf.capacity() < len ){
+            if ( ! _private )
+                throw new IllegalStateException( "can't grow a ByteDecoder that doesn't own its buffer" );
+
+            int size = SLAB_SIZE;
+            while ( size < len && size > 0 )
+                size <<= 1;
+            if ( size <= 0 )
+                size = len;
+
+            _buf = ByteBuffer.allocate( size );
+            _buf.order( Bytes.ORDER );
+        }
+
+        _buf.clear();
+        _buf.limit( len );
+        return _buf;
+    }
+
+    /**
+     * Hands over what was read for things that outlive this decoder, like lazy documents.
+     * A grown buffer is given away and the decoder goes back to its slab.  The slab gets copied.
+     * @return heap buffer with the same position and limit as this decoder's
+     */
+    ByteBuffer detach(){
+        final ByteBuffer b = _buf;
+        if ( ! _private )
+            return b;
+
+        if ( b != _slab ){
+            _buf = _slab;
+            return b;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate( b.limit() );
+        copy.order( Bytes.ORDER );
+        ByteBuffer all = b.duplicate();
+        all.position( 0 );
+        copy.put( all );
+        copy.position( b.position() );
+        return copy;
+    }
+
     /** Returns this decoder to its starting state with a new <code>ByteBuffer</code> to decode.
      * @param buf new <code>ByteBuffer</code>
      */
@@ -103,7 +164,14 @@ public class ByteDecoder extends Bytes {
         while ( decodeNext( created , "" ) > 1 ) {
             // intentionally empty
         }
+        _seal( created );
+        if ( created instanceof CompactDBObject )
+            _lastSize = ((CompactDBObject)created)._decoded();
         
+        NAMES.record( _nameHits , _nameMisses );
+        _nameHits = 0;
+        _nameMisses = 0;
+
         if ( _buf.position() - start != len )
             throw new MongoInternalException( "lengths don't match " + (_buf.position() - start) + " != " + len );
         
@@ -124,20 +192,21 @@ public class ByteDecoder extends Bytes {
             
         }
         
-        if ( c != null ){
-            try {
-                return (DBObject)c.newInstance();
-            }
-            catch ( InstantiationException ie ){
-                LOGGER.log( Level.FINE , "can't create a: " + c , ie );
-                throw new MongoInternalException( "can't instantiate a : " + c , ie );
-            }
-            catch ( IllegalAccessException iae ){
-                LOGGER.log( Level.FINE , "can't create a: " + c , iae );
-                throw new MongoInternalException( "can't instantiate a : " + c , iae );
-            }
-        }
-        return new BasicDBObject();
+        if ( c != null )
+            return _collection.newInstance( c );
+        if ( _base != null && _base.basicDBObjects() )
+            return new BasicDBObject();
+        return new CompactDBObject( path.length() == 0 ? _lastSize : 8 );
+    }
+
+    /**
+     * finishes a CompactDBObject, sharing its names with an earlier document of the same shape
+     */
+    private void _seal( DBObject o ){
+        if ( ! ( o instanceof CompactDBObject ) )
+            return;
+        CompactDBObject c = (CompactDBObject)o;
+        c._seal( _shapes );
     }
 
     /** Decodes the serialized object into the given <code>DBObject</code>.
@@ -151,7 +220,7 @@ public class ByteDecoder extends Bytes {
         if ( type == EOO )
             return 1;
         
-        String name = readCStr();
+        String name = readName();
         
         if ( path.length() == 0 ) 
             path = name;
@@ -252,6 +321,7 @@ public class ByteDecoder extends Bytes {
             while (decodeNext( (DBObject)created , path ) > 1 ) {
                 // intentionally empty
             }
+            _seal( (DBObject)created );
             
             DBObject theObject = (DBObject)created;
             if ( theObject.containsKey( "$ref" ) && 
@@ -280,7 +350,10 @@ public class ByteDecoder extends Bytes {
             throw new UnsupportedOperationException( "ByteDecoder can't handle type : " + type );
         }
         
-        o.put( name , Bytes.applyDecodingHooks( type , created ) );
+        if ( o instanceof CompactDBObject )
+            ((CompactDBObject)o)._add( name , Bytes.applyDecodingHooks( type , created ) );
+        else
+            o.put( name , Bytes.applyDecodingHooks( type , created ) );
 
         return _buf.position() - start;
     }
@@ -321,6 +394,44 @@ public class ByteDecoder extends Bytes {
         }
     }
 
+    /**
+     * like readCStr, but gets names it's seen before from the shared cache
+     */
+    private String readName(){
+        int pos = 0;
+        int hash = 0;
+        while ( true ){
+            byte b = _buf.get();
+            if ( b == 0 )
+                break;
+            _namebuf[pos++] = b;
+            hash = FieldNameCache.hash( hash , b );
+        }
+
+        String name = NAMES.get( _namebuf , pos , hash );
+        if ( name != null ){
+            _nameHits++;
+            return name;
+        }
+
+        try {
+            name = new String( _namebuf , 0 , pos , "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException use ){
+            throw new MongoInternalException( "impossible" );
+        }
+        NAMES.put( _namebuf , pos , hash , name );
+        _nameMisses++;
+        return name;
+    }
+
+    /**
+     * @return the cache every decoder shares for field names, with its hit and miss counts
+     */
+    public static FieldNameCache getFieldNameCache(){
+        return NAMES;
+    }
+
     int getInt(){
         return _buf.getInt();
     }
@@ -343,8 +454,17 @@ public class ByteDecoder extends Bytes {
     }
 
     private final byte _namebuf[] = new byte[ MAX_STRING ];
+    private int _nameHits = 0;
+    /** names of recently decoded documents, by hash of the names */
+    private final CompactDBObject.Shape[] _shapes = new CompactDBObject.Shape[ 64 ];
+    /** how many fields the last top level document had, a guess at the next one */
+    private int _lastSize = 8;
+    private int _nameMisses = 0;
+
+    static final FieldNameCache NAMES = new FieldNameCache( 1024 , 64 );
 
     ByteBuffer _buf;
+    private final ByteBuffer _slab;
     private final boolean _private;
 
     DB _base;
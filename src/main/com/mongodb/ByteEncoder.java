@@ -19,9 +19,12 @@
 package com.mongodb;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 
 import com.mongodb.util.*;
@@ -98,7 +101,7 @@ public class ByteEncoder extends Bytes {
      */
     public long getPosition()
     {
-    	return _buf.position();
+    	return _pos();
     }
     
     /**
@@ -108,7 +111,7 @@ public class ByteEncoder extends Bytes {
      */
     public long getRemaining()
     {
-    	return _buf.remaining();
+    	return MAX_SIZE - _pos();
     }
     
     /** Resets and returns this encoder to the pool.
@@ -118,47 +121,82 @@ public class ByteEncoder extends Bytes {
         _pool.done( this );
     }
     
-    final static SimplePool<ByteEncoder> _pool = new SimplePool<ByteEncoder>( "ByteEncoders" , NUM_ENCODERS , NUM_ENCODERS * 2 ){
+    final static SimplePool<ByteEncoder> _pool = new ThreadAffinePool<ByteEncoder>( "ByteEncoders" , NUM_ENCODERS , NUM_ENCODERS * 2 ){
             protected ByteEncoder createNew(){
 		if ( D ) System.out.println( "creating new ByteEncoder" );
                 return new ByteEncoder();
             }
 
             protected long memSize( ByteEncoder d ){
-                return d._buf.capacity() + ( 2 * MAX_STRING ) + 1024;
+                return CHUNK_SIZE + SCRATCH_SIZE + 1024;
             }
         };
 
-
-    // ----
-    
-    private ByteEncoder(){
-        _buf = ByteBuffer.allocateDirect( MAX_OBJECT_SIZE + 2048 );
-        _buf.order( Bytes.ORDER );
-    }
+    /**
+     * the most a single encoder will hold, same as the old fixed buffer
+     */
+    static final int MAX_SIZE = MAX_OBJECT_SIZE + 2048;
 
     /**
-     *  Returns the bytes in the bytebuffer.  Attempts to leave the
-     *  bytebuffer in the same state.  Note that mark, if set, is lost.
-     *
-     * @return  array of bytes
+     * size of the direct buffers an encoder writes into.
+     * it starts with one and takes more from a shared pool as it fills up
      */
-    public byte[] getBytes() {
+    static final int CHUNK_SIZE = 1024 * 16;
 
-        int pos = _buf.position();
-        int limit = _buf.limit();
+    static final int MAX_POOLED_CHUNKS = 256;
 
-        flip();
+    static final int SCRATCH_SIZE = 256;
+    
+    static ByteBuffer _getChunk(){
+        ByteBuffer c = _chunks.poll();
+        if ( c == null ){
+            c = ByteBuffer.allocateDirect( CHUNK_SIZE );
+            c.order( Bytes.ORDER );
+            return c;
+        }
+        _numPooledChunks.decrementAndGet();
+        c.clear();
+        return c;
+    }
 
-        byte[] arr = new byte[_buf.limit()];
+    static void _doneChunk( ByteBuffer c ){
+        if ( _numPooledChunks.incrementAndGet() > MAX_POOLED_CHUNKS ){
+            _numPooledChunks.decrementAndGet();
+            return;
+        }
+        _chunks.add( c );
+    }
 
-        _buf.get(arr);
+    private static final Queue<ByteBuffer> _chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger _numPooledChunks = new AtomicInteger();
 
-        flip();
 
-        _buf.position(pos);
-        _buf.limit(limit);
+    // ----
+    
+    /**
+     * only the pool and things that keep one for good, like a test server, make these
+     */
+    ByteEncoder(){
+        _cur = _getChunk();
+        _bufs.add( _cur );
+    }
 
+    /**
+     *  Returns a copy of the bytes encoded so far.  Leaves the encoder as it was.
+     *
+     * @return  array of bytes
+     */
+    public byte[] getBytes() {
+        byte[] arr = new byte[ _pos() ];
+        int off = 0;
+        for ( ByteBuffer c : _bufs ){
+            ByteBuffer d = c.duplicate();
+            d.limit( _flipped ? c.limit() : c.position() );
+            d.position( 0 );
+            final int len = d.remaining();
+            d.get( arr , off , len );
+            off += len;
+        }
         return arr;
     }
 
@@ -166,8 +204,7 @@ public class ByteEncoder extends Bytes {
      *  Returns encoder to its starting state, ready to encode an object.
      */
     protected void reset(){
-        _buf.position( 0 );
-        _buf.limit( _buf.capacity() );
+        _truncate( 0 );
         _flipped = false;
 	_dontRef.clear();
     }
@@ -176,9 +213,34 @@ public class ByteEncoder extends Bytes {
      *  Switches the encoder from being write-only to being read-only.
      */
     protected void flip(){
-        _buf.flip();
+        _size = _pos();
+        for ( ByteBuffer c : _bufs )
+            c.flip();
         _flipped = true;
     }
+
+    /**
+     * @return the encoded message, ready for a gathering write.  only valid after flip()
+     */
+    ByteBuffer[] buffers(){
+        if ( ! _flipped )
+            throw new IllegalStateException( "not flipped" );
+        return _bufs.toArray( new ByteBuffer[ _bufs.size() ] );
+    }
+
+    /**
+     * @return the encoded message as one buffer.  only valid after flip(), 
+     *         it's a copy unless everything fit in one chunk
+     */
+    ByteBuffer asBuffer(){
+        if ( ! _flipped )
+            throw new IllegalStateException( "not flipped" );
+        if ( _bufs.size() == 1 )
+            return _cur;
+        ByteBuffer b = ByteBuffer.wrap( getBytes() );
+        b.order( Bytes.ORDER );
+        return b;
+    }
     
     /** Encodes a <code>DBObject</code>.
      * This is for the higher level api calls
@@ -192,17 +254,14 @@ public class ByteEncoder extends Bytes {
      */
     public int putObject( DBObject o ){
     	
-    	_buf.mark();
+    	final int mark = _pos();
     	
         try {
         	return putObject( null , o );
         }
         catch ( BufferOverflowException bof ){
-            //reset to marked offset and wipe any written data
-        	_buf.reset();
-        	_buf.put(new byte[_buf.remaining()]);
-        	_buf.reset();
-        	
+            //go back to where this object started
+        	_truncate( mark );
         	throw new BufferOverflowException();
         }
     }
@@ -218,21 +277,31 @@ public class ByteEncoder extends Bytes {
         
         if ( _flipped )
             throw new IllegalStateException( "already flipped" );
-        final int start = _buf.position();
+        final int start = _pos();
         
         byte myType = OBJECT;
         if ( o instanceof List )
             myType = ARRAY;
 
         if ( _handleSpecialObjects( name , o ) )
-            return _buf.position() - start;
+            return _pos() - start;
         
         if ( name != null ){
             _put( myType , name );
         }
 
-        final int sizePos = _buf.position();
-        _buf.putInt( 0 ); // leaving space for this.  set it at the end
+        final int sizePos = _pos();
+        _putInt( 0 ); // leaving space for this.  set it at the end
+
+        if ( o instanceof ReflectionDBObject ){
+            // straight from the getters, no looking each field up by name
+            final ReflectionDBObject.JavaWrapper w = ((ReflectionDBObject)o).getWrapper();
+            for ( ReflectionDBObject.FieldInfo f : w._ordered )
+                _putObjectField( f._name , f.get( o , w._name ) );
+            _putByte( EOO );
+            _putInt( sizePos , _pos() - sizePos );
+            return _pos() - start;
+        }
 
         List transientFields = null;
 
@@ -261,10 +330,18 @@ public class ByteEncoder extends Bytes {
             _putObjectField( s , val );
 
         }
-        _buf.put( EOO );
+        _putByte( EOO );
         
-        _buf.putInt( sizePos , _buf.position() - sizePos );
-        return _buf.position() - start;
+        _putInt( sizePos , _pos() - sizePos );
+        return _pos() - start;
+    }
+
+    /**
+     * Writes a field with any value putObject() could write, or one that has a codec.
+     * For a Codec to write the value it was handed in some other form.
+     */
+    public void putField( String name , Object val ){
+        _putObjectField( name , val );
     }
 
     private void _putObjectField( String name , Object val ){
@@ -274,90 +351,297 @@ public class ByteEncoder extends Bytes {
         
         if ( DEBUG ) System.out.println( "\t put thing : " + name );
         
-        if ( name.equals( "$where") && val instanceof String ){
-            _put( CODE , name );
-            _putValueString( val.toString() );
-            return;
-        }
-        
         val = Bytes.applyEncodingHooks( val );
 
         if ( val == null )
             putNull(name);
-        else if ( val instanceof Date )
-            putDate( name , (Date)val );
-        else if ( val instanceof Number )
-            putNumber(name, (Number)val );
-        else if ( val instanceof String )
-            putString(name, val.toString() );
-        else if ( val instanceof ObjectId )
-            putObjectId(name, (ObjectId)val );
-        else if ( val instanceof DBObject )
-            putObject(name, (DBObject)val );
-        else if ( val instanceof Boolean )
-            putBoolean(name, (Boolean)val );
-        else if ( val instanceof Pattern )
-            putPattern(name, (Pattern)val );
-        else if (val instanceof DBRegex) {
-            putDBRegex(name, (DBRegex) val);
+        else 
+            _codec( val.getClass() ).put( this , name , val );
+    }
+
+    /**
+     * Writes values of one type.
+     * Register one with addCodec() for a type the encoder doesn't know, like BigDecimal, UUID or an enum.
+     * It can write the value as anything putField() takes, without building a DBObject first.
+     */
+    public interface Codec {
+        public void put( ByteEncoder encoder , String name , Object val );
+    }
+
+    /**
+     * Registers a codec for c and its subclasses.
+     * One for exactly c is used before the built in types, so it can replace how the encoder writes them.
+     * One for a superclass or interface of c is only used when c isn't a built in type.
+     */
+    public static void addCodec( Class<?> c , Codec codec ){
+        synchronized ( _custom ){
+            _custom.put( c , codec );
+            _cached = new CodecTable();
         }
-        else if ( val instanceof Map )
-            putMap( name , (Map)val );
-
-        else if ( val instanceof List )
-            putList( name , (List)val );
-        else if ( val instanceof byte[] )
-            putBinary( name , (byte[])val );
-        else if ( val instanceof DBBinary )
-            putBinary( name , (DBBinary)val );
-        else if ( val.getClass().isArray() )
-            putList( name , Arrays.asList( (Object[])val ) );
-
-        else if (val instanceof DBPointer) {
-
-            // temporary - there's the notion of "special object" , but for simple level 0...
-            DBPointer r = (DBPointer) val;
-            putDBPointer( name , r._ns , (ObjectId)r._id );
+    }
+
+    public static void removeCodec( Class<?> c ){
+        synchronized ( _custom ){
+            _custom.remove( c );
+            _cached = new CodecTable();
         }
-        else if (val instanceof DBRefBase ) {
-            putDBRef( name, (DBRefBase)val );
+    }
+
+    /**
+     * the codec for a class is worked out once and cached,
+     * so each value is one lookup without locking instead of a walk down every type.
+     * threads that miss on the same class together only work it out once
+     */
+    static Codec _codec( Class<?> c ){
+        Codec codec = _cached.get( c );
+        if ( codec != null )
+            return codec;
+
+        synchronized ( _custom ){
+            codec = _cached.get( c );
+            if ( codec != null )
+                return codec;
+            codec = _resolve( c );
+            _cached = _cached.with( c , codec );
+            return codec;
         }
-        else if (val instanceof DBSymbol) {
-            putSymbol(name, (DBSymbol) val);
+    }
+
+    private static Codec _resolve( Class<?> c ){
+        synchronized ( _custom ){
+            Codec codec = _custom.get( c );
+            if ( codec != null )
+                return codec;
+
+            for ( int i=0; i<BUILT_IN.length; i++ )
+                if ( BUILT_IN_TYPES[i].isAssignableFrom( c ) )
+                    return BUILT_IN[i];
+
+            if ( c.isArray() )
+                return ARRAY_CODEC;
+
+            for ( Map.Entry<Class<?>,Codec> e : _custom.entrySet() )
+                if ( e.getKey().isAssignableFrom( c ) )
+                    return e.getValue();
         }
-        else if (val instanceof DBUndefined) {
-            putUndefined(name);
+        return CANT_SERIALIZE;
+    }
+
+    /**
+     * an open addressed table of every class a codec has been worked out for.  never changed once
+     * it's visible, a new entry goes into a copy, so looking up a codec doesn't take a lock.
+     * classes are only weakly held, so a cached codec doesn't keep a classloader around.
+     * entries for classes that are gone stay put until the table grows
+     */
+    static final class CodecTable {
+        CodecTable(){
+            this( 16 );
         }
-        else if (val instanceof DBTimestamp) {
-            putTimestamp( name , (DBTimestamp)val );
+
+        private CodecTable( int n ){
+            _keys = new WeakReference<?>[n];
+            _vals = new Codec[n];
         }
-        else 
-            throw new IllegalArgumentException( "can't serialize " + val.getClass() );
-        
+
+        /**
+         * @return a copy with c added, bigger if this one is half full
+         */
+        CodecTable with( Class<?> c , Codec codec ){
+            final CodecTable t;
+            if ( ( _used + 1 ) * 2 <= _keys.length ){
+                t = new CodecTable( _keys.length );
+                System.arraycopy( _keys , 0 , t._keys , 0 , _keys.length );
+                System.arraycopy( _vals , 0 , t._vals , 0 , _vals.length );
+                t._used = _used;
+            }
+            else {
+                int live = 1;
+                for ( WeakReference<?> k : _keys )
+                    if ( k != null && k.get() != null )
+                        live++;
+                int n = 16;
+                while ( n < live * 4 )
+                    n <<= 1;
+                t = new CodecTable( n );
+                for ( int i=0; i<_keys.length; i++ ){
+                    final Object k = _keys[i] == null ? null : _keys[i].get();
+                    if ( k != null )
+                        t._put( _keys[i] , (Class<?>)k , _vals[i] );
+                }
+            }
+            t._put( new WeakReference<Class<?>>( c ) , c , codec );
+            return t;
+        }
+
+        private void _put( WeakReference<?> ref , Class<?> c , Codec codec ){
+            int i = _slot( c );
+            while ( _keys[i] != null )
+                i = ( i + 1 ) & ( _keys.length - 1 );
+            _keys[i] = ref;
+            _vals[i] = codec;
+            _used++;
+        }
+
+        Codec get( Class<?> c ){
+            for ( int i = _slot( c ); ; i = ( i + 1 ) & ( _keys.length - 1 ) ){
+                final WeakReference<?> k = _keys[i];
+                if ( k == null )
+                    return null;
+                if ( k.get() == c )
+                    return _vals[i];
+            }
+        }
+
+        private int _slot( Class<?> c ){
+            return System.identityHashCode( c ) & ( _keys.length - 1 );
+        }
+
+        private final WeakReference<?>[] _keys;
+        private final Codec[] _vals;
+        /** slots taken, counting ones whose class is gone */
+        private int _used;
     }
 
+    /** same order the types used to be checked in, which matters for things that are more than one */
+    static final Class<?>[] BUILT_IN_TYPES = new Class<?>[]{
+        Date.class , Number.class , String.class , ObjectId.class , DBObject.class , Boolean.class ,
+        Pattern.class , DBRegex.class , Map.class , List.class , byte[].class , DBBinary.class ,
+        DBPointer.class , DBRefBase.class , DBSymbol.class , DBUndefined.class , DBTimestamp.class
+    };
+
+    static final Codec[] BUILT_IN = new Codec[]{
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putDate( name , (Date)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putNumber( name , (Number)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                if ( name.equals( "$where" ) ){
+                    e._put( CODE , name );
+                    e._putValueString( val.toString() );
+                    return;
+                }
+                e.putString( name , val.toString() );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putObjectId( name , (ObjectId)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putObject( name , (DBObject)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putBoolean( name , (Boolean)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putPattern( name , (Pattern)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putDBRegex( name , (DBRegex)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putMap( name , (Map)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putList( name , (List)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putBinary( name , (byte[])val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putBinary( name , (DBBinary)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                // temporary - there's the notion of "special object" , but for simple level 0...
+                DBPointer r = (DBPointer)val;
+                e.putDBPointer( name , r._ns , (ObjectId)r._id );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putDBRef( name , (DBRefBase)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putSymbol( name , (DBSymbol)val );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putUndefined( name );
+            }
+        } ,
+        new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putTimestamp( name , (DBTimestamp)val );
+            }
+        }
+    };
+
+    static final Codec ARRAY_CODEC = new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                e.putList( name , Arrays.asList( (Object[])val ) );
+            }
+        };
+
+    static final Codec CANT_SERIALIZE = new Codec(){
+            public void put( ByteEncoder e , String name , Object val ){
+                throw new IllegalArgumentException( "can't serialize " + val.getClass() );
+            }
+        };
+
+    private static final Map<Class<?>,Codec> _custom = new LinkedHashMap<Class<?>,Codec>();
+    /** only replaced holding _custom */
+    private static volatile CodecTable _cached = new CodecTable();
+
     private void putList( String name , List l ){
         _put( ARRAY , name );
-        final int sizePos = _buf.position();
-        _buf.putInt( 0 );
+        final int sizePos = _pos();
+        _putInt( 0 );
         
         for ( int i=0; i<l.size(); i++ )
             _putObjectField( String.valueOf( i ) , l.get( i ) );
 
-        _buf.put( EOO );
-        _buf.putInt( sizePos , _buf.position() - sizePos );        
+        _putByte( EOO );
+        _putInt( sizePos , _pos() - sizePos );        
     }
     
     private void putMap( String name , Map m ){
         _put( OBJECT , name );
-        final int sizePos = _buf.position();
-        _buf.putInt( 0 );
+        final int sizePos = _pos();
+        _putInt( 0 );
         
         for ( Object key : m.keySet() )
             _putObjectField( key.toString() , m.get( key ) );
 
-        _buf.put( EOO );
-        _buf.putInt( sizePos , _buf.position() - sizePos );
+        _putByte( EOO );
+        _putInt( sizePos , _pos() - sizePos );
     }
     
 
@@ -395,75 +679,75 @@ public class ByteEncoder extends Bytes {
     }
 
     protected int putNull( String name ){
-        int start = _buf.position();
+        int start = _pos();
         _put( NULL , name );
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
     protected int putUndefined(String name){
-        int start = _buf.position();
+        int start = _pos();
         _put(UNDEFINED, name);
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
     protected int putTimestamp(String name, DBTimestamp ts ){
-        int start = _buf.position();
+        int start = _pos();
         _put( TIMESTAMP , name );
-        _buf.putInt( ts.getTime() );
-        _buf.putInt( ts.getInc() );
-        return _buf.position() - start;        
+        _putInt( ts.getTime() );
+        _putInt( ts.getInc() );
+        return _pos() - start;        
     }
 
     protected int putBoolean( String name , Boolean b ){
-        int start = _buf.position();
+        int start = _pos();
         _put( BOOLEAN , name );
-        _buf.put( b ? (byte)0x1 : (byte)0x0 );
-        return _buf.position() - start;
+        _putByte( b ? (byte)0x1 : (byte)0x0 );
+        return _pos() - start;
     }
 
     protected int putDate( String name , Date d ){
-        int start = _buf.position();
+        int start = _pos();
         _put( DATE , name );
-        _buf.putLong( d.getTime() );
-        return _buf.position() - start;
+        _putLong( d.getTime() );
+        return _pos() - start;
     }
 
     protected int putNumber( String name , Number n ){
-        int start = _buf.position();
+        int start = _pos();
 	if ( n instanceof Integer ){
 	    _put( NUMBER_INT , name );
-	    _buf.putInt( n.intValue() );
+	    _putInt( n.intValue() );
 	}
         else if (n instanceof Long ) {
             _put( NUMBER_LONG , name );
-            _buf.putLong( n.longValue() );
+            _putLong( n.longValue() );
         }
 	else {
 	    _put( NUMBER , name );
-	    _buf.putDouble( n.doubleValue() );
+	    _putDouble( n.doubleValue() );
 	}
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
     protected void putBinary( String name , byte[] data ){
         
         _put( BINARY , name );
-        _buf.putInt( 4 + data.length );
+        _putInt( 4 + data.length );
 
-        _buf.put( B_BINARY );
-        _buf.putInt( data.length );
-        int before = _buf.position();
-        _buf.put( data );
-        int after = _buf.position();
+        _putByte( B_BINARY );
+        _putInt( data.length );
+        int before = _pos();
+        _putBytes( data );
+        int after = _pos();
         
         com.mongodb.util.MyAsserts.assertEquals( after - before , data.length );
     }
 
     protected void putBinary( String name , DBBinary val ){
         _put( BINARY , name );
-        _buf.putInt( val._data.length );
-        _buf.put( val._type );
-        _buf.put( val._data );
+        _putInt( val._data.length );
+        _putByte( val._type );
+        _putBytes( val._data );
     }
     
 
@@ -476,48 +760,48 @@ public class ByteEncoder extends Bytes {
     }
 
     private int _putString( String name , String s, byte type ){
-        int start = _buf.position();
+        int start = _pos();
         _put( type , name );
         _putValueString( s );
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
     protected int putObjectId( String name , ObjectId oid ){
-        int start = _buf.position();
+        int start = _pos();
         _put( OID , name );
-        _buf.putInt( oid._time );
-        _buf.putInt( oid._machine );
-        _buf.putInt( oid._inc );
-        return _buf.position() - start;
+        _putInt( oid._time );
+        _putInt( oid._machine );
+        _putInt( oid._inc );
+        return _pos() - start;
     }
     
     protected int putDBPointer( String name , String ns , ObjectId oid ){
-        int start = _buf.position();
+        int start = _pos();
         _put( REF , name );
         
         _putValueString( ns );
-        _buf.putInt( oid._time );
-        _buf.putInt( oid._machine );
-        _buf.putInt( oid._inc );
+        _putInt( oid._time );
+        _putInt( oid._machine );
+        _putInt( oid._inc );
 
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
     protected void putDBRef( String name, DBRefBase ref ){
         _put( OBJECT , name );
-        final int sizePos = _buf.position();
-        _buf.putInt( 0 );
+        final int sizePos = _pos();
+        _putInt( 0 );
         
         _putObjectField( "$ref" , ref.getRef() );
         _putObjectField( "$id" , ref.getId() );
 
-        _buf.put( EOO );
-        _buf.putInt( sizePos , _buf.position() - sizePos );
+        _putByte( EOO );
+        _putInt( sizePos , _pos() - sizePos );
     }
 
     private int putDBRegex(String name, DBRegex regex) {
 
-        int start = _buf.position();
+        int start = _pos();
         _put( REGEX , name );
         _put(regex.getPattern());
 
@@ -536,16 +820,16 @@ public class ByteEncoder extends Bytes {
         }
 
         _put( sb.toString());
-        return _buf.position() - start;
+        return _pos() - start;
 
     }
     
     private int putPattern( String name, Pattern p ) {
-        int start = _buf.position();
+        int start = _pos();
         _put( REGEX , name );
         _put( p.pattern() );
         _put( patternFlags( p.flags() ) );
-        return _buf.position() - start;
+        return _pos() - start;
     }
 
 
@@ -556,30 +840,188 @@ public class ByteEncoder extends Bytes {
      * 
      */
     private void _put( byte type , String name ){
-        _buf.put( type );
+        _putByte( type );
         _put( name );
     }
 
     void _putValueString( String s ){
-        int lenPos = _buf.position();
-        _buf.putInt( 0 ); // making space for size
+        int lenPos = _pos();
+        _putInt( 0 ); // making space for size
         int strLen = _put( s );
-        _buf.putInt( lenPos , strLen );
+        _putInt( lenPos , strLen );
     }
     
+    /**
+     * writes name as utf-8 and a 0, straight into the chunks.
+     * @return bytes written, including the 0
+     */
     int _put( String name ){
+        final int start = _pos();
+        final int len = name.length();
+
+        // ascii a block at a time.  the loop has no early exit so the jit can vectorize it,
+        // a block with anything else in it goes to the slow path from its start
+        int i = 0;
+        while ( i < len ){
+            final int n = Math.min( len - i , _scratch.length );
+            int all = 0;
+            for ( int j=0; j<n; j++ ){
+                final char c = name.charAt( i + j );
+                _scratch[j] = (byte)c;
+                all |= c;
+            }
+            if ( all >= 0x80 )
+                break;
+            _putBytes( _scratch , n );
+            i += n;
+        }
 
-        _cbuf.position( 0 );
-        _cbuf.limit( _cbuf.capacity() );
-        _cbuf.append( name );
-        
-        _cbuf.flip();
-        final int start = _buf.position();
-        _encoder.encode( _cbuf , _buf , false );
+        for ( ; i < len; i++ ){
+            int c = name.charAt( i );
 
-        _buf.put( (byte)0 );
+            if ( c < 0x80 ){
+                _putByte( (byte)c );
+                continue;
+            }
 
-        return _buf.position() - start;
+            if ( c >= 0xD800 && c <= 0xDFFF ){
+                if ( c <= 0xDBFF && i + 1 < len && Character.isLowSurrogate( name.charAt( i + 1 ) ) )
+                    c = Character.toCodePoint( (char)c , name.charAt( ++i ) );
+                else
+                    c = '?'; // half a pair, same as String.getBytes
+            }
+
+            _ensure( 4 );
+            if ( c < 0x80 ){
+                _cur.put( (byte)c );
+            }
+            else if ( c < 0x800 ){
+                _cur.put( (byte)( 0xC0 | ( c >> 6 ) ) );
+                _cur.put( (byte)( 0x80 | ( c & 0x3F ) ) );
+            }
+            else if ( c < 0x10000 ){
+                _cur.put( (byte)( 0xE0 | ( c >> 12 ) ) );
+                _cur.put( (byte)( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+                _cur.put( (byte)( 0x80 | ( c & 0x3F ) ) );
+            }
+            else {
+                _cur.put( (byte)( 0xF0 | ( c >> 18 ) ) );
+                _cur.put( (byte)( 0x80 | ( ( c >> 12 ) & 0x3F ) ) );
+                _cur.put( (byte)( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+                _cur.put( (byte)( 0x80 | ( c & 0x3F ) ) );
+            }
+        }
+
+        _putByte( (byte)0 );
+
+        return _pos() - start;
+    }
+
+    // ---- writing to the chunks ----
+
+    /**
+     * @return how many bytes have been written
+     */
+    int _pos(){
+        if ( _flipped )
+            return _size;
+        return _curStart + _cur.position();
+    }
+
+    /**
+     * makes sure there are n contiguous bytes in the current chunk.
+     * ints and longs never straddle chunks so they can be patched in place later
+     */
+    private void _ensure( int n ){
+        if ( _cur.remaining() < n )
+            _next( n );
+    }
+
+    private void _next( int n ){
+        final int pos = _pos();
+        if ( pos + n > MAX_SIZE )
+            throw new BufferOverflowException();
+
+        ByteBuffer c = _getChunk();
+        c.limit( Math.min( c.capacity() , MAX_SIZE - pos ) );
+
+        _bufs.add( c );
+        if ( _starts.length < _bufs.size() ){
+            int[] temp = new int[ _starts.length * 2 ];
+            System.arraycopy( _starts , 0 , temp , 0 , _starts.length );
+            _starts = temp;
+        }
+        _starts[ _bufs.size() - 1 ] = pos;
+
+        _cur = c;
+        _curStart = pos;
+    }
+
+    /**
+     * throws away everything after pos, giving back chunks that aren't needed anymore
+     */
+    private void _truncate( int pos ){
+        int i = _bufs.size() - 1;
+        while ( i > 0 && _starts[i] > pos )
+            _doneChunk( _bufs.remove( i-- ) );
+
+        _cur = _bufs.get( i );
+        _curStart = _starts[i];
+        _cur.clear();
+        _cur.limit( Math.min( _cur.capacity() , MAX_SIZE - _curStart ) );
+        _cur.position( pos - _curStart );
+    }
+
+    void _putByte( byte b ){
+        _ensure( 1 );
+        _cur.put( b );
+    }
+
+    void _putInt( int x ){
+        _ensure( 4 );
+        _cur.putInt( x );
+    }
+
+    void _putInt( int pos , int x ){
+        int i = _bufs.size() - 1;
+        while ( _starts[i] > pos )
+            i--;
+        _bufs.get( i ).putInt( pos - _starts[i] , x );
+    }
+
+    void _putLong( long x ){
+        _ensure( 8 );
+        _cur.putLong( x );
+    }
+
+    void _putDouble( double x ){
+        _ensure( 8 );
+        _cur.putDouble( x );
+    }
+
+    void _putBytes( byte[] b ){
+        _putBytes( b , b.length );
+    }
+
+    /**
+     * the first n bytes of b
+     */
+    void _putBytes( byte[] b , int n ){
+        _putBytes( b , 0 , n );
+    }
+
+    /**
+     * n bytes of b, starting at off
+     */
+    void _putBytes( byte[] b , int off , int n ){
+        final int end = off + n;
+        while ( off < end ){
+            if ( ! _cur.hasRemaining() )
+                _next( 1 );
+            final int len = Math.min( _cur.remaining() , end - off );
+            _cur.put( b , off , len );
+            off += len;
+        }
     }
 
     boolean _dontRefContains( Object o ){
@@ -588,11 +1030,16 @@ public class ByteEncoder extends Bytes {
         return _dontRef.peek().contains( o );
     }
     
-    private final CharBuffer _cbuf = CharBuffer.allocate( MAX_STRING );
-    private final CharsetEncoder _encoder = _utf8.newEncoder();
+    /** ascii goes through here on its way into the chunks */
+    private final byte[] _scratch = new byte[ SCRATCH_SIZE ];
     private Stack<IdentitySet> _dontRef = new Stack<IdentitySet>();
     
     private boolean _flipped = false;
-    final ByteBuffer _buf;
+    private int _size;
+
+    private final List<ByteBuffer> _bufs = new ArrayList<ByteBuffer>();
+    private int[] _starts = new int[16];
+    private ByteBuffer _cur;
+    private int _curStart = 0;
     
 }
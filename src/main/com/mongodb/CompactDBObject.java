@@ -0,0 +1,570 @@
+// CompactDBObject.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.util.*;
+
+import com.mongodb.util.*;
+
+/**
+ * What query results are decoded into when the collection has no object class.  Fields are kept in two arrays,
+ * and documents decoded one after another with the same field names share the names array.
+ * The first change copies everything into a <code>LinkedHashMap</code> and it works from that from then on.
+ * <p>
+ * It has <code>BasicDBObject</code>'s typed getters, but isn't one: a <code>HashMap</code> subclass would inherit
+ * methods like getOrDefault() and forEach() that read the map's own, empty, table.  Every <code>Map</code> method
+ * here goes through get(), put() and entrySet().  It's serialized as a <code>BasicDBObject</code>.
+ * Code that casts results to <code>BasicDBObject</code> can set <code>MongoOptions.basicDBObjects</code>
+ * to get those instead.
+ */
+public class CompactDBObject extends AbstractMap<String,Object> implements DBObject , Serializable {
+
+    /** past this many fields a shape gets a hash index instead of a linear scan */
+    static final int INDEX_AT = 12;
+
+    /**
+     * @param size how many fields to expect
+     */
+    CompactDBObject( int size ){
+        _names = new String[ Math.max( size , 1 ) ];
+        _values = new Object[ _names.length ];
+    }
+
+    /**
+     * field names shared by documents, along with an index for big ones.  never changes once built
+     */
+    static class Shape {
+        Shape( String[] names ){
+            _names = names;
+            if ( names.length > INDEX_AT ){
+                _index = new HashMap<String,Integer>( names.length * 2 );
+                for ( int i=0; i<names.length; i++ )
+                    if ( ! _index.containsKey( names[i] ) )
+                        _index.put( names[i] , i );
+            }
+            else {
+                _index = null;
+            }
+        }
+
+        int find( Object name ){
+            if ( _index != null ){
+                Integer i = _index.get( name );
+                return i == null ? -1 : i;
+            }
+            for ( int i=0; i<_names.length; i++ )
+                if ( _names[i].equals( name ) )
+                    return i;
+            return -1;
+        }
+
+        final String[] _names;
+        final Map<String,Integer> _index;
+    }
+
+    // ---- building, only the decoder does these
+
+    /**
+     * adds a field while decoding.  repeats are dropped by _seal()
+     */
+    void _add( String name , Object val ){
+        if ( _names == null ){
+            put( name , val );
+            return;
+        }
+        if ( _n == _names.length ){
+            _names = _grow( _names , new String[ _n * 2 ] );
+            _values = _grow( _values , new Object[ _n * 2 ] );
+        }
+        _names[_n] = name;
+        _values[_n] = val;
+        _n++;
+    }
+
+    /**
+     * done decoding.  picks up the names from shapes if an equal set is there,
+     * otherwise puts this document's in.  shapes is a direct mapped cache, its length a power of 2
+     */
+    void _seal( Shape[] shapes ){
+        if ( _names == null )
+            return;
+
+        int slot = _slot( shapes );
+        Shape s = shapes[slot];
+        if ( s == null || ! _same( s._names ) ){
+            // shapes never have repeats, so a hit means there's none here either
+            if ( _dedup() ){
+                slot = _slot( shapes );
+                s = shapes[slot];
+            }
+            if ( s == null || ! _same( s._names ) ){
+                s = new Shape( _names.length == _n ? _names : _grow( _names , new String[ _n ] ) );
+                shapes[slot] = s;
+            }
+        }
+
+        if ( _values.length != _n )
+            _values = _grow( _values , new Object[ _n ] );
+        _shape = s;
+        _names = null;
+    }
+
+    private int _slot( Shape[] shapes ){
+        int h = 0;
+        for ( int i=0; i<_n; i++ )
+            h = 31 * h + _names[i].hashCode();
+        return ( h ^ ( h >>> 16 ) ) & ( shapes.length - 1 );
+    }
+
+    /**
+     * a name decoded more than once keeps its first place and its last value, like BasicDBObject.put()
+     * @return if there were any repeats
+     */
+    private boolean _dedup(){
+        Map<String,Integer> seen = _n > INDEX_AT ? new HashMap<String,Integer>( _n * 2 ) : null;
+        int out = 0;
+        for ( int i=0; i<_n; i++ ){
+            int first = -1;
+            if ( seen != null ){
+                Integer f = seen.get( _names[i] );
+                if ( f == null )
+                    seen.put( _names[i] , out );
+                else
+                    first = f;
+            }
+            else {
+                for ( int j=0; j<out; j++ ){
+                    if ( _names[j].equals( _names[i] ) ){
+                        first = j;
+                        break;
+                    }
+                }
+            }
+
+            if ( first >= 0 ){
+                _values[first] = _values[i];
+                continue;
+            }
+            _names[out] = _names[i];
+            _values[out] = _values[i];
+            out++;
+        }
+
+        if ( out == _n )
+            return false;
+        for ( int i=out; i<_n; i++ ){
+            _names[i] = null;
+            _values[i] = null;
+        }
+        _n = out;
+        return true;
+    }
+
+    /**
+     * @return how many fields were decoded
+     */
+    int _decoded(){
+        return _n;
+    }
+
+    /**
+     * the namespace, reported as an <code>_ns</code> field after the others
+     */
+    void _setNS( String ns ){
+        if ( _compact() )
+            _ns = ns;
+        else
+            put( "_ns" , ns );
+    }
+
+    private boolean _same( String[] names ){
+        if ( names.length != _n )
+            return false;
+        for ( int i=0; i<_n; i++ )
+            if ( ! names[i].equals( _names[i] ) )
+                return false;
+        return true;
+    }
+
+    private static <T> T[] _grow( T[] from , T[] to ){
+        System.arraycopy( from , 0 , to , 0 , Math.min( from.length , to.length ) );
+        return to;
+    }
+
+    // ---- reading
+
+    private int _find( Object key ){
+        if ( _shape != null )
+            return _shape.find( key );
+        for ( int i=0; i<_n; i++ )
+            if ( _names[i].equals( key ) )
+                return i;
+        return -1;
+    }
+
+    private boolean _compact(){
+        return _values != null;
+    }
+
+    /**
+     * fields, counting _ns
+     */
+    private int _fields(){
+        return _n + ( _ns == null ? 0 : 1 );
+    }
+
+    public Object get( String key ){
+        return get( (Object)key );
+    }
+
+    public Object get( Object key ){
+        if ( ! _compact() )
+            return _map.get( key );
+
+        final int i = _find( key );
+        if ( i >= 0 )
+            return _values[i];
+        if ( _ns != null && "_ns".equals( key ) )
+            return _ns;
+        return null;
+    }
+
+    /** Returns the value of a field as an <code>int</code>.
+     * @param key the field to look for
+     * @return the field value
+     */
+    public int getInt( String key ){
+        return BasicDBObject._int( this , key );
+    }
+
+    /** Returns the value of a field as an <code>int</code>.
+     * @param key the field to look for
+     * @param def the default to return
+     * @return the field value (or default)
+     */
+    public int getInt( String key , int def ){
+        return BasicDBObject._int( this , key , def );
+    }
+
+    /** Returns the value of a field as a <code>long</code>.
+     * @param key the field to return
+     * @return the field value
+     */
+    public long getLong( String key ){
+        return BasicDBObject._long( this , key );
+    }
+
+    /** Returns the value of a field as a string
+     * @param key the field to look up
+     * @return the value of the field, converted to a string
+     */
+    public String getString( String key ){
+        return BasicDBObject._string( this , key );
+    }
+
+    public boolean containsField( String field ){
+        return containsKey( (Object)field );
+    }
+
+    /**
+     * @deprecated
+     */
+    public boolean containsKey( String key ){
+        return containsKey( (Object)key );
+    }
+
+    public boolean containsKey( Object key ){
+        if ( ! _compact() )
+            return _map.containsKey( key );
+        return _find( key ) >= 0 || ( _ns != null && "_ns".equals( key ) );
+    }
+
+    public boolean containsValue( Object val ){
+        if ( ! _compact() )
+            return _map.containsValue( val );
+        return values().contains( val );
+    }
+
+    public int size(){
+        if ( ! _compact() )
+            return _map.size();
+        return _fields();
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public Set<String> keySet(){
+        if ( ! _compact() )
+            return _map.keySet();
+
+        return new AbstractSet<String>(){
+            public Iterator<String> iterator(){
+                return new Itr<String>(){
+                    String _next(){
+                        return _key;
+                    }
+                };
+            }
+            public int size(){
+                return CompactDBObject.this.size();
+            }
+            public boolean contains( Object o ){
+                return CompactDBObject.this.containsKey( o );
+            }
+            public boolean remove( Object o ){
+                if ( ! CompactDBObject.this.containsKey( o ) )
+                    return false;
+                CompactDBObject.this.remove( o );
+                return true;
+            }
+        };
+    }
+
+    public Collection<Object> values(){
+        if ( ! _compact() )
+            return _map.values();
+
+        return new AbstractCollection<Object>(){
+            public Iterator<Object> iterator(){
+                return new Itr<Object>(){
+                    Object _next(){
+                        return _val;
+                    }
+                };
+            }
+            public int size(){
+                return CompactDBObject.this.size();
+            }
+        };
+    }
+
+    public Set<Map.Entry<String,Object>> entrySet(){
+        if ( ! _compact() )
+            return _map.entrySet();
+
+        return new AbstractSet<Map.Entry<String,Object>>(){
+            public Iterator<Map.Entry<String,Object>> iterator(){
+                return new Itr<Map.Entry<String,Object>>(){
+                    Map.Entry<String,Object> _next(){
+                        return new Field( _key , _val );
+                    }
+                };
+            }
+            public int size(){
+                return CompactDBObject.this.size();
+            }
+        };
+    }
+
+    /**
+     * walks the fields as they were when it was made, even if the document changes underneath it
+     */
+    abstract class Itr<T> implements Iterator<T> {
+
+        abstract T _next();
+
+        public boolean hasNext(){
+            return _i < _total;
+        }
+
+        public T next(){
+            if ( _i >= _total )
+                throw new NoSuchElementException();
+            if ( _i < _names.length ){
+                _key = _names[_i];
+                _val = _vals[_i];
+            }
+            else {
+                _key = "_ns";
+                _val = _ns;
+            }
+            _i++;
+            return _next();
+        }
+
+        public void remove(){
+            if ( _key == null )
+                throw new IllegalStateException();
+            CompactDBObject.this.remove( _key );
+            _key = null;
+        }
+
+        final String[] _names = _shape != null ? _shape._names : CompactDBObject.this._names;
+        final Object[] _vals = _values;
+        final int _total = _fields();
+        int _i = 0;
+        String _key;
+        Object _val;
+    }
+
+    class Field implements Map.Entry<String,Object> {
+        Field( String key , Object val ){
+            _key = key;
+            _val = val;
+        }
+
+        public String getKey(){
+            return _key;
+        }
+
+        public Object getValue(){
+            return _val;
+        }
+
+        public Object setValue( Object val ){
+            Object old = _val;
+            CompactDBObject.this.put( _key , val );
+            _val = val;
+            return old;
+        }
+
+        public boolean equals( Object o ){
+            if ( ! ( o instanceof Map.Entry ) )
+                return false;
+            Map.Entry e = (Map.Entry)o;
+            return _key.equals( e.getKey() ) && ( _val == null ? e.getValue() == null : _val.equals( e.getValue() ) );
+        }
+
+        public int hashCode(){
+            return _key.hashCode() ^ ( _val == null ? 0 : _val.hashCode() );
+        }
+
+        public String toString(){
+            return _key + "=" + _val;
+        }
+
+        final String _key;
+        private Object _val;
+    }
+
+    // ---- changing, copies into the map first
+
+    public Object put( String key , Object val ){
+        _inflate();
+        return _map.put( key , val );
+    }
+
+    public void putAll( Map m ){
+        for ( Object k : m.keySet() )
+            put( k.toString() , m.get( k ) );
+    }
+
+    public void putAll( DBObject o ){
+        for ( String k : o.keySet() )
+            put( k , o.get( k ) );
+    }
+
+    public Object remove( Object key ){
+        _inflate();
+        return _map.remove( key );
+    }
+
+    public Object removeField( String key ){
+        return remove( key );
+    }
+
+    public void clear(){
+        _inflate();
+        _map.clear();
+    }
+
+    // ---- the rest of DBObject, same as BasicDBObject
+
+    public Map toMap(){
+        return new LinkedHashMap<String,Object>( this );
+    }
+
+    public void markAsPartialObject(){
+        _isPartialObject = true;
+    }
+
+    public boolean isPartialObject(){
+        return _isPartialObject;
+    }
+
+    public boolean equals( Object o ){
+        return BasicDBObject._equals( this , o );
+    }
+
+    public int hashCode(){
+        return super.hashCode();
+    }
+
+    public String toString(){
+        return JSON.serialize( this );
+    }
+
+    /**
+     * @return a copy, as a plain <code>BasicDBObject</code>
+     */
+    public Object clone(){
+        return _toBasic();
+    }
+
+    BasicDBObject _toBasic(){
+        BasicDBObject b = new BasicDBObject( this );
+        if ( _isPartialObject )
+            b.markAsPartialObject();
+        return b;
+    }
+
+    /**
+     * serialized as a <code>BasicDBObject</code>, so there's nothing compact to write
+     */
+    Object writeReplace()
+        throws ObjectStreamException {
+        return _toBasic();
+    }
+
+    private void _inflate(){
+        if ( ! _compact() )
+            return;
+
+        final String[] names = _shape != null ? _shape._names : _names;
+        final Object[] values = _values;
+        final int n = _n;
+        final String ns = _ns;
+
+        final Map<String,Object> m = new LinkedHashMap<String,Object>( Math.max( 16 , ( n + 1 ) * 4 / 3 + 1 ) );
+        for ( int i=0; i<n; i++ )
+            m.put( names[i] , values[i] );
+        if ( ns != null )
+            m.put( "_ns" , ns );
+
+        _map = m;
+        _values = null;
+        _names = null;
+        _shape = null;
+        _ns = null;
+        _n = 0;
+    }
+
+    /** names while decoding, null once sealed */
+    private String[] _names;
+    private Object[] _values;
+    private int _n;
+    Shape _shape;
+    private String _ns;
+    /** the fields once something changed, null until then */
+    private Map<String,Object> _map;
+    private boolean _isPartialObject = false;
+}
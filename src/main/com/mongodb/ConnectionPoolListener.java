@@ -0,0 +1,64 @@
+// ConnectionPoolListener.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package com.mongodb;
+
+import java.net.*;
+
+/**
+ * Gets told about what the connection pool for each host is doing.
+ * Register with {@link Mongo#addConnectionPoolListener}.
+ * Methods are called on the thread doing the work, often while it is holding up a db operation,
+ * so they should be quick and must not throw.
+ */
+public interface ConnectionPoolListener {
+
+    /**
+     * a connection was handed out
+     * @param waitNanos how long the caller waited for it
+     */
+    public void connectionCheckedOut( InetSocketAddress host , long waitNanos );
+
+    /**
+     * a connection was handed back
+     */
+    public void connectionCheckedIn( InetSocketAddress host );
+
+    /**
+     * a caller got a NoMoreConnection
+     * @param timedOut true if it waited the full wait time, false if too many threads were already waiting
+     */
+    public void checkoutFailed( InetSocketAddress host , boolean timedOut );
+
+    /**
+     * a socket was opened
+     */
+    public void connectionOpened( InetSocketAddress host );
+
+    /**
+     * a socket was closed by the driver, or after an error
+     */
+    public void connectionClosed( InetSocketAddress host );
+
+    /**
+     * an operation on a connection failed
+     * @param cleared true if the pool was emptied because of it
+     */
+    public void gotError( InetSocketAddress host , Exception e , boolean cleared );
+}
@@ -0,0 +1,149 @@
+// ConnectionPoolStats.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package com.mongodb;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counters for the connection pool to one host.
+ * Always kept up to date, get it from {@link Mongo#getConnectionPoolStats}.
+ */
+public class ConnectionPoolStats implements ConnectionPoolStatsMBean {
+
+    /**
+     * upper bounds (exclusive) of the checkout wait histogram buckets
+     */
+    public static final long[] WAIT_BUCKETS_MS = new long[]{ 1 , 10 , 100 , 1000 , 10000 };
+
+    ConnectionPoolStats( DBPortPool pool ){
+        _pool = pool;
+    }
+
+    public String getHost(){
+        return _pool._addr.toString();
+    }
+
+    public int getTotal(){
+        return _pool.total();
+    }
+
+    public int getInUse(){
+        return _pool.inUse();
+    }
+
+    public int getAvailable(){
+        return _pool.available();
+    }
+
+    public int getEverCreated(){
+        return _pool.everCreated();
+    }
+
+    public long getCheckouts(){
+        return _checkouts.get();
+    }
+
+    public long getCheckoutTimeouts(){
+        return _checkoutTimeouts.get();
+    }
+
+    public long getWaitQueueFull(){
+        return _waitQueueFull.get();
+    }
+
+    public long[] getCheckoutWaitHistogram(){
+        long[] h = new long[ _waitHistogram.length() ];
+        for ( int i=0; i<h.length; i++ )
+            h[i] = _waitHistogram.get( i );
+        return h;
+    }
+
+    public long getMaxCheckoutWaitMillis(){
+        return _maxWaitNanos.get() / 1000000;
+    }
+
+    public long getConnectionsOpened(){
+        return _opened.get();
+    }
+
+    public long getConnectionsClosed(){
+        return _closed.get();
+    }
+
+    public long getBytesSent(){
+        return _bytesSent.get();
+    }
+
+    public long getBytesReceived(){
+        return _bytesReceived.get();
+    }
+
+    public long getErrors(){
+        return _errors.get();
+    }
+
+    public long getClears(){
+        return _clears.get();
+    }
+
+    public String toString(){
+        StringBuilder buf = new StringBuilder();
+        buf.append( "{ host : " ).append( getHost() );
+        buf.append( " , total : " ).append( getTotal() );
+        buf.append( " , inUse : " ).append( getInUse() );
+        buf.append( " , checkouts : " ).append( getCheckouts() );
+        buf.append( " , timeouts : " ).append( getCheckoutTimeouts() );
+        buf.append( " , waitQueueFull : " ).append( getWaitQueueFull() );
+        buf.append( " , errors : " ).append( getErrors() );
+        buf.append( " }" );
+        return buf.toString();
+    }
+
+    // ---- updated by the pool ----
+
+    void _checkedOut( long waitNanos ){
+        _checkouts.incrementAndGet();
+
+        final long ms = waitNanos / 1000000;
+        int b = 0;
+        while ( b < WAIT_BUCKETS_MS.length && ms >= WAIT_BUCKETS_MS[b] )
+            b++;
+        _waitHistogram.incrementAndGet( b );
+
+        long max;
+        while ( waitNanos > ( max = _maxWaitNanos.get() ) )
+            if ( _maxWaitNanos.compareAndSet( max , waitNanos ) )
+                break;
+    }
+
+    final DBPortPool _pool;
+
+    final AtomicLong _checkouts = new AtomicLong();
+    final AtomicLong _checkoutTimeouts = new AtomicLong();
+    final AtomicLong _waitQueueFull = new AtomicLong();
+    final AtomicLongArray _waitHistogram = new AtomicLongArray( WAIT_BUCKETS_MS.length + 1 );
+    final AtomicLong _maxWaitNanos = new AtomicLong();
+    final AtomicLong _opened = new AtomicLong();
+    final AtomicLong _closed = new AtomicLong();
+    final AtomicLong _bytesSent = new AtomicLong();
+    final AtomicLong _bytesReceived = new AtomicLong();
+    final AtomicLong _errors = new AtomicLong();
+    final AtomicLong _clears = new AtomicLong();
+}
@@ -0,0 +1,54 @@
+// ConnectionPoolStatsMBean.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package com.mongodb;
+
+/**
+ * JMX view of the connection pool for one host.
+ * Registered under com.mongodb:type=ConnectionPool when {@link MongoOptions#jmx} is on.
+ */
+public interface ConnectionPoolStatsMBean {
+
+    public String getHost();
+
+    public int getTotal();
+    public int getInUse();
+    public int getAvailable();
+    public int getEverCreated();
+
+    public long getCheckouts();
+    public long getCheckoutTimeouts();
+    public long getWaitQueueFull();
+
+    /**
+     * number of checkouts that waited less than each of {@link ConnectionPoolStats#WAIT_BUCKETS_MS} ms,
+     * with one more bucket on the end for everything longer
+     */
+    public long[] getCheckoutWaitHistogram();
+    public long getMaxCheckoutWaitMillis();
+
+    public long getConnectionsOpened();
+    public long getConnectionsClosed();
+
+    public long getBytesSent();
+    public long getBytesReceived();
+
+    public long getErrors();
+    public long getClears();
+}
@@ -0,0 +1,229 @@
+// CursorReaper.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Kills server cursors the client is done with, for every collection of one Mongo.
+ * Cursors can be queued directly with kill(), and query results that are garbage collected
+ * before being exhausted are found through phantom references.
+ * A background thread sends everything queued every MongoOptions.cursorReaperInterval ms,
+ * as one OP_KILL_CURSORS per host.  The thread is started the first time there's something to watch.
+ */
+class CursorReaper {
+
+    static final Logger _logger = Logger.getLogger( Bytes.LOGGER.getName() + ".cursors" );
+
+    CursorReaper( DBTCPConnector connector , long interval ){
+        if ( interval <= 0 )
+            throw new IllegalArgumentException( "cursor reaper interval has to be > 0" );
+        _connector = connector;
+        _interval = interval;
+    }
+
+    /**
+     * Watches a query result that left a cursor open on the server.
+     * If result becomes unreachable before done() is called on what this returns, the cursor is killed.
+     * @param result what the application holds on to while it's reading
+     * @param cursor the server's id for the cursor
+     */
+    Ref track( Object result , long cursor ){
+        Ref r = new Ref( result , _connector.getAddress() , cursor );
+        _live.put( r , Boolean.TRUE );
+        _start();
+        return r;
+    }
+
+    /**
+     * Queues a cursor to be killed on the next pass.
+     */
+    void kill( DBAddress host , long cursor ){
+        synchronized ( _pending ){
+            List<Long> l = _pending.get( host );
+            if ( l == null ){
+                l = new ArrayList<Long>();
+                _pending.put( host , l );
+            }
+            l.add( cursor );
+        }
+        _start();
+    }
+
+    /**
+     * Sends everything queued, one message per host.
+     * A host that can't be reached loses its batch, the server will time those cursors out on its own.
+     * @return how many cursors were killed
+     */
+    int flush(){
+        _drain();
+
+        Map<DBAddress,List<Long>> all;
+        synchronized ( _pending ){
+            if ( _pending.size() == 0 )
+                return 0;
+            all = new HashMap<DBAddress,List<Long>>( _pending );
+            _pending.clear();
+        }
+
+        int n = 0;
+        for ( Map.Entry<DBAddress,List<Long>> e : all.entrySet() ){
+            try {
+                _connector.killCursors( e.getKey() , e.getValue() );
+                n += e.getValue().size();
+                _killed.addAndGet( e.getValue().size() );
+            }
+            catch ( MongoException me ){
+                _logger.log( Level.WARNING , "can't kill " + e.getValue().size() + " cursors on " + e.getKey() , me );
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return number of cursors queued and not yet sent
+     */
+    int pending(){
+        int n = 0;
+        synchronized ( _pending ){
+            for ( List<Long> l : _pending.values() )
+                n += l.size();
+        }
+        return n;
+    }
+
+    /**
+     * @return number of open cursors being watched
+     */
+    int tracked(){
+        return _live.size();
+    }
+
+    /**
+     * @return total number of cursors killed
+     */
+    long killed(){
+        return _killed.get();
+    }
+
+    /**
+     * Stops the thread, sending anything queued first.
+     */
+    void close(){
+        Thread t;
+        synchronized ( this ){
+            _closed = true;
+            t = _thread;
+            _thread = null;
+        }
+        if ( t != null )
+            t.interrupt();
+        flush();
+    }
+
+    private void _start(){
+        if ( _thread != null )
+            return;
+
+        synchronized ( this ){
+            if ( _thread != null || _closed )
+                return;
+
+            _thread = new Thread( "MongoCursorReaper" ){
+                    public void run(){
+                        _loop();
+                    }
+                };
+            _thread.setDaemon( true );
+            _thread.start();
+        }
+    }
+
+    private void _loop(){
+        long next = System.currentTimeMillis() + _interval;
+        while ( ! _closed ){
+            try {
+                final long wait = next - System.currentTimeMillis();
+                if ( wait > 0 ){
+                    Reference<?> r = _queue.remove( wait );
+                    if ( r != null )
+                        _reclaimed( (Ref)r );
+                    continue;
+                }
+
+                flush();
+            }
+            catch ( InterruptedException ie ){
+                // close() or someone else wants us gone
+            }
+            catch ( Throwable t ){
+                _logger.log( Level.WARNING , "cursor reaper pass failed" , t );
+            }
+            next = System.currentTimeMillis() + _interval;
+        }
+    }
+
+    private void _drain(){
+        Reference<?> r;
+        while ( ( r = _queue.poll() ) != null )
+            _reclaimed( (Ref)r );
+    }
+
+    private void _reclaimed( Ref r ){
+        if ( _live.remove( r ) != null )
+            kill( r._host , r._cursor );
+    }
+
+    /**
+     * handle on a watched result.  holding it doesn't keep the result alive
+     */
+    class Ref extends PhantomReference<Object> {
+        Ref( Object result , DBAddress host , long cursor ){
+            super( result , _queue );
+            _host = host;
+            _cursor = cursor;
+        }
+
+        /**
+         * the cursor is finished with, either exhausted or killed some other way
+         */
+        void done(){
+            _live.remove( this );
+            clear();
+        }
+
+        final DBAddress _host;
+        final long _cursor;
+    }
+
+    final DBTCPConnector _connector;
+    final long _interval;
+
+    private final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+    private final ConcurrentHashMap<Ref,Boolean> _live = new ConcurrentHashMap<Ref,Boolean>();
+    private final Map<DBAddress,List<Long>> _pending = new HashMap<DBAddress,List<Long>>();
+    private final AtomicLong _killed = new AtomicLong();
+
+    private volatile Thread _thread;
+    private volatile boolean _closed = false;
+}
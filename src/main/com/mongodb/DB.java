@@ -34,6 +34,13 @@ public abstract class DB {
     public void requestStart(){}
     public void requestDone(){}
     public void requestEnsureConnection(){}
+
+    /**
+     * @return true if results without an object class should be decoded as BasicDBObjects.  see MongoOptions.basicDBObjects
+     */
+    boolean basicDBObjects(){
+        return false;
+    }
     
     /** Returns the collection represented by the string &lt;dbName&gt;.&lt;collectionName&gt;.
      * @param fullNameSpace the string
@@ -234,9 +241,9 @@ public abstract class DB {
     public void dropDatabase()
         throws MongoException {
 
-        BasicDBObject res = (BasicDBObject) command(new BasicDBObject("dropDatabase", 1));
+        DBObject res = command(new BasicDBObject("dropDatabase", 1));
 
-        if (res.getInt("ok") != 1) {
+        if (BasicDBObject._int(res, "ok") != 1) {
             throw new RuntimeException("Error - unable to drop database : " + res.toString());
         }
     }
@@ -252,13 +259,13 @@ public abstract class DB {
     public boolean authenticate(String username, char[] passwd )
         throws MongoException {
 
-        BasicDBObject res = (BasicDBObject) command(new BasicDBObject("getnonce", 1));
+        DBObject res = command(new BasicDBObject("getnonce", 1));
 
-        if (res.getInt("ok") != 1) {
+        if (BasicDBObject._int(res, "ok") != 1) {
             throw new MongoException("Error - unable to get nonce value for authentication.");
         }
 
-        String nonce = res.getString("nonce");
+        String nonce = BasicDBObject._string(res, "nonce");
         String key = nonce + username + _hash( username , passwd );
         
         BasicDBObject cmd = new BasicDBObject();
@@ -268,9 +275,9 @@ public abstract class DB {
         cmd.put("nonce", nonce);
         cmd.put("key", Util.hexMD5(key.getBytes()));
 
-        res = (BasicDBObject) command(cmd);
+        res = command(cmd);
 
-        return res.getInt("ok") == 1;
+        return BasicDBObject._int(res, "ok") == 1;
     }
 
     public void addUser( String username , char[] passwd ){
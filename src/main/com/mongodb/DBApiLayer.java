@@ -20,6 +20,7 @@ package com.mongodb;
 
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import com.mongodb.util.*;
@@ -31,10 +32,10 @@ import com.mongodb.util.*;
 public class DBApiLayer extends DB {
 
     static final boolean D = Boolean.getBoolean( "DEBUG.DB" );
-    /** The maximum number of cursors allowed */
-    static final int NUM_CURSORS_BEFORE_KILL = 100;
 
     static final boolean SHOW = Boolean.getBoolean( "DB.SHOW" );
+    /** the most a prefetching cursor grows its batch size to */
+    static final int MAX_PREFETCH_BATCH = 1 << 16;
 
     protected DBApiLayer( String root , DBConnector connector ){
         super( root );
@@ -43,30 +44,30 @@ public class DBApiLayer extends DB {
         _rootPlusDot = _root + ".";
 
         _connector = connector;
+        _basicDBObjects = connector instanceof DBTCPConnector && ((DBTCPConnector)connector)._mongo._options.basicDBObjects;
     }
 
-    protected void doInsert( ByteBuffer buf , WriteConcern concern )
+    boolean basicDBObjects(){
+        return _basicDBObjects;
+    }
+
+    protected void doInsert( ByteBuffer[] buf , WriteConcern concern )
         throws MongoException {
         _connector.say( 2002 , buf , concern );
     }
-    protected  void doDelete( ByteBuffer buf , WriteConcern concern ) 
+    protected  void doDelete( ByteBuffer[] buf , WriteConcern concern ) 
         throws MongoException {
         _connector.say( 2006 , buf , concern );
     }
-    protected void doUpdate( ByteBuffer buf , WriteConcern concern )
+    protected void doUpdate( ByteBuffer[] buf , WriteConcern concern )
         throws MongoException {
         _connector.say( 2001 , buf , concern );
     }
-    protected void doKillCursors( ByteBuffer buf )
-        throws MongoException {
-        _connector.say( 2007 , buf , WriteConcern.NORMAL );
-    }
-    
-    protected int doQuery( ByteBuffer out , ByteBuffer in )
+    protected int doQuery( ByteBuffer[] out , ByteDecoder in )
         throws MongoException {
         return _connector.call( 2004 , out , in );
     }
-    protected int doGetMore( ByteBuffer out , ByteBuffer in )
+    protected int doGetMore( ByteBuffer[] out , ByteDecoder in )
         throws MongoException {
         return _connector.call( 2005 , out , in );
     }
@@ -124,6 +125,25 @@ public class DBApiLayer extends DB {
         return getSisterDB( root ).getCollection( table );
     }
 
+    AsyncDBConnector _async(){
+        if ( ! ( _connector instanceof DBTCPConnector ) )
+            throw new UnsupportedOperationException( "async operations need a DBTCPConnector" );
+        return ((DBTCPConnector)_connector).getAsync();
+    }
+
+    void doBulk( List<List<DBMessage>> batches , WriteConcern concern , boolean ordered )
+        throws MongoException {
+        if ( ! ( _connector instanceof DBTCPConnector ) )
+            throw new UnsupportedOperationException( "bulk writes need a DBTCPConnector" );
+        ((DBTCPConnector)_connector).say( batches , concern , ordered );
+    }
+
+    CursorReaper _reaper(){
+        if ( ! ( _connector instanceof DBTCPConnector ) )
+            throw new UnsupportedOperationException( "cursors need a DBTCPConnector" );
+        return ((DBTCPConnector)_connector).getCursorReaper();
+    }
+
     public DB getSisterDB( String dbName ){
         return new DBApiLayer( dbName , _connector );
     }
@@ -132,6 +152,7 @@ public class DBApiLayer extends DB {
         MyCollection( String name ){
             super( DBApiLayer.this , name );
             _fullNameSpace = _root + "." + name;
+            _nsBytes = _encodeNS( _fullNameSpace );
         }
 
         public void doapply( DBObject o ){
@@ -174,6 +195,7 @@ public class DBApiLayer extends DB {
             }
 
             if ( shouldApply ){
+                _ensureIds( arr );
                 for (DBObject o : arr) {
                     apply( o );
                     Object id = o.get( "_id" );
@@ -184,8 +206,8 @@ public class DBApiLayer extends DB {
 
             ByteEncoder encoder = ByteEncoder.get();
 
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _fullNameSpace );
+            encoder._putInt( 0 ); // reserved
+            encoder._putBytes( _nsBytes );
 
             
             for (DBObject o : arr) {
@@ -198,12 +220,12 @@ public class DBApiLayer extends DB {
                 	try 
                 	{
                 		encoder.flip();
-                        doInsert( encoder._buf , getWriteConcern() );
+                        doInsert( encoder.buffers() , getWriteConcern() );
                         encoder.done();
                         encoder = ByteEncoder.get();
                                                 
-                        encoder._buf.putInt( 0 ); // reserved
-                        encoder._put( _fullNameSpace );
+                        encoder._putInt( 0 ); // reserved
+                        encoder._putBytes( _nsBytes );
                         encoder.putObject(o);
                     }
                 	catch(RuntimeException et)
@@ -217,7 +239,7 @@ public class DBApiLayer extends DB {
             encoder.flip();
 
             try {
-                doInsert( encoder._buf , getWriteConcern() );
+                doInsert( encoder.buffers() , getWriteConcern() );
             }
             finally {
                 encoder.done();
@@ -226,80 +248,63 @@ public class DBApiLayer extends DB {
             return arr;
         }
 
+        /**
+         * gives every object without an _id one, from a single block of ids
+         */
+        private void _ensureIds( DBObject[] arr ){
+            int missing = 0;
+            for ( DBObject o : arr )
+                if ( o.get( "_id" ) == null )
+                    missing++;
+            if ( missing < 2 )
+                return;
+
+            ObjectId[] ids = ObjectId.generate( missing );
+            int i = 0;
+            for ( DBObject o : arr )
+                if ( o.get( "_id" ) == null )
+                    o.put( "_id" , ids[i++] );
+        }
+
         public void remove( DBObject o )
             throws MongoException {
 
             if ( SHOW ) System.out.println( "remove: " + _fullNameSpace + " " + JSON.serialize( o ) );
 
+            ByteEncoder encoder = _encodeRemove( o );
+            try {
+                doDelete( encoder.buffers() , getWriteConcern() );
+            }
+            finally {
+                encoder.done();
+            }
+        }
+
+        private ByteEncoder _encodeRemove( DBObject o ){
             ByteEncoder encoder = ByteEncoder.get();
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _fullNameSpace );
+            encoder._putInt( 0 ); // reserved
+            encoder._putBytes( _nsBytes );
 
             Collection<String> keys = o.keySet();
 
             if ( keys.size() == 1 &&
                  keys.iterator().next().equals( "_id" ) &&
                  o.get( keys.iterator().next() ) instanceof ObjectId )
-                encoder._buf.putInt( 1 );
+                encoder._putInt( 1 );
             else
-                encoder._buf.putInt( 0 );
+                encoder._putInt( 0 );
 
             encoder.putObject( o );
             encoder.flip();
-
-            try {
-                doDelete( encoder._buf , getWriteConcern() );
-            }
-            finally {
-                encoder.done();
-            }
-        }
-
-        void _cleanCursors()
-            throws MongoException {
-            if ( _deadCursorIds.size() == 0 )
-                return;
-
-            if ( _deadCursorIds.size() % 20 != 0 && _deadCursorIds.size() < NUM_CURSORS_BEFORE_KILL )
-                return;
-
-            List<Long> l = _deadCursorIds;
-            _deadCursorIds = new Vector<Long>();
-
-            Bytes.LOGGER.info( "trying to kill cursors : " + l.size() );
-
-            try {
-                killCursors( l );
-            }
-            catch ( Throwable t ){
-                Bytes.LOGGER.log( Level.WARNING , "can't clean cursors" , t );
-                _deadCursorIds.addAll( l );
-            }
+            return encoder;
         }
 
-        void killCursors( List<Long> all )
+        public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize )
             throws MongoException {
-            if ( all == null || all.size() == 0 )
-                return;
-
-            ByteEncoder encoder = ByteEncoder.get();
-            encoder._buf.putInt( 0 ); // reserved
-
-            encoder._buf.putInt( all.size() );
-
-            for (Long l : all) {
-                encoder._buf.putLong(l);
-            }
-
-            try {
-                doKillCursors( encoder._buf );
-            }
-            finally {
-                encoder.done();
-            }
+            return find( ref , fields , numToSkip , batchSize , false );
         }
 
-        public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize )
+        Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , boolean lazy )
             throws MongoException {
             
             if ( ref == null )
@@ -307,27 +312,28 @@ public class DBApiLayer extends DB {
             
             if ( SHOW ) System.out.println( "find: " + _fullNameSpace + " " + JSON.serialize( ref ) );
 
-            _cleanCursors();
-
-            ByteEncoder encoder = ByteEncoder.get();
+            return find( _encodeQuery( ref , fields , numToSkip , batchSize ) , batchSize , lazy );
+        }
 
-            encoder._buf.putInt( 0 ); // options
-            encoder._put( _fullNameSpace );
+        /** for PreparedQuery */
+        Iterator<DBObject> find( ByteEncoder encoder , int batchSize )
+            throws MongoException {
+            return find( encoder , batchSize , false );
+        }
 
-            encoder._buf.putInt( numToSkip );
-            encoder._buf.putInt( batchSize );
-            encoder.putObject( ref ); // ref
-            if ( fields != null )
-                encoder.putObject( fields ); // fields to return
-            encoder.flip();
+        /**
+         * runs a query that's already been encoded and flipped, and gives the encoder back
+         */
+        private Iterator<DBObject> find( ByteEncoder encoder , int batchSize , boolean lazy )
+            throws MongoException {
 
             ByteDecoder decoder = ByteDecoder.get( DBApiLayer.this , this );
 
             try {
-                int len = doQuery( encoder._buf , decoder._buf );
+                int len = doQuery( encoder.buffers() , decoder );
                 decoder.doneReading( len );
 
-                SingleResult res = new SingleResult( _fullNameSpace , decoder);
+                SingleResult res = new SingleResult( _fullNameSpace , decoder , lazy );
 
                 if ( res._lst.size() == 0 )
                     return null;
@@ -346,33 +352,181 @@ public class DBApiLayer extends DB {
             }
         }
 
+        private ByteEncoder _encodeQuery( DBObject ref , DBObject fields , int numToSkip , int batchSize ){
+            ByteEncoder encoder = ByteEncoder.get();
+
+            encoder._putInt( 0 ); // options
+            encoder._putBytes( _nsBytes );
+
+            encoder._putInt( numToSkip );
+            encoder._putInt( batchSize );
+            encoder.putObject( ref ); // ref
+            if ( fields != null )
+                encoder.putObject( fields ); // fields to return
+            encoder.flip();
+            return encoder;
+        }
+
         public DBObject update( DBObject query , DBObject o , boolean upsert , boolean multi )
             throws MongoException {
 
             if ( SHOW ) System.out.println( "update: " + _fullNameSpace + " " + JSON.serialize( query ) );
 
+            ByteEncoder encoder = _encodeUpdate( query , o , upsert , multi );
+            try {
+                doUpdate( encoder.buffers() , getWriteConcern() );
+            }
+            finally {
+                encoder.done();
+            }
+
+            return o;
+        }
+
+        private ByteEncoder _encodeUpdate( DBObject query , DBObject o , boolean upsert , boolean multi ){
             ByteEncoder encoder = ByteEncoder.get();
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _fullNameSpace );
+            encoder._putInt( 0 ); // reserved
+            encoder._putBytes( _nsBytes );
 
             int flags = 0;
             if ( upsert ) flags |= 1;
             if ( multi ) flags |= 2;
-            encoder._buf.putInt( flags );
+            encoder._putInt( flags );
 
             encoder.putObject( query );
             encoder.putObject( o );
 
             encoder.flip();
+            return encoder;
+        }
+
+        // ---- async ----
+
+        public Future<Iterator<DBObject>> findAsync( DBObject ref , DBObject fields , int numToSkip , final int batchSize )
+            throws MongoException {
 
+            if ( ref == null )
+                ref = new BasicDBObject();
+
+            if ( SHOW ) System.out.println( "findAsync: " + _fullNameSpace + " " + JSON.serialize( ref ) );
+
+            AsyncDBConnector.Response r;
+            ByteEncoder encoder = _encodeQuery( ref , fields , numToSkip , batchSize );
             try {
-                doUpdate( encoder._buf , getWriteConcern() );
+                r = _async().call( 2004 , AsyncDBConnector.copy( encoder ) );
             }
             finally {
                 encoder.done();
             }
 
-            return o;
+            return new AsyncDBConnector.Reply<Iterator<DBObject>>( r , false ){
+                Iterator<DBObject> convert( DBMessage m ){
+                    SingleResult res = new SingleResult( _fullNameSpace , _decoder( m ) , false );
+
+                    if ( res._lst.size() == 1 ){
+                        Object err = res._lst.get(0).get( "$err" );
+                        if ( err != null )
+                            throw new MongoException( "db error [" + err + "]" );
+                    }
+
+                    return new Result( MyCollection.this , res , batchSize );
+                }
+            };
+        }
+
+        public Future<DBObject> insertAsync( DBObject ... arr )
+            throws MongoException {
+
+            for ( DBObject o : arr ){
+                apply( o );
+                Object id = o.get( "_id" );
+                if ( id instanceof ObjectId )
+                    ((ObjectId)id)._new = false;
+            }
+
+            List<ByteBuffer> msgs = new ArrayList<ByteBuffer>();
+            ByteEncoder encoder = _startInsert();
+            try {
+                for ( DBObject o : arr ){
+                    try {
+                        encoder.putObject( o );
+                    }
+                    catch ( BufferOverflowException e ){
+                        encoder.flip();
+                        msgs.add( AsyncDBConnector.copy( encoder ) );
+                        encoder.done();
+                        encoder = null;
+                        encoder = _startInsert();
+                        encoder.putObject( o );
+                    }
+                }
+                encoder.flip();
+                msgs.add( AsyncDBConnector.copy( encoder ) );
+            }
+            finally {
+                if ( encoder != null )
+                    encoder.done();
+            }
+
+            return _asyncWrite( 2002 , msgs );
+        }
+
+        public Future<DBObject> updateAsync( DBObject query , DBObject o , boolean upsert , boolean multi )
+            throws MongoException {
+            ByteEncoder encoder = _encodeUpdate( query , o , upsert , multi );
+            try {
+                return _asyncWrite( 2001 , Collections.singletonList( AsyncDBConnector.copy( encoder ) ) );
+            }
+            finally {
+                encoder.done();
+            }
+        }
+
+        public Future<DBObject> removeAsync( DBObject o )
+            throws MongoException {
+            ByteEncoder encoder = _encodeRemove( o );
+            try {
+                return _asyncWrite( 2006 , Collections.singletonList( AsyncDBConnector.copy( encoder ) ) );
+            }
+            finally {
+                encoder.done();
+            }
+        }
+
+        private ByteEncoder _startInsert(){
+            ByteEncoder encoder = ByteEncoder.get();
+            encoder._putInt( 0 ); // reserved
+            encoder._putBytes( _nsBytes );
+            return encoder;
+        }
+
+        private Future<DBObject> _asyncWrite( int op , List<ByteBuffer> msgs ){
+            final WriteConcern concern = getWriteConcern();
+            final boolean strict = concern == WriteConcern.STRICT;
+
+            AsyncDBConnector.Response r = _async().say( op , msgs , strict );
+
+            return new AsyncDBConnector.Reply<DBObject>( r , concern == WriteConcern.NONE ){
+                DBObject convert( DBMessage m ){
+                    if ( ! strict )
+                        return null;
+
+                    SingleResult res = new SingleResult( "admin.$cmd" , _decoder( m ) , false );
+                    if ( res._lst.size() == 0 )
+                        throw new MongoException( "no result for getlasterror" );
+
+                    DBObject e = res._lst.get( 0 );
+                    DBTCPConnector._checkLastError( e );
+                    return e;
+                }
+            };
+        }
+
+        private ByteDecoder _decoder( DBMessage m ){
+            ByteDecoder decoder = new ByteDecoder( m.getData() );
+            decoder._base = DBApiLayer.this;
+            decoder._collection = this;
+            return decoder;
         }
 
         public void ensureIndex( DBObject keys , String name )
@@ -394,6 +548,22 @@ public class DBApiLayer extends DB {
         }
 
         final String _fullNameSpace;
+        /** _fullNameSpace encoded once, for every message that starts with it */
+        final byte[] _nsBytes;
+    }
+
+    /**
+     * @return ns the way it goes in a message, utf-8 and a 0
+     */
+    static byte[] _encodeNS( String ns ){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder._put( ns );
+            return encoder.getBytes();
+        }
+        finally {
+            encoder.done();
+        }
     }
 
     static class QueryHeader {
@@ -406,7 +576,7 @@ public class DBApiLayer extends DB {
             _reserved = buf.getInt( start );
             _cursor = buf.getLong( start + 4 );
             _startingFrom = buf.getInt( start + 12 );
-            _num = buf.getInt( 16 );
+            _num = buf.getInt( start + 16 );
         }
 
         int headerSize(){
@@ -425,11 +595,12 @@ public class DBApiLayer extends DB {
 
     class SingleResult extends QueryHeader {
 
-        SingleResult( String fullNameSpace , ByteDecoder decoder){
+        SingleResult( String fullNameSpace , ByteDecoder decoder , boolean lazy ){
             super( decoder._buf );
 
             _bytes = decoder.remaining();
             _fullNameSpace = fullNameSpace;
+            _lazy = lazy;
             _shortNameSpace = _removeRoot( _fullNameSpace );
             skipPastHeader( decoder._buf );
 
@@ -440,13 +611,28 @@ public class DBApiLayer extends DB {
             else
                 _lst = new ArrayList<DBObject>( _num );
 
-            if ( _num > 0 ){
+            if ( _num > 0 && lazy ){
+                // the documents keep the reply bytes, so they can't stay in the pooled decoder
+                final ByteBuffer buf = decoder.detach();
+                int pos = buf.position();
+                int num = 0;
+
+                while ( pos < buf.limit() && num < _num ){
+                    _lst.add( new LazyDBObject( buf , pos , DBApiLayer.this , _shortNameSpace ) );
+                    pos += buf.getInt( pos );
+                    num++;
+                }
+            }
+            else if ( _num > 0 ){
                 int num = 0;
 
                 while( decoder.more() && num < _num ){
                     final DBObject o = decoder.readObject();
 
-                    o.put( "_ns" , _shortNameSpace );
+                    if ( o instanceof CompactDBObject )
+                        ((CompactDBObject)o)._setNS( _shortNameSpace );
+                    else
+                        o.put( "_ns" , _shortNameSpace );
                     _lst.add( o );
                     num++;
 
@@ -470,6 +656,7 @@ public class DBApiLayer extends DB {
         final long _bytes;
         final String _fullNameSpace;
         final String _shortNameSpace;
+        final boolean _lazy;
 
         final List<DBObject> _lst;
     }
@@ -480,18 +667,66 @@ public class DBApiLayer extends DB {
             init( res );
             _collection = coll;
             _numToReturn = numToReturn;
+            _batch = numToReturn;
+            if ( res._cursor > 0 )
+                _open = _reaper().track( this , res._cursor );
         }
 
         private void init( SingleResult res ){
+            _received += res._lst.size();
             _totalBytes += res._bytes;
             _curResult = res;
             _cur = res._lst.iterator();
             _sizes.add( res._lst.size() );
         }
 
+        /**
+         * Keeps up to depth batches fetched ahead of the caller, through the async connector.
+         * A getMore only goes out once the one before it came back with the cursor still open.
+         * With adapt and a batch size, the batch size doubles whenever the caller had to wait for a batch,
+         * which means batches are read faster than they're fetched, and halves back towards where it
+         * started whenever every prefetched batch was already there.
+         */
+        void prefetch( int depth , boolean adapt ){
+            if ( depth < 1 )
+                throw new IllegalArgumentException( "prefetch depth has to be >= 1" );
+            _ahead = new LinkedList<AsyncDBConnector.Response>();
+            _depth = depth;
+            _adapt = adapt && _numToReturn > 0;
+            _fill();
+        }
+
+        /**
+         * The caller won't read past n documents, so getMores stop asking for more than that.
+         */
+        void limit( int n ){
+            _limit = n;
+        }
+
+        /**
+         * Ends iteration here.  If the server still has the cursor open, it's handed to the reaper to kill.
+         */
+        void close(){
+            if ( _closed )
+                return;
+            _closed = true;
+            _cur = EMPTY.iterator();
+            _ahead = null;
+            if ( _open != null ){
+                _reaper().kill( _open._host , _open._cursor );
+                _exhausted();
+            }
+        }
+
         public DBObject next(){
-            if ( _cur.hasNext() )
+            if ( _closed )
+                throw new NoSuchElementException( "cursor closed" );
+
+            if ( _cur.hasNext() ){
+                if ( _ahead != null )
+                    _fill();
                 return _cur.next();
+            }
 
             if ( ! _curResult.hasGetMore() )
                 throw new RuntimeException( "no more" );
@@ -504,6 +739,9 @@ public class DBApiLayer extends DB {
             if ( _cur.hasNext() )
                 return true;
 
+            if ( _closed )
+                return false;
+
             if ( ! _curResult.hasGetMore() )
                 return false;
 
@@ -516,23 +754,23 @@ public class DBApiLayer extends DB {
             if ( _curResult._cursor <= 0 )
                 throw new RuntimeException( "can't advance a cursor <= 0" );
 
-            ByteEncoder encoder = ByteEncoder.get();
-
-            encoder._buf.putInt( 0 ); // reserved
-            encoder._put( _curResult._fullNameSpace );
-            encoder._buf.putInt( _numToReturn ); // num to return
-            encoder._buf.putLong( _curResult._cursor );
-            encoder.flip();
+            if ( _ahead != null ){
+                _advancePrefetched();
+                return;
+            }
 
+            ByteEncoder encoder = _encodeGetMore( _curResult._cursor );
             ByteDecoder decoder = ByteDecoder.get( DBApiLayer.this , _collection );
 
             try {
-                int len = doGetMore( encoder._buf , decoder._buf );
+                int len = doGetMore( encoder.buffers() , decoder );
                 decoder.doneReading( len );
                 _numGetMores++;
 
-                SingleResult res = new SingleResult( _curResult._fullNameSpace , decoder);
+                SingleResult res = new SingleResult( _curResult._fullNameSpace , decoder , _curResult._lazy );
                 init( res );
+                if ( res._cursor <= 0 )
+                    _exhausted();
             }
             catch ( MongoException me ){
                 throw new MongoInternalException( "can't do getmore" , me );
@@ -543,6 +781,97 @@ public class DBApiLayer extends DB {
             }
         }
 
+        private void _advancePrefetched(){
+            _fill(); // in case nothing is in flight yet
+
+            final boolean allThere = _ahead.size() == _depth && _ahead.getLast().isDone();
+            final AsyncDBConnector.Response r = _ahead.removeFirst();
+            final boolean waited = ! r.isDone();
+
+            DBMessage m;
+            try {
+                m = r.get();
+            }
+            catch ( InterruptedException ie ){
+                throw new MongoInternalException( "interrupted waiting for getmore" , ie );
+            }
+            catch ( ExecutionException ee ){
+                throw new MongoInternalException( "can't do getmore" , ee.getCause() );
+            }
+            _numGetMores++;
+
+            SingleResult res = new SingleResult( _curResult._fullNameSpace , _collection._decoder( m ) , _curResult._lazy );
+            init( res );
+            if ( res._cursor <= 0 )
+                _exhausted();
+
+            if ( _adapt ){
+                if ( waited )
+                    _batch = Math.min( _batch * 2 , MAX_PREFETCH_BATCH );
+                else if ( allThere )
+                    _batch = Math.max( _numToReturn , _batch / 2 );
+            }
+
+            _fill();
+        }
+
+        /**
+         * sends getMores until depth are queued, or the newest one hasn't come back yet, or the cursor is done
+         */
+        private void _fill(){
+            while ( ! _ended && _ahead.size() < _depth && ( _limit <= 0 || _received < _limit ) ){
+                QueryHeader newest = _curResult;
+                if ( _ahead.size() > 0 ){
+                    AsyncDBConnector.Response last = _ahead.getLast();
+                    if ( ! last.isDone() )
+                        return;
+                    try {
+                        newest = new QueryHeader( last.get().getData() , 0 );
+                    }
+                    catch ( Exception e ){
+                        return; // _advancePrefetched will throw when it gets there
+                    }
+                }
+
+                if ( newest._num <= 0 || newest._cursor <= 0 ){
+                    _ended = true;
+                    return;
+                }
+
+                ByteEncoder encoder = _encodeGetMore( newest._cursor );
+                try {
+                    _ahead.add( _async().call( 2005 , AsyncDBConnector.copy( encoder ) ) );
+                }
+                finally {
+                    encoder.done();
+                }
+            }
+        }
+
+        private ByteEncoder _encodeGetMore( long cursor ){
+            ByteEncoder encoder = ByteEncoder.get();
+
+            encoder._putInt( 0 ); // reserved
+            encoder._putBytes( _collection._nsBytes );
+            int n = _batch;
+            if ( _limit > 0 ){
+                final int left = Math.max( 1 , _limit - _received );
+                n = n == 0 ? left : Math.min( n , left );
+            }
+
+            encoder._putInt( n ); // num to return
+            encoder._putLong( cursor );
+            encoder.flip();
+            return encoder;
+        }
+
+        private void _exhausted(){
+            if ( _open != null ){
+                _open.done();
+                _open = null;
+            }
+        }
+
         public void remove(){
             throw new RuntimeException( "can't remove this way" );
         }
@@ -551,12 +880,6 @@ public class DBApiLayer extends DB {
             return "DBCursor";
         }
 
-        protected void finalize() throws Throwable {
-            if ( _curResult != null && _curResult._cursor > 0 )
-                _deadCursorIds.add( _curResult._cursor );
-            super.finalize();
-        }
-
         public long totalBytes(){
             return _totalBytes;
         }
@@ -574,6 +897,18 @@ public class DBApiLayer extends DB {
         final MyCollection _collection;
         final int _numToReturn;
         
+        /** set while the server still has our cursor open, the reaper kills it if this result is collected first */
+        private CursorReaper.Ref _open;
+        private int _batch;
+        private int _limit = 0;
+        private int _received = 0;
+        private boolean _closed = false;
+
+        /** getMores sent ahead of the caller, oldest first.  null unless prefetching */
+        private LinkedList<AsyncDBConnector.Response> _ahead;
+        private int _depth;
+        private boolean _adapt;
+        private boolean _ended = false;
         private long _totalBytes = 0;
         private int _numGetMores = 0;
         private List<Integer> _sizes = new ArrayList<Integer>();
@@ -582,9 +917,9 @@ public class DBApiLayer extends DB {
     final String _root;
     final String _rootPlusDot;
     final DBConnector _connector;
+    final boolean _basicDBObjects;
     final Map<String,MyCollection> _collections = Collections.synchronizedMap( new HashMap<String,MyCollection>() );
     final Map<String,DBApiLayer> _sisters = Collections.synchronizedMap( new HashMap<String,DBApiLayer>() );
-    List<Long> _deadCursorIds = new Vector<Long>();
 
     static final List<DBObject> EMPTY = Collections.unmodifiableList( new LinkedList<DBObject>() );
 }
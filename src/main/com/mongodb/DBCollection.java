@@ -18,7 +18,9 @@
 
 package com.mongodb;
 
+import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** This class provides a skeleton implementation of a database collection.  
  * <p>A typical invocation sequence is thus
@@ -92,6 +94,15 @@ public abstract class DBCollection {
      */
     public abstract Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize ) throws MongoException ;
 
+    /** Finds objects, optionally as read-only <code>LazyDBObject</code>s that decode fields as they're read.
+     * Collections that can't do lazy decoding return regular objects.
+     * @param lazy whether to return <code>LazyDBObject</code>s
+     * @return the objects, if found
+     */
+    Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize , boolean lazy ) throws MongoException {
+        return find( ref , fields , numToSkip , batchSize );
+    }
+
     /** Ensures an index on this collection (that is, the index will be created if it does not exist).
      * ensureIndex is optimized and is inexpensive if the index already exists.
      * @param keys fields to use for index
@@ -106,6 +117,101 @@ public abstract class DBCollection {
      */
     public abstract void ensureIndex( DBObject keys , String name , boolean unique ) throws MongoException ;
 
+    // ---- async ----
+    // these run the synchronous call and hand back a finished future, collections that can do better override them
+
+    /**
+     * Queries without tying up the calling thread while the db answers.
+     * Further batches are fetched synchronously as the iterator is used.
+     * @param ref query used to search
+     * @param fields the fields of matching objects to return
+     * @param numToSkip will not return the first <tt>numToSkip</tt> matches
+     * @param batchSize same as for find
+     * @return future for the results, empty if nothing matched
+     */
+    public Future<Iterator<DBObject>> findAsync( final DBObject ref , final DBObject fields , final int numToSkip , final int batchSize ) throws MongoException {
+        return _now( new Callable<Iterator<DBObject>>(){
+                public Iterator<DBObject> call(){
+                    Iterator<DBObject> i = find( ref , fields , numToSkip , batchSize );
+                    if ( i == null )
+                        return Collections.<DBObject>emptyList().iterator();
+                    return i;
+                }
+            } );
+    }
+
+    /**
+     * Inserts documents without waiting for the db.
+     * @param arr documents to save
+     * @return future for the getlasterror result if the write concern is STRICT, otherwise for null once the documents are sent
+     */
+    public Future<DBObject> insertAsync( final DBObject ... arr ) throws MongoException {
+        return _writeNow( new Runnable(){
+                public void run(){
+                    insert( arr );
+                }
+            } );
+    }
+
+    /**
+     * Performs an update without waiting for the db.
+     * @return future for the getlasterror result if the write concern is STRICT, otherwise for null once the update is sent
+     */
+    public Future<DBObject> updateAsync( final DBObject q , final DBObject o , final boolean upsert , final boolean multi ) throws MongoException {
+        return _writeNow( new Runnable(){
+                public void run(){
+                    update( q , o , upsert , multi );
+                }
+            } );
+    }
+
+    /**
+     * Removes objects without waiting for the db.
+     * @return future for the getlasterror result if the write concern is STRICT, otherwise for null once the remove is sent
+     */
+    public Future<DBObject> removeAsync( final DBObject o ) throws MongoException {
+        return _writeNow( new Runnable(){
+                public void run(){
+                    remove( o );
+                }
+            } );
+    }
+
+    /**
+     * runs a write here, then with STRICT asks for getlasterror on the same connection and throws if it found one
+     */
+    private Future<DBObject> _writeNow( final Runnable write ){
+        return _now( new Callable<DBObject>(){
+                public DBObject call(){
+                    _db.requestStart();
+                    try {
+                        write.run();
+                        if ( getWriteConcern() != DB.WriteConcern.STRICT )
+                            return null;
+                        DBObject e = _db.getLastError();
+                        DBTCPConnector._checkLastError( e );
+                        return e;
+                    }
+                    finally {
+                        _db.requestDone();
+                    }
+                }
+            } );
+    }
+
+    /**
+     * @return a future that's already done, an exception comes out of get() as it would from a real async call
+     */
+    private static <T> Future<T> _now( Callable<T> c ){
+        FutureTask<T> f = new FutureTask<T>( c );
+        f.run();
+        return f;
+    }
+
+    public Future<Iterator<DBObject>> findAsync( DBObject ref ) throws MongoException {
+        return findAsync( ref , null , 0 , 0 );
+    }
+
     // ------
 
     /**
@@ -283,6 +389,131 @@ public abstract class DBCollection {
         return new DBCursor( this, new BasicDBObject(), null );
     }
 
+    /**
+     * Encodes a query once, so running it again only encodes what changes.
+     * The fields of query named in params are left out, and filled in from the values passed to each call.
+     * Only top level fields can be params, though a param's value can be a whole condition like { $gt : 5 }.
+     * A prepared query on the "$cmd" collection is a prepared command.
+     * @param query query with every field, the values of params don't matter
+     * @param fields fields to return, or null for all of them
+     * @param params names of the top level fields that change from call to call
+     */
+    public PreparedQuery prepareQuery( DBObject query , DBObject fields , String ... params ){
+        if ( ! ( this instanceof DBApiLayer.MyCollection ) )
+            throw new UnsupportedOperationException( "prepared queries need a DBApiLayer" );
+        return new PreparedQuery( (DBApiLayer.MyCollection)this , query , fields , params );
+    }
+
+    /**
+     * Starts a list of writes that are sent together and run in the order they were added,
+     * stopping at the first one that fails.
+     * @return an empty bulk operation on this collection
+     */
+    public BulkWriteOperation initializeOrderedBulkOperation(){
+        return new BulkWriteOperation( this , true );
+    }
+
+    /**
+     * Starts a list of writes that are sent together, where a failed one doesn't stop the rest.
+     * @return an empty bulk operation on this collection
+     */
+    public BulkWriteOperation initializeUnorderedBulkOperation(){
+        return new BulkWriteOperation( this , false );
+    }
+
+    /**
+     * Splits a query into disjoint ranges of <code>_id</code> so a full scan can be read
+     * by several threads at once.  Each cursor is meant to be iterated on its own thread,
+     * which gets its own pooled connection, and together they return what
+     * <code>find( query )</code> would, in no particular order.
+     * When every <code>_id</code> is an <code>ObjectId</code>, the ranges are equal slices of the
+     * time between the oldest and newest ones.  Otherwise split points are sampled from the
+     * matching documents in <code>_id</code> order, which costs one skip query per split.
+     * If the query already has a condition on <code>_id</code>, or the <code>_id</code>s are of
+     * more than one type, there's no splitting and the list has one cursor.
+     * @param query query to run, null for everything
+     * @param numPartitions how many cursors to aim for
+     * @return between 1 and numPartitions cursors
+     */
+    public List<DBCursor> parallelScan( DBObject query , int numPartitions )
+        throws MongoException {
+        if ( numPartitions < 1 )
+            throw new IllegalArgumentException( "numPartitions has to be >= 1" );
+        if ( query == null )
+            query = new BasicDBObject();
+
+        List<DBCursor> all = new ArrayList<DBCursor>();
+        List<Object> splits = numPartitions == 1 || query.containsField( "_id" ) ? null : _splitPoints( query , numPartitions );
+        if ( splits == null || splits.size() == 0 ){
+            all.add( find( query ) );
+            return all;
+        }
+
+        for ( int i=0; i<=splits.size(); i++ ){
+            BasicDBObject range = new BasicDBObject();
+            if ( i > 0 )
+                range.put( "$gte" , splits.get( i - 1 ) );
+            if ( i < splits.size() )
+                range.put( "$lt" , splits.get( i ) );
+
+            BasicDBObject q = new BasicDBObject();
+            q.putAll( query );
+            q.put( "_id" , range );
+            all.add( find( q ) );
+        }
+        return all;
+    }
+
+    /**
+     * @return ascending _ids that cut query into about n pieces, or null if it can't be split
+     */
+    private List<Object> _splitPoints( DBObject query , int n )
+        throws MongoException {
+        final DBObject idOnly = new BasicDBObject( "_id" , 1 );
+        final DBObject asc = new BasicDBObject( "_id" , 1 );
+        final DBObject desc = new BasicDBObject( "_id" , -1 );
+
+        DBCursor first = find( query , idOnly ).sort( asc ).limit( 1 );
+        DBCursor last = find( query , idOnly ).sort( desc ).limit( 1 );
+        if ( ! first.hasNext() || ! last.hasNext() )
+            return null;
+        final Object min = first.next().get( "_id" );
+        final Object max = last.next().get( "_id" );
+
+        // ranges only match _ids of the type of their bounds
+        if ( min == null || max == null || min.getClass() != max.getClass() )
+            return null;
+
+        List<Object> splits = new ArrayList<Object>();
+
+        if ( min instanceof ObjectId ){
+            final long start = ((ObjectId)min).getTime() / 1000;
+            final long span = ((ObjectId)max).getTime() / 1000 - start + 1;
+            if ( span >= n ){
+                for ( int i=1; i<n; i++ ){
+                    // smallest id with that timestamp
+                    int seconds = (int)( start + ( span * i ) / n );
+                    splits.add( new ObjectId( ObjectId._flip( seconds ) , 0 , 0 ) );
+                }
+                return splits;
+            }
+        }
+
+        final long count = getCount( query );
+        for ( int i=1; i<n; i++ ){
+            final long skip = ( count * i ) / n;
+            if ( skip == 0 )
+                continue;
+            DBCursor c = find( query , idOnly ).sort( asc ).skip( (int)skip ).limit( 1 );
+            if ( ! c.hasNext() )
+                break;
+            Object id = c.next().get( "_id" );
+            if ( splits.size() == 0 || ! id.equals( splits.get( splits.size() - 1 ) ) )
+                splits.add( id );
+        }
+        return splits;
+    }
+
     /** 
      * Returns a single object from this collection.
      * @return the object found, or <code>null</code> if the collection is empty
@@ -386,9 +617,9 @@ public abstract class DBCollection {
             .add( "deleteIndexes" , getName() )
             .add( "index" , name )
             .get();
-        BasicDBObject res = (BasicDBObject)_db.command( cmd );
-        if ( res.getInt( "ok" , 0 ) != 1 ){
-            if ( res.getString( "errmsg" ).equals( "ns not found" ) )
+        DBObject res = _db.command( cmd );
+        if ( BasicDBObject._int( res , "ok" , 0 ) != 1 ){
+            if ( BasicDBObject._string( res , "errmsg" ).equals( "ns not found" ) )
                 return;
             throw new MongoException( "error dropping indexes : " + res );
         }
@@ -400,9 +631,9 @@ public abstract class DBCollection {
      */
     public void drop()
         throws MongoException {
-        BasicDBObject res = (BasicDBObject)_db.command( BasicDBObjectBuilder.start().add( "drop" , getName() ).get() );
-        if ( res.getInt( "ok" , 0 ) != 1 ){
-            if ( res.getString( "errmsg" ).equals( "ns not found" ) )
+        DBObject res = _db.command( BasicDBObjectBuilder.start().add( "drop" , getName() ).get() );
+        if ( BasicDBObject._int( res , "ok" , 0 ) != 1 ){
+            if ( BasicDBObject._string( res , "errmsg" ).equals( "ns not found" ) )
                 return;
             throw new MongoException( "error dropping : " + res );
         }
@@ -447,10 +678,10 @@ public abstract class DBCollection {
             cmd.put("fields", fields);
         }
 
-        BasicDBObject res = (BasicDBObject)_db.command(cmd);
+        DBObject res = _db.command(cmd);
 
-        if (res.getInt("ok" , 0 ) != 1 ){
-            String errmsg = res.getString( "errmsg" );
+        if (BasicDBObject._int(res, "ok" , 0 ) != 1 ){
+            String errmsg = BasicDBObject._string( res , "errmsg" );
             if ( errmsg.equals("ns does not exist") || 
                  errmsg.equals("ns missing" ) ){
                 // for now, return 0 - lets pretend it does exist
@@ -459,7 +690,7 @@ public abstract class DBCollection {
             throw new MongoException( "error counting : " + res );
         }
 
-        return res.getLong("n");
+        return BasicDBObject._long( res , "n" );
     }
 
     /**
@@ -551,8 +782,8 @@ public abstract class DBCollection {
         throws MongoException {
         if ( command.get( "mapreduce" ) == null )
             throw new IllegalArgumentException( "need mapreduce arg" );
-        BasicDBObject res = (BasicDBObject)(_db.command( command ));
-        if ( res.getInt("ok") != 1 )
+        DBObject res = _db.command( command );
+        if ( BasicDBObject._int( res , "ok" ) != 1 )
             throw new MongoException( "mapreduce failed: " + res );
         return new MapReduceOutput( this , res );
     }
@@ -824,11 +1055,12 @@ public abstract class DBCollection {
 
     /** Set a default class for objects in this collection
      * @param c the class
-     * @throws IllegalArgumentException if <code>c</code> is not a DBObject
+     * @throws IllegalArgumentException if <code>c</code> is not a DBObject or doesn't have a no-arg constructor
      */
     public void setObjectClass( Class c ){
         if ( ! DBObject.class.isAssignableFrom( c ) )
             throw new IllegalArgumentException( c.getName() + " is not a DBObject" );
+        _constructors.put( c , _needConstructor( c ) );
         _objectClass = c;
         if ( ReflectionDBObject.class.isAssignableFrom( c ) )
             _wrapper = ReflectionDBObject.getWrapper( c );
@@ -843,10 +1075,58 @@ public abstract class DBCollection {
         return _objectClass;
     }
 
+    /**
+     * @throws IllegalArgumentException if <code>c</code> doesn't have a no-arg constructor
+     */
     public void setInternalClass( String path , Class c ){
+        _constructors.put( c , _needConstructor( c ) );
         _internalClass.put( path , c );
     }
 
+    /**
+     * A new c, for the decoder.  The no-arg constructor is looked up once per class and kept on this collection,
+     * rather than Class.newInstance() finding it and checking access for every document.
+     */
+    DBObject newInstance( Class c ){
+        Constructor ctor = _constructors.get( c );
+        if ( ctor == null ){
+            ctor = _constructor( c );
+            if ( ctor == null )
+                throw new MongoInternalException( "can't instantiate a : " + c + ", it needs a no-arg constructor" );
+            _constructors.put( c , ctor );
+        }
+        try {
+            return (DBObject)ctor.newInstance();
+        }
+        catch ( InvocationTargetException ite ){
+            if ( ite.getCause() instanceof RuntimeException )
+                throw (RuntimeException)ite.getCause();
+            throw new MongoInternalException( "can't instantiate a : " + c , ite.getCause() );
+        }
+        catch ( Exception e ){
+            throw new MongoInternalException( "can't instantiate a : " + c , e );
+        }
+    }
+
+    /**
+     * @return c's no-arg constructor, made accessible, or null if it doesn't have one
+     */
+    static Constructor _constructor( Class c ){
+        try {
+            return ReflectionDBObject._accessible( c.getDeclaredConstructor() );
+        }
+        catch ( NoSuchMethodException nsme ){
+            return null;
+        }
+    }
+
+    private static Constructor _needConstructor( Class c ){
+        Constructor ctor = _constructor( c );
+        if ( ctor == null )
+            throw new IllegalArgumentException( c.getName() + " needs a no-arg constructor" );
+        return ctor;
+    }
+
     protected Class getInternalClass( String path ){
         Class c = _internalClass.get( path );
         if ( c != null )
@@ -877,6 +1157,8 @@ public abstract class DBCollection {
 
     protected Class _objectClass = null;
     private Map<String,Class> _internalClass = Collections.synchronizedMap( new HashMap<String,Class>() );
+    /** constructors of the classes documents are decoded into, kept here so they go away with the collection */
+    private final Map<Class,Constructor> _constructors = new ConcurrentHashMap<Class,Constructor>();
     private ReflectionDBObject.JavaWrapper _wrapper = null;
 
     private boolean _anyUpdateSave = false;
@@ -24,6 +24,6 @@ import java.nio.*;
 import java.util.*;
 
 public interface DBConnector {
-    public void say( int op , ByteBuffer buf , DB.WriteConcern concern ) throws MongoException;
-    public int call( int op , ByteBuffer out , ByteBuffer in ) throws MongoException;
+    public void say( int op , ByteBuffer[] buf , DB.WriteConcern concern ) throws MongoException;
+    public int call( int op , ByteBuffer[] out , ByteDecoder in ) throws MongoException;
 }
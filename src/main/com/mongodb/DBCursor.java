@@ -24,6 +24,7 @@ import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.NoSuchElementException;
 
 
 /** An iterator over database results.
@@ -80,6 +81,8 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         c._hint = _hint;
         c._numWanted = _numWanted;
         c._skip = _skip;
+        c._lazy = _lazy;
+        c._prefetch = _prefetch;
         return c;
     }
 
@@ -136,6 +139,41 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         return this;
     }
 
+    /**
+     * Returns read-only <code>LazyDBObject</code>s that decode fields straight from the reply bytes
+     * as they are asked for, instead of building a <code>BasicDBObject</code> for every document.
+     * Worth it when only a few fields of big documents are read.
+     * Lazy documents ignore the collection's object class.
+     * @return same DBCursor for chaining operations
+     */
+    public DBCursor lazy() {
+        if (_it != null)
+            throw new IllegalStateException("can't make lazy after executing the query");
+
+        _lazy = true;
+
+        return this;
+    }
+
+
+    /**
+     * Keeps up to <code>n</code> batches fetched ahead of where iteration is, so the next getMore
+     * is already on its way while the current batch is being read, instead of going out once it runs out.
+     * Meant for long scans like exports.  The getMores go over the async connector.
+     * If there's a batch size and no limit, the batch size doubles every time iteration has to wait for a batch,
+     * and shrinks back towards what was asked for when batches are piling up faster than they're read.
+     * @param n how many batches to hold at most
+     * @return same DBCursor for chaining operations
+     */
+    public DBCursor prefetch( int n ) {
+        if ( n < 1 )
+            throw new IllegalArgumentException( "prefetch has to be >= 1" );
+        if (_it != null)
+            throw new IllegalStateException("can't prefetch after executing the query");
+
+        _prefetch = n;
+        return this;
+    }
 
     /**
      *  Informs the database of an indexed field of the collection in order to improve performance.
@@ -238,7 +276,12 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
                 else
                     bs = Math.min( bs , _batchSize );
             }
-            _it = _collection.find( foo , _keysWanted , _skip , bs );
+            _it = _collection.find( foo , _keysWanted , _skip , bs , _lazy );
+
+            if ( _numWanted > 0 && _it instanceof DBApiLayer.Result )
+                ((DBApiLayer.Result)_it).limit( _numWanted );
+            if ( _prefetch > 0 && _it instanceof DBApiLayer.Result )
+                ((DBApiLayer.Result)_it).prefetch( _prefetch , _numWanted == 0 );
         }
 
         if ( _it == null ){
@@ -326,11 +369,15 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         if ( _cursorType == null )
             _checkType( CursorType.ITERATOR );
 
+        if ( _closed )
+            throw new NoSuchElementException( "cursor closed" );
+
         _check();
 
         _cur = null;
         _cur = _it.next();
-        _collection.apply( _cur , false );
+        if ( ! ( _cur instanceof LazyDBObject ) ) // already has its _ns, and can't be changed
+            _collection.apply( _cur , false );
         _num++;
 
         if ( _keysWanted != null && _keysWanted.keySet().size() > 0 ){
@@ -368,10 +415,15 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
     
     private boolean _hasNext()
         throws MongoException {
+        if ( _closed )
+            return false;
+
         _check();
 
-        if ( _numWanted > 0 && _num >= _numWanted )
+        if ( _numWanted > 0 && _num >= _numWanted ){
+            close();
             return false;
+        }
 
         return _it.hasNext();
     }
@@ -414,6 +466,17 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
         }
     }
 
+    /**
+     * Stops iterating.  If the database still has results waiting for this cursor,
+     * it's told to drop them shortly after, along with any other abandoned cursors.
+     * A cursor that reaches its limit closes itself.
+     */
+    public void close(){
+        _closed = true;
+        if ( _it instanceof DBApiLayer.Result )
+            ((DBApiLayer.Result)_it).close();
+    }
+
     /**
      * Returns the element the cursor is at.
      * @return the next element
@@ -511,10 +574,13 @@ public class DBCursor implements Iterator<DBObject> , Iterable<DBObject> {
     private int _batchSize = 0;
     private int _skip = 0;
     private boolean _snapshot = false;
+    private boolean _lazy = false;
+    private int _prefetch = 0;
 
     // ----  result info ----
     private Iterator<DBObject> _it = null;
     private boolean _fake = false;
+    private boolean _closed = false;
 
     private CursorType _cursorType = null;
     private DBObject _cur = null;
@@ -19,6 +19,7 @@
 package com.mongodb;
 
 import java.nio.*;
+import java.util.concurrent.atomic.*;
 
 /** Creates a message to send to the database.  
  * Database messages are of the form:
@@ -37,19 +38,29 @@ import java.nio.*;
  */
 public class DBMessage {
     
-    static int ID = 1;
+    static final AtomicInteger ID = new AtomicInteger( 1 );
     static int HEADER_LENGTH = 16;
 
     DBMessage( int operation , ByteBuffer data ){
-        _id = ID++;
+        this( operation , new ByteBuffer[]{ _flip( data ) } );
+    }
+
+    /**
+     * @param data the body, in order.  each buffer is sent from 0 to its limit
+     */
+    DBMessage( int operation , ByteBuffer[] data ){
+        _id = ID.getAndIncrement(); // replies are routed back by this on multiplexed ports
         _responseTo = 0;
         _operation = operation;
-        _data = data;
-        
-        if ( _data.position() > 0 )
-            _data.flip();
-        
-        _len = HEADER_LENGTH + data.limit();
+        _data = null;
+        _out = data;
+
+        int len = HEADER_LENGTH;
+        for ( ByteBuffer b : data ){
+            b.position( 0 );
+            len += b.limit();
+        }
+        _len = len;
     }
     
     DBMessage( ByteBuffer buf , ByteBuffer dataBuffer ){
@@ -59,6 +70,13 @@ public class DBMessage {
         _operation = buf.getInt();
 
         _data = dataBuffer;
+        _out = null;
+    }
+
+    private static ByteBuffer _flip( ByteBuffer data ){
+        if ( data.position() > 0 )
+            data.flip();
+        return data;
     }
 
     void putHeader( ByteBuffer buf ){
@@ -68,10 +86,31 @@ public class DBMessage {
         buf.putInt( _operation );
     }
 
+    /**
+     * @return the body of a reply
+     */
     ByteBuffer getData(){
         return _data;
     }
 
+    /**
+     * @return header and body of an outgoing message, ready for a gathering write
+     */
+    ByteBuffer[] toSend(){
+        ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+        header.order( Bytes.ORDER );
+        putHeader( header );
+        header.flip();
+
+        ByteBuffer[] all = new ByteBuffer[ _out.length + 1 ];
+        all[0] = header;
+        for ( int i=0; i<_out.length; i++ ){
+            all[i+1] = _out[i];
+            _out[i].position( 0 );
+        }
+        return all;
+    }
+
     int dataLen(){
         return _len - HEADER_LENGTH;
     }
@@ -83,4 +122,5 @@ public class DBMessage {
 
     
     final ByteBuffer _data;
+    final ByteBuffer[] _out;
 }
@@ -22,6 +22,10 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.logging.*;
 
 import com.mongodb.util.*;
@@ -44,7 +48,7 @@ public class DBPort {
         _addr = addr;
         _pool = pool;
 
-        _array[0].order( Bytes.ORDER );
+        _header.order( Bytes.ORDER );
 
         _hashCode = _addr.hashCode();
 
@@ -52,62 +56,497 @@ public class DBPort {
     }
 
     /**
-     * @param response will get wiped
+     * @param response gets the reply body, grown to fit if needed
      */
-    DBMessage call( DBMessage msg , ByteBuffer response )
+    DBMessage call( DBMessage msg , ByteDecoder response )
         throws IOException {
         return go( msg , response );
     }
     
+    /**
+     * Sends writes with msg right behind them in one gathering write, and reads the reply to msg.
+     * With a getlasterror as msg, acknowledging the writes costs one round trip instead of two.
+     * @param response gets the reply body, grown to fit if needed
+     */
+    DBMessage call( List<DBMessage> writes , DBMessage msg , ByteDecoder response )
+        throws IOException {
+        return go( writes , msg , response );
+    }
+    
+    /**
+     * Sends each batch of writes with its getlasterror right behind it, all in one gathering write,
+     * then reads the getlasterror replies in order.  So any number of batches costs one round trip.
+     * @return the replies, one per getlasterror, each in its own heap buffer
+     */
+    DBMessage[] call( List<List<DBMessage>> batches , List<DBMessage> gles )
+        throws IOException {
+        _lock.lock();
+        try {
+            if ( _sock == null )
+                _open();
+
+            _sent( _writeFully( _sock , _gather( batches , gles ) ) );
+            if ( _pool != null )
+                _pool._everWorked = true;
+
+            final DBMessage[] replies = new DBMessage[ gles.size() ];
+            for ( int i=0; i<replies.length; i++ ){
+                _reset( _header );
+                _readFully( _sock , _header );
+                _header.flip();
+
+                final int len = _header.getInt( 0 );
+                if ( len <= DBMessage.HEADER_LENGTH )
+                    throw new IllegalArgumentException( "db sent invalid length : " + len );
+
+                final ByteBuffer body = _heap( len - DBMessage.HEADER_LENGTH );
+                _readFully( _sock , body );
+                body.flip();
+                _received( len );
+                replies[i] = new DBMessage( _header , body );
+            }
+            return replies;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
     void say( DBMessage msg )
         throws IOException {
         go( msg , null );
     }
 
-    private synchronized DBMessage go( DBMessage msg , ByteBuffer response )
+    private DBMessage go( DBMessage msg , ByteDecoder decoder )
+        throws IOException {
+        return go( null , msg , decoder );
+    }
+
+    /**
+     * one request and its reply at a time.  uses _lock rather than a monitor,
+     * so a virtual thread blocked on the socket in here doesn't pin its carrier
+     */
+    private DBMessage go( List<DBMessage> writes , DBMessage msg , ByteDecoder decoder )
+        throws IOException {
+        _lock.lock();
+        try {
+            return _go( writes , msg , decoder );
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    private DBMessage _go( List<DBMessage> writes , DBMessage msg , ByteDecoder decoder )
         throws IOException {
         
         if ( _sock == null )
             _open();
 
-        _reset( _array[0] );
-        msg.putHeader( _array[0] );
-        _array[0].flip();
-        
-        _array[1] = msg.getData();
-        
-        _sock.write( _array );
+        if ( writes == null || writes.size() == 0 ){
+            _reset( _header );
+            msg.putHeader( _header );
+            _header.flip();
+            _sent( _writeFully( _sock , _header , msg._out ) );
+        }
+        else {
+            _sent( _writeFully( _sock , _gather( writes , msg ) ) );
+        }
         
         if ( _pool != null )
             _pool._everWorked = true;
 
-        if ( response == null )
+        if ( decoder == null )
             return null;
 
-        _reset( _array[0] );
-        _sock.read( _array[0] );
-        _array[0].flip();
-        DBMessage msgResponse = new DBMessage( _array[0] , response );
+        _reset( _header );
+        _readFully( _sock , _header );
+        _header.flip();
+
+        final int len = _header.getInt( 0 );
+        if ( len <= DBMessage.HEADER_LENGTH )
+            throw new IllegalArgumentException( "db sent invalid length : " + len );
+
+        final ByteBuffer response = decoder.ensureCapacity( len - DBMessage.HEADER_LENGTH );
+        DBMessage msgResponse = new DBMessage( _header , response );
+        _readFully( _sock , response );
+
+        _received( msgResponse._len );
+        return msgResponse;
+    }
+
+    /**
+     * Sends a request on a multiplexed port and waits for the reply whose responseTo matches.
+     * Any number of threads can be in here at once.  Requests are written back-to-back under
+     * the write lock, and whichever waiter holds the read side pulls replies off the socket and
+     * hands each one to the caller it belongs to, until its own shows up.
+     * @param response gets the reply body, grown to fit if needed
+     */
+    DBMessage pipeline( DBMessage msg , ByteDecoder response )
+        throws IOException {
+        return pipeline( null , msg , response );
+    }
+
+    /**
+     * Like pipeline( msg , response ), with writes sent right ahead of msg in the same gathering write,
+     * so nothing another thread sends can come between them.
+     */
+    DBMessage pipeline( List<DBMessage> writes , DBMessage msg , ByteDecoder response )
+        throws IOException {
+
+        final Pending p = new Pending( response );
+        _pending.put( msg._id , p );
         
-        _reset( response );
+        try {
+            _writeLock.lock();
+            try {
+                if ( _sock == null )
+                    _open();
+                p._sock = _sock;
+
+                _reset( _writeHeader );
+                msg.putHeader( _writeHeader );
+                _writeHeader.flip();
+                
+                try {
+                    if ( writes == null || writes.size() == 0 )
+                        _sent( _writeFully( _sock , _writeHeader , msg._out ) );
+                    else
+                        _sent( _writeFully( _sock , _gather( writes , msg ) ) );
+                }
+                catch ( IOException ioe ){
+                    _fail( p._sock , ioe );
+                    throw ioe;
+                }
+            }
+            finally {
+                _writeLock.unlock();
+            }
+
+            if ( _pool != null )
+                _pool._everWorked = true;
+            
+            _await( p );
+            return p._reply;
+        }
+        finally {
+            _pending.remove( msg._id );
+        }
+    }
+
+    /**
+     * call( batches , gles ) for a multiplexed port.  Everything goes out in one gathering write
+     * under the write lock, then the replies are waited for in order.
+     */
+    DBMessage[] pipeline( List<List<DBMessage>> batches , List<DBMessage> gles )
+        throws IOException {
+
+        final Pending[] ps = new Pending[ gles.size() ];
+        for ( int i=0; i<ps.length; i++ ){
+            ps[i] = new Pending( null );
+            _pending.put( gles.get( i )._id , ps[i] );
+        }
+
+        try {
+            _writeLock.lock();
+            try {
+                if ( _sock == null )
+                    _open();
+                final SocketChannel sock = _sock;
+                for ( Pending p : ps )
+                    p._sock = sock;
+
+                try {
+                    _sent( _writeFully( sock , _gather( batches , gles ) ) );
+                }
+                catch ( IOException ioe ){
+                    _fail( sock , ioe );
+                    throw ioe;
+                }
+            }
+            finally {
+                _writeLock.unlock();
+            }
+
+            if ( _pool != null )
+                _pool._everWorked = true;
+
+            final DBMessage[] replies = new DBMessage[ ps.length ];
+            for ( int i=0; i<ps.length; i++ ){
+                _await( ps[i] );
+                replies[i] = ps[i]._reply;
+            }
+            return replies;
+        }
+        finally {
+            for ( DBMessage gle : gles )
+                _pending.remove( gle._id );
+        }
+    }
+
+    /**
+     * Sends a message that gets no reply on a multiplexed port, without waiting for anything.
+     * It goes out under the write lock, so it stays in order with this thread's pipelined calls.
+     */
+    void sayMultiplexed( DBMessage msg )
+        throws IOException {
+        _writeLock.lock();
+        try {
+            if ( _sock == null )
+                _open();
+
+            final SocketChannel sock = _sock;
+            _reset( _writeHeader );
+            msg.putHeader( _writeHeader );
+            _writeHeader.flip();
+
+            try {
+                _sent( _writeFully( sock , _writeHeader , msg._out ) );
+            }
+            catch ( IOException ioe ){
+                _fail( sock , ioe );
+                throw ioe;
+            }
+        }
+        finally {
+            _writeLock.unlock();
+        }
+
+        if ( _pool != null )
+            _pool._everWorked = true;
+    }
+
+    /**
+     * Closes a multiplexed port's socket and fails every call still waiting on it.
+     */
+    void closeMultiplexed(){
+        final SocketChannel sock;
+        _writeLock.lock();
+        try {
+            sock = _sock;
+        }
+        finally {
+            _writeLock.unlock();
+        }
+        if ( sock != null )
+            _fail( sock , new IOException( "multiplexed connection to " + _addr + " closed" ) );
+    }
 
-        if ( msgResponse._len <= DBMessage.HEADER_LENGTH )
-            throw new IllegalArgumentException( "db sent invalid length : " + msgResponse._len );
+    private void _await( Pending p )
+        throws IOException {
         
+        boolean reader = false;
+        _readLock.lock();
+        try {
+            // the reader may already be filling our buffer, so we can't walk away from it if interrupted
+            while ( ! p._done && _reading )
+                _readDone.awaitUninterruptibly();
+            
+            if ( ! p._done ){
+                _reading = true;
+                reader = true;
+            }
+        }
+        finally {
+            _readLock.unlock();
+        }
 
-        final int bodySize = msgResponse._len - DBMessage.HEADER_LENGTH;
+        if ( reader ){
+            try {
+                while ( ! p._done )
+                    _readOne( p._sock );
+            }
+            catch ( IOException ioe ){
+                _fail( p._sock , ioe );
+            }
+            finally {
+                _readLock.lock();
+                try {
+                    _reading = false;
+                    _readDone.signalAll();
+                }
+                finally {
+                    _readLock.unlock();
+                }
+            }
+        }
 
-        if ( bodySize > response.capacity() )
-            throw new IllegalArgumentException( "db message size is too big (" + bodySize + ") max is (" + response.capacity() + ")" );
+        if ( p._error != null ){
+            IOException e = new IOException( "multiplexed call to " + _addr + " failed: " + p._error );
+            e.initCause( p._error );
+            throw e;
+        }
+    }
 
-        response.limit( bodySize );
-        while ( response.remaining() > 0 )
-            _sock.read( response );
+    /**
+     * reads one reply and hands it to whoever is waiting for it
+     */
+    private void _readOne( SocketChannel sock )
+        throws IOException {
         
-        if ( response.position() < response.limit() )
-            throw new MongoInternalException( "buffer not fully filled" );
+        _reset( _readHeader );
+        _readFully( sock , _readHeader );
+        _readHeader.flip();
+        
+        final int len = _readHeader.getInt( 0 );
+        if ( len <= DBMessage.HEADER_LENGTH )
+            throw new IOException( "db sent invalid length : " + len );
+        final int bodySize = len - DBMessage.HEADER_LENGTH;
 
-        return msgResponse;
+        final Pending p = _pending.get( _readHeader.getInt( 8 ) );
+        if ( p == null ){
+            _skip( sock , bodySize );
+            _received( len );
+            return;
+        }
+
+        // the owner of the decoder is parked in _await until we complete it
+        final ByteBuffer response = p._response == null ? _heap( bodySize ) : p._response.ensureCapacity( bodySize );
+        _readFully( sock , response );
+        if ( p._response == null )
+            response.flip();
+        _received( len );
+
+        _complete( p , new DBMessage( _readHeader , response ) , null );
+    }
+
+    private void _complete( Pending p , DBMessage reply , IOException error ){
+        _readLock.lock();
+        try {
+            p._reply = reply;
+            p._error = error;
+            p._done = true;
+            _readDone.signalAll();
+        }
+        finally {
+            _readLock.unlock();
+        }
+    }
+
+    /**
+     * closes the socket and fails everything that was waiting on it
+     */
+    private void _fail( SocketChannel sock , IOException ioe ){
+        _writeLock.lock();
+        try {
+            if ( _sock == sock ){
+                try {
+                    sock.close();
+                }
+                catch ( IOException e ){
+                    // don't care
+                }
+                _sock = null;
+                if ( _pool != null )
+                    _pool._closed( this );
+            }
+        }
+        finally {
+            _writeLock.unlock();
+        }
+        
+        _readLock.lock();
+        try {
+            for ( Pending p : _pending.values() ){
+                if ( p._sock != sock || p._done )
+                    continue;
+                p._error = ioe;
+                p._done = true;
+            }
+            _readDone.signalAll();
+        }
+        finally {
+            _readLock.unlock();
+        }
+    }
+
+    private void _skip( SocketChannel sock , int len )
+        throws IOException {
+        if ( _skipBuf == null )
+            _skipBuf = ByteBuffer.allocate( 1024 * 16 );
+        while ( len > 0 ){
+            _reset( _skipBuf );
+            _skipBuf.limit( Math.min( len , _skipBuf.capacity() ) );
+            _readFully( sock , _skipBuf );
+            len -= _skipBuf.limit();
+        }
+    }
+
+    static void _readFully( SocketChannel sock , ByteBuffer buf )
+        throws IOException {
+        while ( buf.remaining() > 0 )
+            if ( sock.read( buf ) < 0 )
+                throw new EOFException( "connection closed by server" );
+    }
+    
+    /**
+     * gathering write of the header and every body buffer
+     * @return bytes written
+     */
+    static long _writeFully( SocketChannel sock , ByteBuffer header , ByteBuffer[] data )
+        throws IOException {
+        ByteBuffer[] all = new ByteBuffer[ data.length + 1 ];
+        all[0] = header;
+        System.arraycopy( data , 0 , all , 1 , data.length );
+        return _writeFully( sock , all );
+    }
+
+    /**
+     * headers and bodies of writes and then msg, in order
+     */
+    static ByteBuffer[] _gather( List<DBMessage> writes , DBMessage msg ){
+        List<ByteBuffer> all = new ArrayList<ByteBuffer>();
+        for ( DBMessage w : writes )
+            all.addAll( Arrays.asList( w.toSend() ) );
+        all.addAll( Arrays.asList( msg.toSend() ) );
+        return all.toArray( new ByteBuffer[ all.size() ] );
+    }
+
+    /**
+     * every batch followed by its getlasterror, in order
+     */
+    static ByteBuffer[] _gather( List<List<DBMessage>> batches , List<DBMessage> gles ){
+        List<ByteBuffer> all = new ArrayList<ByteBuffer>();
+        for ( int i=0; i<batches.size(); i++ ){
+            for ( DBMessage w : batches.get( i ) )
+                all.addAll( Arrays.asList( w.toSend() ) );
+            all.addAll( Arrays.asList( gles.get( i ).toSend() ) );
+        }
+        return all.toArray( new ByteBuffer[ all.size() ] );
+    }
+
+    static ByteBuffer _heap( int size ){
+        ByteBuffer buf = ByteBuffer.allocate( size );
+        buf.order( Bytes.ORDER );
+        return buf;
+    }
+
+    static long _writeFully( SocketChannel sock , ByteBuffer[] all )
+        throws IOException {
+        long total = 0;
+        for ( ByteBuffer b : all )
+            total += b.remaining();
+
+        long written = 0;
+        while ( written < total )
+            written += sock.write( all );
+        return written;
+    }
+
+    static class Pending {
+        /**
+         * @param response gets the reply body, or null to read it into a heap buffer of its own
+         */
+        Pending( ByteDecoder response ){
+            _response = response;
+        }
+
+        final ByteDecoder _response;
+        SocketChannel _sock;
+
+        volatile boolean _done = false;
+        DBMessage _reply;
+        IOException _error;
     }
 
     void _reset( ByteBuffer buf ){
@@ -142,6 +581,8 @@ public class DBPort {
                 _sock.socket().setTcpNoDelay( ! USE_NAGLE );
                 _sock.socket().setSoTimeout( _options.socketTimeout );
                 
+                if ( _pool != null )
+                    _pool._opened( this );
                 return;
             }
             catch ( IOException ioe ){
@@ -181,18 +622,58 @@ public class DBPort {
         return "{DBPort  " + host() + "}";
     }
     
-    protected void finalize(){
-        if ( _sock != null ){
-            try {
-                _sock.close();
-            }
-            catch ( Exception e ){
-                // don't care
-            }
+    /**
+     * closes the socket.  the port will reconnect if it gets used again
+     */
+    void close(){
+        _lock.lock();
+        try {
+            if ( _sock != null ){
+                try {
+                    _sock.close();
+                }
+                catch ( Exception e ){
+                    // don't care
+                }
             
-            _sock = null;            
+                _sock = null;            
+                if ( _pool != null )
+                    _pool._closed( this );
+            }
         }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    private void _sent( long n ){
+        _bytesSent.addAndGet( n );
+        if ( _pool != null )
+            _pool._stats._bytesSent.addAndGet( n );
+    }
 
+    private void _received( long n ){
+        _bytesReceived.addAndGet( n );
+        if ( _pool != null )
+            _pool._stats._bytesReceived.addAndGet( n );
+    }
+
+    /**
+     * @return total bytes written to this port's sockets
+     */
+    public long bytesSent(){
+        return _bytesSent.get();
+    }
+
+    /**
+     * @return total bytes read from this port's sockets
+     */
+    public long bytesReceived(){
+        return _bytesReceived.get();
+    }
+
+    protected void finalize(){
+        close();
     }
     
     final int _hashCode;
@@ -200,10 +681,27 @@ public class DBPort {
     final DBPortPool _pool;
     final MongoOptions _options;
     final Logger _logger;
+
+    DBPortPool.Generation _generation;
+    final AtomicBoolean _checkedOut = new AtomicBoolean();
+
+    private final AtomicLong _bytesSent = new AtomicLong();
+    private final AtomicLong _bytesReceived = new AtomicLong();
     
-    private final ByteBuffer[] _array = new ByteBuffer[]{ ByteBuffer.allocateDirect( DBMessage.HEADER_LENGTH ) , null };
+    private final ByteBuffer _header = ByteBuffer.allocateDirect( DBMessage.HEADER_LENGTH );
+    private final ReentrantLock _lock = new ReentrantLock();
     private SocketChannel _sock;
     
+    // ---- multiplexed mode ----
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final ReentrantLock _readLock = new ReentrantLock();
+    private final Condition _readDone = _readLock.newCondition();
+    private boolean _reading = false;
+    private final Map<Integer,Pending> _pending = new ConcurrentHashMap<Integer,Pending>();
+    private final ByteBuffer _writeHeader = ByteBuffer.allocateDirect( DBMessage.HEADER_LENGTH ).order( Bytes.ORDER );
+    private final ByteBuffer _readHeader = ByteBuffer.allocateDirect( DBMessage.HEADER_LENGTH ).order( Bytes.ORDER );
+    private ByteBuffer _skipBuf;
+
 
     private static Logger _rootLogger = Logger.getLogger( "com.mongodb.port" );
 }
@@ -18,15 +18,29 @@
 
 package com.mongodb;
 
-import com.mongodb.util.*;
-
 import java.io.*;
+import java.lang.management.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
-class DBPortPool extends SimplePool<DBPort> {
+import javax.management.*;
+
+/**
+ * Pool of sockets to one host.
+ * Idle ports sit in a lock-free stack and checkouts are bounded by a fair semaphore,
+ * so threads waiting for a socket queue up in order instead of sleep-polling, and
+ * get()/done() never take a monitor.
+ * The stack hands back the most recently returned port, so a thread doing one thing at a time
+ * keeps using the same socket, and the server sees its unacknowledged writes before its next read.
+ * Everything the pool hands out belongs to a generation.  An error starts a new one,
+ * and ports from an old generation are closed when they come back.
+ * The semaphore covers every generation, so ports from before an error that are still out
+ * count against connectionsPerHost until they're returned.
+ */
+class DBPortPool {
 
     public final long _maxWaitTime = 1000 * 60 * 2;
 
@@ -49,15 +63,58 @@ class DBPortPool extends SimplePool<DBPort> {
                     return p;
                 }
                 
-                p = new DBPortPool( addr , _options );
+                p = new DBPortPool( addr , _options , _listeners );
                 _pools.put( addr , p);
             }
             
+            if ( _options.jmx )
+                _register( p );
             return p;
         }
+
+        private void _register( DBPortPool p ){
+            try {
+                ObjectName name = new ObjectName( "com.mongodb:type=ConnectionPool" +
+                                                  ",mongo=" + _id +
+                                                  ",host=" + ObjectName.quote( p._addr.getHostName() ) +
+                                                  ",port=" + p._addr.getPort() );
+                ManagementFactory.getPlatformMBeanServer().registerMBean( p._stats , name );
+                _registered.add( name );
+            }
+            catch ( Exception e ){
+                Bytes.LOGGER.log( Level.WARNING , "couldn't register connection pool mbean for " + p._addr , e );
+            }
+        }
         
+        /**
+         * closes every pool's sockets and unregisters their mbeans
+         */
+        void close(){
+            List<DBPortPool> all;
+            synchronized ( _pools ){
+                all = new ArrayList<DBPortPool>( _pools.values() );
+            }
+            for ( DBPortPool p : all )
+                p.close();
+
+            for ( ObjectName name : _registered ){
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+                }
+                catch ( Exception e ){
+                    Bytes.LOGGER.log( Level.WARNING , "couldn't unregister connection pool mbean " + name , e );
+                }
+            }
+            _registered.clear();
+        }
+
         final MongoOptions _options;
+        final List<ConnectionPoolListener> _listeners = new CopyOnWriteArrayList<ConnectionPoolListener>();
+        final int _id = _nextHolderId.incrementAndGet();
         final Map<InetSocketAddress,DBPortPool> _pools = Collections.synchronizedMap( new HashMap<InetSocketAddress,DBPortPool>() );
+        final List<ObjectName> _registered = new CopyOnWriteArrayList<ObjectName>();
+
+        static final AtomicInteger _nextHolderId = new AtomicInteger();
     }
 
     // ----
@@ -69,47 +126,249 @@ class DBPortPool extends SimplePool<DBPort> {
     }
 
     // ----
-    
+
+    /**
+     * the ports handed out between two errors
+     */
+    class Generation {
+        final PortStack _avail = new PortStack();
+        final AtomicInteger _total = new AtomicInteger();
+    }
+
+    /**
+     * Treiber stack.  every push gets a new node, so there's no ABA
+     */
+    static class PortStack {
+
+        void push( DBPort p ){
+            Node n = new Node( p );
+            do {
+                n._next = _top.get();
+            } while ( ! _top.compareAndSet( n._next , n ) );
+        }
+
+        DBPort poll(){
+            Node n;
+            do {
+                n = _top.get();
+                if ( n == null )
+                    return null;
+            } while ( ! _top.compareAndSet( n , n._next ) );
+            return n._port;
+        }
+
+        static class Node {
+            Node( DBPort port ){
+                _port = port;
+            }
+            final DBPort _port;
+            Node _next;
+        }
+
+        private final AtomicReference<Node> _top = new AtomicReference<Node>();
+    }
+
     DBPortPool( InetSocketAddress addr , MongoOptions options ){
-        super( "DBPortPool-" + addr.toString() , options.connectionsPerHost , options.connectionsPerHost );
+        this( addr , options , Collections.<ConnectionPoolListener>emptyList() );
+    }
+
+    DBPortPool( InetSocketAddress addr , MongoOptions options , List<ConnectionPoolListener> listeners ){
         _options = options;
         _addr = addr;
+        _listeners = listeners;
+        _stats = new ConnectionPoolStats( this );
 	_waitingSem = new Semaphore( _options.connectionsPerHost * _options.threadsAllowedToBlockForConnectionMultiplier );
+        _permits = new Semaphore( _options.connectionsPerHost , true );
+        _gen = new Generation();
     }
 
-    protected long memSize( DBPort p ){
-        return 0;
-    }
-    
     public DBPort get(){
-	DBPort port = null;
-	
-	if ( ! _waitingSem.tryAcquire() )
+        if ( _shutdown )
+            throw new IllegalStateException( "pool for " + _addr + " is closed" );
+
+	if ( ! _waitingSem.tryAcquire() ){
+            _checkoutFailed( false );
 	    throw new NoMoreConnection();
+        }
 
+        final long start = System.nanoTime();
 	try {
-	    port = get( _maxWaitTime );
+            if ( ! _permits.tryAcquire( _maxWaitTime , TimeUnit.MILLISECONDS ) ){
+                _checkoutFailed( true );
+                throw new NoMoreConnection();
+            }
 	}
+        catch ( InterruptedException ie ){
+            Thread.currentThread().interrupt();
+            throw new MongoInternalException( "interrupted waiting for a connection to " + _addr , ie );
+        }
 	finally {
 	    _waitingSem.release();
 	}
 
-	if ( port == null )
-	    throw new NoMoreConnection();
-	
-	return port;
+        final Generation g = _gen;
+        DBPort p;
+        try {
+            while ( ( p = g._avail.poll() ) != null ){
+                if ( ok( p ) )
+                    break;
+                _discard( p );
+            }
+
+            if ( p == null ){
+                p = createNew();
+                p._generation = g;
+                g._total.incrementAndGet();
+                _everCreated.incrementAndGet();
+            }
+        }
+        catch ( RuntimeException e ){
+            _permits.release();
+            throw e;
+        }
+
+        p._checkedOut.set( true );
+
+        final long waited = System.nanoTime() - start;
+        _stats._checkedOut( waited );
+        for ( ConnectionPoolListener l : _listeners )
+            l.connectionCheckedOut( _addr , waited );
+        return p;
+    }
+
+    /**
+     * call when done with a port from get().  ports that are from before the last error,
+     * or that aren't any good anymore, get closed instead of going back in
+     */
+    public void done( DBPort p ){
+        if ( p._pool != this ){
+            p._pool.done( p );
+            return;
+        }
+
+        if ( ! p._checkedOut.compareAndSet( true , false ) )
+            throw new IllegalStateException( "trying to put something back in the pool that's already there" );
+
+        Generation g = p._generation;
+        if ( g == _gen && ok( p ) ){
+            g._avail.push( p );
+            // clear() may have drained g between the check and the push
+            if ( g != _gen )
+                _drain( g );
+        }
+        else {
+            _discard( p );
+        }
+        _permits.release();
+
+        for ( ConnectionPoolListener l : _listeners )
+            l.connectionCheckedIn( _addr );
+    }
+
+    /**
+     * Gets one of the shared ports used for multiplexed calls.
+     * These are never handed out by get(), and each one can have any number of requests in flight.
+     * A thread always gets the same one, so everything it sends reaches the server in order.
+     */
+    DBPort getMultiplexed(){
+        if ( _shutdown )
+            throw new IllegalStateException( "pool for " + _addr + " is closed" );
+
+        DBPort[] ports = _multiplexed;
+        if ( ports == null ){
+            synchronized ( this ){
+                if ( _multiplexed == null ){
+                    DBPort[] all = new DBPort[ Math.max( 1 , _options.multiplexedConnectionsPerHost ) ];
+                    for ( int i=0; i<all.length; i++ )
+                        all[i] = createNew();
+                    _multiplexed = all;
+                }
+                ports = _multiplexed;
+            }
+        }
+        return ports[ (int)( Thread.currentThread().getId() % ports.length ) ];
     }
 
     void gotError( Exception e ){
+        _stats._errors.incrementAndGet();
+
         if ( e instanceof java.nio.channels.ClosedByInterruptException || 
              e instanceof InterruptedException ){
             // this is probably a request that is taking too long
             // so usually doesn't mean there is a real db problem
+            for ( ConnectionPoolListener l : _listeners )
+                l.gotError( _addr , e , false );
             return;
         }
 
         Bytes.LOGGER.log( Level.INFO , "emptying DBPortPool b/c of error" , e );
         clear();
+
+        for ( ConnectionPoolListener l : _listeners )
+            l.gotError( _addr , e , true );
+    }
+
+    /**
+     * starts a new generation.  idle ports are closed now, ones in use when they come back.
+     * the multiplexed ports are closed now too, failing whatever is waiting on them
+     */
+    void clear(){
+        _stats._clears.incrementAndGet();
+        _clear();
+    }
+
+    private void _clear(){
+        Generation old = _gen;
+        _gen = new Generation();
+        final DBPort[] multiplexed = _multiplexed;
+        _multiplexed = null;
+
+        _drain( old );
+        if ( multiplexed != null )
+            for ( DBPort m : multiplexed )
+                m.closeMultiplexed();
+    }
+
+    /**
+     * closes every idle and multiplexed port for good.  ports still out get closed when they come back
+     */
+    void close(){
+        _shutdown = true;
+        _clear();
+    }
+
+    private void _drain( Generation g ){
+        DBPort p;
+        while ( ( p = g._avail.poll() ) != null )
+            _discard( p );
+    }
+
+    private void _checkoutFailed( boolean timedOut ){
+        if ( timedOut )
+            _stats._checkoutTimeouts.incrementAndGet();
+        else
+            _stats._waitQueueFull.incrementAndGet();
+        for ( ConnectionPoolListener l : _listeners )
+            l.checkoutFailed( _addr , timedOut );
+    }
+
+    // ---- called by DBPort ----
+
+    void _opened( DBPort p ){
+        _stats._opened.incrementAndGet();
+        for ( ConnectionPoolListener l : _listeners )
+            l.connectionOpened( _addr );
+    }
+
+    void _closed( DBPort p ){
+        _stats._closed.incrementAndGet();
+        for ( ConnectionPoolListener l : _listeners )
+            l.connectionClosed( _addr );
+    }
+
+    private void _discard( DBPort p ){
+        p._generation._total.decrementAndGet();
+        p.close();
     }
 
     public boolean ok( DBPort t ){
@@ -126,8 +385,46 @@ class DBPortPool extends SimplePool<DBPort> {
         }
     }
 
+    /**
+     * @return number of ports open or checked out
+     */
+    public int total(){
+        return _gen._total.get();
+    }
+
+    /**
+     * @return number of ports checked out
+     */
+    public int inUse(){
+        return _options.connectionsPerHost - _permits.availablePermits();
+    }
+
+    /**
+     * @return how many more ports can be checked out before get() has to wait
+     */
+    public int available(){
+        return _permits.availablePermits();
+    }
+
+    public int everCreated(){
+        return _everCreated.get();
+    }
+
+    public ConnectionPoolStats getStats(){
+        return _stats;
+    }
+
     final MongoOptions _options;
     final private Semaphore _waitingSem;
+    final private Semaphore _permits;
     final InetSocketAddress _addr;
+    final ConnectionPoolStats _stats;
+    final List<ConnectionPoolListener> _listeners;
     boolean _everWorked = false;
+
+    private volatile Generation _gen;
+    private volatile boolean _shutdown = false;
+    private final AtomicInteger _everCreated = new AtomicInteger();
+
+    private volatile DBPort[] _multiplexed;
 }
@@ -22,6 +22,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 import java.util.logging.*;
 
 class DBTCPConnector implements DBConnector {
@@ -33,6 +34,7 @@ class DBTCPConnector implements DBConnector {
         throws MongoException {
         _mongo = m;
         _portHolder = new DBPortPool.Holder( m._options );
+        _reaper = new CursorReaper( this , m._options.cursorReaperInterval );
         _checkAddress( addr );
 
         _createLogger.info( addr.toString() );
@@ -58,6 +60,7 @@ class DBTCPConnector implements DBConnector {
         throws MongoException {
         _mongo = m;
         _portHolder = new DBPortPool.Holder( m._options );
+        _reaper = new CursorReaper( this , m._options.cursorReaperInterval );
         _checkAddress( all );
 
         _validatePairs( all );
@@ -121,58 +124,220 @@ class DBTCPConnector implements DBConnector {
         _threadPort.get().requestEnsureConnection();
     }
 
-    public void say( int op , ByteBuffer buf , DB.WriteConcern concern )
+    public void say( int op , ByteBuffer[] buf , DB.WriteConcern concern )
         throws MongoException {
+        final DBMessage m = new DBMessage( op , buf );
         MyPort mp = _threadPort.get();
+
+        if ( _mongo._options.multiplex && mp.canMultiplex() ){
+            // on the same socket this thread's reads go out on, so a read sees the writes before it
+            DBPortPool pool = _curPortPool;
+            DBPort port = pool.getMultiplexed();
+            try {
+                if ( concern == DB.WriteConcern.STRICT )
+                    _sayAcknowledged( port , true , Collections.singletonList( m ) );
+                else
+                    port.sayMultiplexed( m );
+                return;
+            }
+            catch ( IOException ioe ){
+                pool.gotError( ioe );
+                _error();
+                if ( concern == DB.WriteConcern.NONE )
+                    return;
+                throw new MongoException.Network( "can't say something" , ioe );
+            }
+        }
+
         DBPort port = mp.get( true );
+        try {
+            if ( concern == DB.WriteConcern.STRICT )
+                _sayAcknowledged( port , false , Collections.singletonList( m ) );
+            else
+                port.say( m );
+        }
+        catch ( IOException ioe ){
+            mp.error( port , ioe );
+            _error();
+            if ( concern == DB.WriteConcern.NONE )
+                return;
+            throw new MongoException.Network( "can't say something" , ioe );
+        }
+        catch ( MongoException me ){
+            mp.done( port );
+            throw me;
+        }
+        mp.done( port );
+    }
 
+    /**
+     * Sends writes with a getlasterror right behind them, in one gathering write,
+     * and throws if it found an error.  So acknowledging the writes is one round trip, not two,
+     * and doesn't go through the query path.
+     */
+    private void _sayAcknowledged( DBPort port , boolean multiplexed , List<DBMessage> writes )
+        throws IOException , MongoException {
+        final DBMessage gle = new DBMessage( 2004 , AsyncDBConnector._lastErrorQuery.duplicate() );
+        ByteDecoder decoder = ByteDecoder.get( null , null );
         try {
-            port.say( new DBMessage( op , buf ) );
-            if ( concern == DB.WriteConcern.STRICT ){
-                DBObject e = _mongo.getDB( "admin" ).getLastError();
-                Object foo = e.get( "err" );
-                if ( foo != null ){
-                    String s = foo.toString();
-                    if ( s.startsWith( "E11000" ) ||
-                         s.startsWith( "E11001" ) )
-                        throw new MongoException.DuplicateKey( s );
-                    throw new MongoException( s );
+            DBMessage reply = multiplexed ? port.pipeline( writes , gle , decoder ) : port.call( writes , gle , decoder );
+            decoder.doneReading( reply.dataLen() );
+            _checkLastErrorReply( decoder._buf );
+        }
+        finally {
+            decoder.done();
+        }
+    }
+
+    /**
+     * Sends every batch with its getlasterror right behind it without waiting in between,
+     * and only then reads the replies, at most MAX_PIPELINED_BATCHES at a time.
+     * @return the first error any of them had, or null
+     */
+    private MongoException _sayPipelined( DBPort port , boolean multiplexed , List<List<DBMessage>> batches )
+        throws IOException {
+        MongoException first = null;
+        for ( int start=0; start<batches.size(); start += MAX_PIPELINED_BATCHES ){
+            final List<List<DBMessage>> window = batches.subList( start , Math.min( batches.size() , start + MAX_PIPELINED_BATCHES ) );
+            final List<DBMessage> gles = new ArrayList<DBMessage>( window.size() );
+            for ( int i=0; i<window.size(); i++ )
+                gles.add( new DBMessage( 2004 , AsyncDBConnector._lastErrorQuery.duplicate() ) );
+
+            final DBMessage[] replies = multiplexed ? port.pipeline( window , gles ) : port.call( window , gles );
+            for ( DBMessage reply : replies ){
+                try {
+                    _checkLastErrorReply( reply.getData() );
+                }
+                catch ( MongoException me ){
+                    if ( first == null )
+                        first = me;
                 }
             }
-            mp.done( port );
+        }
+        return first;
+    }
+
+    /**
+     * throws if a getlasterror reply is a query error or has an error in it
+     */
+    void _checkLastErrorReply( ByteBuffer buf )
+        throws MongoException {
+        String err = _getError( buf );
+        if ( err != null )
+            throw new MongoException( err );
+
+        DBApiLayer.QueryHeader header = new DBApiLayer.QueryHeader( buf , 0 );
+        if ( header._num != 1 )
+            throw new MongoException( "no result for getlasterror" );
+        _checkLastError( new RawDBObject( buf , header.headerSize() ) );
+    }
+
+    /**
+     * most batches sent before reading their getlasterror replies.
+     * keeps the replies we aren't reading yet small enough to sit in the socket buffers
+     */
+    static final int MAX_PIPELINED_BATCHES = 256;
+    
+    /**
+     * Sends batches of messages on one connection.  The messages in a batch go out back to back,
+     * and with WriteConcern.STRICT one getlasterror follows each batch.
+     * @param ordered stop at the first batch with an error, otherwise send them all, with their getlasterrors
+     *        pipelined, and throw the first error at the end
+     */
+    void say( List<List<DBMessage>> batches , DB.WriteConcern concern , boolean ordered )
+        throws MongoException {
+        MyPort mp = _threadPort.get();
+        final boolean multiplex = _mongo._options.multiplex && mp.canMultiplex();
+        final DBPortPool pool = _curPortPool;
+        DBPort port = multiplex ? pool.getMultiplexed() : mp.get( true );
+
+        MongoException first = null;
+        try {
+            if ( concern == DB.WriteConcern.STRICT && ! ordered ){
+                first = _sayPipelined( port , multiplex , batches );
+            }
+            else {
+                for ( List<DBMessage> batch : batches ){
+                    if ( concern == DB.WriteConcern.STRICT ){
+                        _sayAcknowledged( port , multiplex , batch );
+                        continue;
+                    }
+                    for ( DBMessage m : batch ){
+                        if ( multiplex )
+                            port.sayMultiplexed( m );
+                        else
+                            port.say( m );
+                    }
+                }
+            }
+            if ( ! multiplex )
+                mp.done( port );
         }
         catch ( IOException ioe ){
-            mp.error( ioe );
+            if ( multiplex )
+                pool.gotError( ioe );
+            else
+                mp.error( port , ioe );
             _error();
             if ( concern == DB.WriteConcern.NONE )
                 return;
             throw new MongoException.Network( "can't say something" , ioe );
         }
+        catch ( MongoException me ){
+            if ( ! multiplex )
+                mp.done( port );
+            throw me;
+        }
+
+        if ( first != null )
+            throw first;
+    }
+
+    /**
+     * throws the right kind of MongoException if a getlasterror result has an error in it
+     */
+    static void _checkLastError( DBObject e )
+        throws MongoException {
+        Object foo = e.get( "err" );
+        if ( foo == null )
+            return;
+
+        String s = foo.toString();
+        if ( s.startsWith( "E11000" ) ||
+             s.startsWith( "E11001" ) )
+            throw new MongoException.DuplicateKey( s );
+        throw new MongoException( s );
     }
     
-    public int call( int op , ByteBuffer out , ByteBuffer in )
+    public int call( int op , ByteBuffer[] out , ByteDecoder in )
         throws MongoException {
         return _call( op , out , in , 2 );
     }
 
-    private int _call( int op , ByteBuffer out , ByteBuffer in , int retries )
+    private int _call( int op , ByteBuffer[] out , ByteDecoder in , int retries )
         throws MongoException {
         MyPort mp = _threadPort.get();
-        DBPort port = mp.get( false );
+        final boolean multiplex = _mongo._options.multiplex && mp.canMultiplex();
+        DBPort port = multiplex ? _curPortPool.getMultiplexed() : mp.get( false );
 
         try {
             DBMessage a = new DBMessage( op , out );
-            DBMessage b = port.call( a , in );
-            mp.done( port );
+            DBMessage b;
+            if ( multiplex ){
+                b = port.pipeline( a , in );
+            }
+            else {
+                b = port.call( a , in );
+                mp.done( port );
+            }
 
-            String err = _getError( in );
+            String err = _getError( in._buf );
 
             if ( err != null ){
                 if ( "not master".equals( err ) ){
                     _pickCurrent();
                     if ( retries <= 0 )
                         throw new MongoException( "not talking to master and retries used up" );
-                    in.position( 0 );
 
                     return _call( op , out , in , retries -1 );
                 }
@@ -181,15 +346,66 @@ class DBTCPConnector implements DBConnector {
             return b.dataLen();
         }
         catch ( IOException ioe ){
-            mp.error( ioe );
+            if ( multiplex )
+                _curPortPool.gotError( ioe );
+            else
+                mp.error( port , ioe );
             if ( _error() && retries > 0 ){
-                in.position( 0 );
                 return _call( op , out , in , retries - 1 );
             }
             throw new MongoException.Network( "can't call something" , ioe );
         }
     }
 
+    /**
+     * Sends one OP_KILL_CURSORS for all of ids to host, which has to be where they were opened.
+     * Goes straight to that host's pool, it doesn't matter which one is current.
+     */
+    void killCursors( DBAddress host , List<Long> ids )
+        throws MongoException {
+        ByteEncoder encoder = ByteEncoder.get();
+        encoder._putInt( 0 ); // reserved
+        encoder._putInt( ids.size() );
+        for ( Long l : ids )
+            encoder._putLong( l );
+        encoder.flip();
+
+        DBPortPool pool = _portHolder.get( host.getSocketAddress() );
+        DBPort port = pool.get();
+        try {
+            port.say( new DBMessage( 2007 , encoder.buffers() ) );
+            pool.done( port );
+        }
+        catch ( IOException ioe ){
+            pool.gotError( ioe );
+            port.close();
+            pool.done( port );
+            throw new MongoException.Network( "can't kill cursors" , ioe );
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    /**
+     * the non-blocking connector used by the *Async calls.  created the first time it's needed
+     */
+    AsyncDBConnector getAsync(){
+        synchronized ( this ){
+            if ( _closed )
+                throw new IllegalStateException( "connector is closed" );
+            if ( _async == null ){
+                try {
+                    _async = new AsyncDBConnector( this );
+                }
+                catch ( IOException ioe ){
+                    throw new MongoInternalException( "can't start async connector" , ioe );
+                }
+            }
+            return _async;
+        }
+    }
+
     public DBAddress getAddress(){
         return _curAddress;
     }
@@ -255,14 +471,23 @@ class DBTCPConnector implements DBConnector {
             }
         }
 
-        void error( Exception e ){
+        void error( DBPort p , Exception e ){
             _port = null;
             _curPortPool.gotError( e );
+            p.close();
+            _curPortPool.done( p );
 
             _internalStack = 0;
             _last = null;
         }
         
+        /**
+         * true if nothing on this thread depends on staying on one socket
+         */
+        boolean canMultiplex(){
+            return ! _inRequest && _port == null && _internalStack == 0;
+        }
+
         void requestEnsureConnection(){
             if ( ! _inRequest )
                 return;
@@ -325,7 +550,8 @@ class DBTCPConnector implements DBConnector {
                 throw new MongoException( "remote not sent back!" );
 
             String remote = res.get( "remote" ).toString();
-            synchronized ( _allHosts ){
+            _hostsLock.lock();
+            try {
                 for ( DBAddress a : _allHosts ){
                     if ( ! a.sameHost( remote ) )
                         continue;
@@ -334,6 +560,9 @@ class DBTCPConnector implements DBConnector {
                     return;
                 }
             }
+            finally {
+                _hostsLock.unlock();
+            }
         }
         catch ( Exception e ){
             _logger.log( Level.SEVERE , "can't pick initial master, using random one" , e );
@@ -345,7 +574,8 @@ class DBTCPConnector implements DBConnector {
         if ( _allHosts == null )
             throw new MongoException( "got master/slave issue but not in master/slave mode on the client side" );
 
-        synchronized ( _allHosts ){
+        _hostsLock.lock();
+        try {
             Collections.shuffle( _allHosts );
             for ( int i=0; i<_allHosts.size(); i++ ){
                 DBAddress a = _allHosts.get( i );
@@ -359,6 +589,9 @@ class DBTCPConnector implements DBConnector {
                 return;
             }
         }
+        finally {
+            _hostsLock.unlock();
+        }
 
         throw new MongoException( "couldn't find a new host to swtich too" );
     }
@@ -371,6 +604,35 @@ class DBTCPConnector implements DBConnector {
         return true;
     }
 
+    CursorReaper getCursorReaper(){
+        return _reaper;
+    }
+
+    /**
+     * kills queued cursors, then stops the reaper and async threads and closes every socket
+     */
+    void close(){
+        _reaper.close();
+
+        AsyncDBConnector async;
+        synchronized ( this ){
+            _closed = true;
+            async = _async;
+        }
+        if ( async != null )
+            async.close();
+
+        _portHolder.close();
+    }
+
+    List<ConnectionPoolListener> getConnectionPoolListeners(){
+        return _portHolder._listeners;
+    }
+
+    ConnectionPoolStats getConnectionPoolStats(){
+        return _curPortPool._stats;
+    }
+
     public String debugString(){
         StringBuilder buf = new StringBuilder( "DBTCPConnector: " );
         if ( _allHosts != null )
@@ -382,10 +644,15 @@ class DBTCPConnector implements DBConnector {
     }
 
     final Mongo _mongo;
-    private DBAddress _curAddress;
-    private DBPortPool _curPortPool;
+    private volatile DBAddress _curAddress;
+    private volatile DBPortPool _curPortPool;
     private DBPortPool.Holder _portHolder;
+    private final CursorReaper _reaper;
     private final List<DBAddress> _allHosts;
+    /** guards _allHosts and switching hosts.  a lock, not a monitor, so failing over never pins a virtual thread */
+    private final ReentrantLock _hostsLock = new ReentrantLock();
+    private AsyncDBConnector _async;
+    private boolean _closed = false;
 
     private final ThreadLocal<MyPort> _threadPort = new ThreadLocal<MyPort>(){
         protected MyPort initialValue(){
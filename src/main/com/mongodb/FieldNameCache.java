@@ -0,0 +1,140 @@
+// FieldNameCache.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Shares the <code>String</code>s for field names the decoder has seen before.
+ * Looked up by the raw UTF-8 bytes, so a hit costs no decoding and no allocation.
+ * It's a fixed number of slots, each holding the last name that hashed there,
+ * so lots of distinct names just means more misses, never more memory.
+ * Get it from {@link ByteDecoder#getFieldNameCache}.
+ */
+public class FieldNameCache {
+
+    /**
+     * @param slots how many names can be cached at once, a power of 2
+     * @param maxLength longest name in bytes worth caching
+     */
+    FieldNameCache( int slots , int maxLength ){
+        if ( slots <= 0 || ( slots & ( slots - 1 ) ) != 0 )
+            throw new IllegalArgumentException( "slots has to be a power of 2" );
+        _entries = new Entry[slots];
+        _mask = slots - 1;
+        _maxLength = maxLength;
+    }
+
+    public int getSlots(){
+        return _entries.length;
+    }
+
+    public int getMaxLength(){
+        return _maxLength;
+    }
+
+    public long getHits(){
+        return _hits.get();
+    }
+
+    public long getMisses(){
+        return _misses.get();
+    }
+
+    /**
+     * @return fraction of lookups that were hits, 0 if there haven't been any
+     */
+    public double getHitRate(){
+        final long hits = getHits();
+        final long total = hits + getMisses();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    public String toString(){
+        return "{ slots : " + getSlots() + " , hits : " + getHits() + " , misses : " + getMisses() + " }";
+    }
+
+    // ---- used by the decoder ----
+
+    static int hash( int h , byte b ){
+        return 31 * h + b;
+    }
+
+    /**
+     * @return the cached name for the first len bytes of buf, or null
+     */
+    String get( byte[] buf , int len , int hash ){
+        if ( len > _maxLength )
+            return null;
+
+        final Entry e = _entries[ hash & _mask ];
+        if ( e == null || e._hash != hash || e._bytes.length != len )
+            return null;
+
+        for ( int i=0; i<len; i++ )
+            if ( e._bytes[i] != buf[i] )
+                return null;
+
+        return e._name;
+    }
+
+    /**
+     * remembers name for the first len bytes of buf, replacing whatever was in its slot
+     */
+    void put( byte[] buf , int len , int hash , String name ){
+        if ( len > _maxLength )
+            return;
+
+        byte[] b = new byte[len];
+        System.arraycopy( buf , 0 , b , 0 , len );
+        _entries[ hash & _mask ] = new Entry( b , hash , name );
+    }
+
+    /**
+     * the decoder counts locally and adds once per document so threads don't fight over the counters
+     */
+    void record( int hits , int misses ){
+        if ( hits > 0 )
+            _hits.addAndGet( hits );
+        if ( misses > 0 )
+            _misses.addAndGet( misses );
+    }
+
+    /**
+     * immutable so a slot can be read and replaced by any thread without locking
+     */
+    static class Entry {
+        Entry( byte[] bytes , int hash , String name ){
+            _bytes = bytes;
+            _hash = hash;
+            _name = name;
+        }
+
+        final byte[] _bytes;
+        final int _hash;
+        final String _name;
+    }
+
+    private final Entry[] _entries;
+    private final int _mask;
+    private final int _maxLength;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+}
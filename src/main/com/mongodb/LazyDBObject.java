@@ -0,0 +1,448 @@
+// LazyDBObject.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.nio.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static com.mongodb.Bytes.*;
+
+import com.mongodb.util.*;
+
+/**
+ * A read-only document that decodes its fields straight out of the reply bytes.
+ * The first lookup walks the document once and records where each field starts.
+ * After that a <code>get</code> only decodes the value it was asked for.
+ * Embedded documents come back as <code>LazyDBObject</code>s as well.
+ * This is what a <code>DBCursor</code> returns after {@link DBCursor#lazy()}.
+ */
+public class LazyDBObject implements DBObject {
+
+    /**
+     * @param buf bytes of the reply.  only read with absolute gets, so many documents can share it
+     * @param offset where the document's length prefix is
+     * @param base used to resolve refs
+     * @param ns namespace reported as the <code>_ns</code> field, null for embedded documents
+     */
+    LazyDBObject( ByteBuffer buf , int offset , DB base , String ns ){
+        if ( buf.order() != Bytes.ORDER )
+            throw new IllegalArgumentException( "byte order of passed in buffer is not correct" );
+        _buf = buf;
+        _offset = offset;
+        _base = base;
+        _ns = ns;
+    }
+
+    public Object get( String key ){
+        final Index idx = _index();
+        final int i = idx.find( key );
+        if ( i < 0 )
+            return _ns != null && key.equals( "_ns" ) ? _ns : null;
+
+        Object v = idx._values[i];
+        if ( v == null ){
+            v = _decode( idx._types[i] , idx._data[i] );
+            idx._values[i] = v;
+        }
+        return v;
+    }
+
+    public boolean containsField( String field ){
+        if ( _index().find( field ) >= 0 )
+            return true;
+        return _ns != null && field.equals( "_ns" );
+    }
+
+    /**
+     * @deprecated
+     */
+    @Deprecated
+    public boolean containsKey( String key ){
+        return containsField( key );
+    }
+
+    public Set<String> keySet(){
+        final Index idx = _index();
+        Set<String> keys = new LinkedHashSet<String>();
+        for ( int i=0; i<idx._num; i++ )
+            keys.add( idx.name( i ) );
+        if ( _ns != null )
+            keys.add( "_ns" );
+        return keys;
+    }
+
+    public Map toMap(){
+        Map<String,Object> m = new LinkedHashMap<String,Object>();
+        for ( String s : keySet() )
+            m.put( s , get( s ) );
+        return m;
+    }
+
+    /**
+     * Decodes every field into a regular, mutable <code>BasicDBObject</code>.
+     * Embedded lazy documents, including those inside arrays, are materialized too.
+     * @return a copy that no longer refers to the reply bytes
+     */
+    public DBObject materialize(){
+        BasicDBObject o = new BasicDBObject();
+        for ( String s : keySet() )
+            o.put( s , _materialize( get( s ) ) );
+        if ( _partial )
+            o.markAsPartialObject();
+        return o;
+    }
+
+    private static Object _materialize( Object v ){
+        if ( v instanceof LazyDBObject )
+            return ((LazyDBObject)v).materialize();
+
+        if ( v instanceof BasicDBList ){
+            BasicDBList in = (BasicDBList)v;
+            BasicDBList out = new BasicDBList();
+            for ( int i=0; i<in.size(); i++ )
+                out.add( _materialize( in.get( i ) ) );
+            return out;
+        }
+
+        return v;
+    }
+
+    public Object put( String key , Object v ){
+        throw new RuntimeException( "read only" );
+    }
+
+    public void putAll( DBObject o ){
+        throw new RuntimeException( "read only" );
+    }
+
+    public void putAll( Map m ){
+        throw new RuntimeException( "read only" );
+    }
+
+    public Object removeField( String key ){
+        throw new RuntimeException( "read only" );
+    }
+
+    public boolean isPartialObject(){
+        return _partial;
+    }
+
+    public void markAsPartialObject(){
+        _partial = true;
+    }
+
+    public String toString(){
+        return JSON.serialize( this );
+    }
+
+    // ---- decoding ----
+
+    private Index _index(){
+        Index idx = _index;
+        if ( idx == null ){
+            idx = new Index();
+            _index = idx;
+        }
+        return idx;
+    }
+
+    @SuppressWarnings( "deprecation" ) // DBPointer
+    private Object _decode( final byte type , final int d ){
+        Object created = null;
+
+        switch ( type ){
+        case NULL:
+        case UNDEFINED:
+            break;
+
+        case BOOLEAN:
+            created = _buf.get( d ) > 0;
+            break;
+
+        case NUMBER:
+            created = _buf.getDouble( d );
+            break;
+
+        case NUMBER_INT:
+            created = _buf.getInt( d );
+            break;
+
+        case NUMBER_LONG:
+            created = _buf.getLong( d );
+            break;
+
+        case SYMBOL:
+        case STRING:
+            created = _string( d + 4 , _buf.getInt( d ) - 1 );
+            break;
+
+        case OID:
+            created = new ObjectId( _buf.getInt( d ) , _buf.getInt( d + 4 ) , _buf.getInt( d + 8 ) );
+            break;
+
+        case REF:
+            final int nsLen = _buf.getInt( d );
+            final String ns = _string( d + 4 , nsLen - 1 );
+            final int o = d + 4 + nsLen;
+            ObjectId theOID = new ObjectId( _buf.getInt( o ) , _buf.getInt( o + 4 ) , _buf.getInt( o + 8 ) );
+            if ( theOID.equals( Bytes.COLLECTION_REF_ID ) )
+                created = _base.getCollectionFromFull( ns );
+            else
+                created = new DBPointer( this , null , _base , ns , theOID );
+            break;
+
+        case DATE:
+            created = new Date( _buf.getLong( d ) );
+            break;
+
+        case REGEX:
+            final int patternLen = _cStrLength( d );
+            created = Pattern.compile( _string( d , patternLen - 1 ) ,
+                                       Bytes.patternFlags( _string( d + patternLen , _cStrLength( d + patternLen ) - 1 ) ) );
+            break;
+
+        case BINARY:
+            created = _binary( d );
+            break;
+
+        case CODE:
+            throw new UnsupportedOperationException( "can't handle CODE yet" );
+
+        case ARRAY:
+            BasicDBList lst = new BasicDBList();
+            int pos = d + 4;
+            while ( _buf.get( pos ) != EOO ){
+                final byte t = _buf.get( pos );
+                final int data = pos + _cStrLength( pos + 1 ) + 1;
+                lst.add( _decode( t , data ) );
+                pos = data + _size( t , data );
+            }
+            created = lst;
+            break;
+
+        case OBJECT:
+            LazyDBObject sub = new LazyDBObject( _buf , d , _base , null );
+            if ( sub.containsField( "$ref" ) && sub.containsField( "$id" ) )
+                created = new DBRef( _base , sub.get( "$ref" ).toString() , sub.get( "$id" ) );
+            else
+                created = sub;
+            break;
+
+        case TIMESTAMP:
+            created = new DBTimestamp( _buf.getInt( d + 4 ) , _buf.getInt( d ) );
+            break;
+
+        case MINKEY:
+            created = "MinKey";
+            break;
+
+        case MAXKEY:
+            created = "MaxKey";
+            break;
+
+        default:
+            throw new UnsupportedOperationException( "LazyDBObject can't handle type : " + type );
+        }
+
+        return Bytes.applyDecodingHooks( type , created );
+    }
+
+    private Object _binary( final int d ){
+        final int totalLen = _buf.getInt( d );
+        final byte bType = _buf.get( d + 4 );
+
+        if ( bType == B_BINARY ){
+            final int len = _buf.getInt( d + 5 );
+            if ( len + 4 != totalLen )
+                throw new MongoInternalException( "bad data size got subtype 2 len: " + len + " totalLen: " + totalLen );
+            return _bytes( d + 9 , len );
+        }
+
+        return new DBBinary( bType , _bytes( d + 5 , totalLen ) );
+    }
+
+    /**
+     * how many bytes the value of an element of this type starting at d takes up
+     */
+    int _size( final byte type , final int d ){
+        switch ( type ){
+        case NULL:
+        case UNDEFINED:
+        case MINKEY:
+        case MAXKEY:
+            return 0;
+        case BOOLEAN:
+            return 1;
+        case NUMBER_INT:
+            return 4;
+        case NUMBER:
+        case NUMBER_LONG:
+        case DATE:
+        case TIMESTAMP:
+            return 8;
+        case OID:
+            return 12;
+        case REF:
+            return 4 + _buf.getInt( d ) + 12;
+        case SYMBOL:
+        case CODE:
+        case STRING:
+            return 4 + _buf.getInt( d );
+        case CODE_W_SCOPE:
+        case ARRAY:
+        case OBJECT:
+            return _buf.getInt( d );
+        case BINARY:
+            return 4 + 1 + _buf.getInt( d );
+        case REGEX:
+            final int first = _cStrLength( d );
+            return first + _cStrLength( d + first );
+        }
+        throw new UnsupportedOperationException( "LazyDBObject can't size type : " + type );
+    }
+
+    /**
+     * includes 0 at end
+     */
+    int _cStrLength( final int start ){
+        int end = start;
+        while ( _buf.get( end ) != 0 )
+            end++;
+        return 1 + ( end - start );
+    }
+
+    String _string( final int start , final int len ){
+        try {
+            if ( _buf.hasArray() )
+                return new String( _buf.array() , _buf.arrayOffset() + start , len , "UTF-8" );
+            return new String( _bytes( start , len ) , "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException uee ){
+            throw new MongoInternalException( "impossible" , uee );
+        }
+    }
+
+    byte[] _bytes( final int start , final int len ){
+        byte[] b = new byte[len];
+        for ( int i=0; i<len; i++ )
+            b[i] = _buf.get( start + i );
+        return b;
+    }
+
+    /**
+     * where every field starts, built the first time a field is looked up
+     */
+    class Index {
+
+        Index(){
+            int[] names = new int[16];
+            int[] nameLens = new int[16];
+            byte[] types = new byte[16];
+            int[] data = new int[16];
+            int num = 0;
+
+            int pos = _offset + 4;
+            while ( true ){
+                final byte type = _buf.get( pos );
+                if ( type == EOO )
+                    break;
+
+                if ( num == names.length ){
+                    names = _grow( names );
+                    nameLens = _grow( nameLens );
+                    data = _grow( data );
+                    byte[] t = new byte[ types.length * 2 ];
+                    System.arraycopy( types , 0 , t , 0 , num );
+                    types = t;
+                }
+
+                final int nameLen = _cStrLength( pos + 1 ) - 1;
+                names[num] = pos + 1;
+                nameLens[num] = nameLen;
+                types[num] = type;
+                data[num] = pos + 1 + nameLen + 1;
+
+                pos = data[num] + _size( type , data[num] );
+                num++;
+            }
+
+            if ( pos + 1 - _offset != _buf.getInt( _offset ) )
+                throw new MongoInternalException( "lengths don't match " + ( pos + 1 - _offset ) + " != " + _buf.getInt( _offset ) );
+
+            _names = names;
+            _nameLens = nameLens;
+            _types = types;
+            _data = data;
+            _num = num;
+            _values = new Object[num];
+        }
+
+        int find( String key ){
+            for ( int i=0; i<_num; i++ )
+                if ( _nameIs( i , key ) )
+                    return i;
+            return -1;
+        }
+
+        /**
+         * compares without making a String unless the key isn't plain ascii
+         */
+        boolean _nameIs( int i , String key ){
+            final int start = _names[i];
+            final int len = _nameLens[i];
+            if ( len < key.length() )
+                return false;
+
+            for ( int j=0; j<key.length(); j++ ){
+                final char c = key.charAt( j );
+                if ( c >= 0x80 )
+                    return name( i ).equals( key );
+                if ( _buf.get( start + j ) != c )
+                    return false;
+            }
+            return len == key.length();
+        }
+
+        String name( int i ){
+            return _string( _names[i] , _nameLens[i] );
+        }
+
+        final int[] _names;
+        final int[] _nameLens;
+        final byte[] _types;
+        final int[] _data;
+        final int _num;
+        final Object[] _values;
+    }
+
+    private static int[] _grow( int[] a ){
+        int[] n = new int[ a.length * 2 ];
+        System.arraycopy( a , 0 , n , 0 , a.length );
+        return n;
+    }
+
+    final ByteBuffer _buf;
+    final int _offset;
+    final DB _base;
+    final String _ns;
+
+    private Index _index;
+    private boolean _partial = false;
+}
@@ -4,10 +4,10 @@ package com.mongodb;
 
 public class MapReduceOutput {
 
-    MapReduceOutput( DBCollection from , BasicDBObject raw ){
-        _collname = raw.getString( "result" );
+    MapReduceOutput( DBCollection from , DBObject raw ){
+        _collname = BasicDBObject._string( raw , "result" );
         _coll = from._db.getCollection( _collname );
-        _counts = (BasicDBObject)raw.get( "counts" );
+        _counts = (DBObject)raw.get( "counts" );
     }
 
     public DBCursor results(){
@@ -20,5 +20,5 @@ public class MapReduceOutput {
     
     final String _collname;
     final DBCollection _coll;
-    final BasicDBObject _counts;
+    final DBObject _counts;
 }
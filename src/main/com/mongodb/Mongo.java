@@ -146,9 +146,9 @@ public class Mongo {
         cmd.put("listDatabases", 1);
         
 
-        BasicDBObject res = (BasicDBObject)getDB( "admin" ).command(cmd);
+        DBObject res = getDB( "admin" ).command(cmd);
 
-        if (res.getInt("ok" , 0 ) != 1 )
+        if (BasicDBObject._int(res, "ok" , 0 ) != 1 )
             throw new MongoException( "error listing databases : " + res );
 
         BasicDBList l = (BasicDBList)res.get("databases");
@@ -156,7 +156,7 @@ public class Mongo {
         List<String> list = new ArrayList<String>();
 
         for (Object o : l) {
-            list.add(((BasicDBObject)o).getString("name"));
+            list.add(BasicDBObject._string((DBObject)o, "name"));
         }
         return list;
     }
@@ -191,7 +191,34 @@ public class Mongo {
     public DBAddress getAddress(){
         return _connector.getAddress();
     }
+
+    /**
+     * Starts sending connection pool events for every host this Mongo talks to to the listener.
+     */
+    public void addConnectionPoolListener( ConnectionPoolListener listener ){
+        _connector.getConnectionPoolListeners().add( listener );
+    }
+
+    public void removeConnectionPoolListener( ConnectionPoolListener listener ){
+        _connector.getConnectionPoolListeners().remove( listener );
+    }
+
+    /**
+     * @return counters for the connection pool to the host currently being used
+     */
+    public ConnectionPoolStats getConnectionPoolStats(){
+        return _connector.getConnectionPoolStats();
+    }
     
+    /**
+     * Kills any cursors the reaper has queued, stops the reaper and async threads,
+     * closes every connection and unregisters the pool mbeans.
+     * Don't use this Mongo or anything from it afterwards.
+     */
+    public void close(){
+        _connector.close();
+    }
+
     final DBAddress _addr;
     final List<DBAddress> _addrs;
     final MongoOptions _options;
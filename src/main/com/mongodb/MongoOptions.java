@@ -33,6 +33,11 @@ public class MongoOptions {
         connectTimeout = 0;
         socketTimeout = 0;
         autoConnectRetry = false;
+        multiplex = false;
+        multiplexedConnectionsPerHost = 2;
+        jmx = false;
+        cursorReaperInterval = 1000;
+        basicDBObjects = false;
     }
 
     /**
@@ -63,4 +68,35 @@ public class MongoOptions {
        this controls whether or not on a connect, the system retries automatically 
     */
     public boolean autoConnectRetry;
+
+    /**
+       if true, queries and getMores that aren't part of a request share a few sockets per host,
+       with many of them in flight on each socket at once and replies matched up by responseTo.
+       writes and anything inside requestStart/requestDone still get a socket to themselves
+     */
+    public boolean multiplex;
+
+    /**
+       number of shared sockets per host used when multiplex is on
+     */
+    public int multiplexedConnectionsPerHost;
+
+    /**
+       if true, the stats for each host's connection pool are registered with the platform MBeanServer
+       as com.mongodb:type=ConnectionPool
+     */
+    public boolean jmx;
+
+    /**
+       how often, in milliseconds, cursors that were abandoned before being exhausted are killed on the server.
+       all the cursors waiting to be killed on a host go in one message
+     */
+    public long cursorReaperInterval;
+
+    /**
+       if true, query results from collections without an object class are decoded as BasicDBObjects,
+       the way they were before CompactDBObject.  turn it on for code that casts results to BasicDBObject.
+       otherwise they're CompactDBObjects, which share field names between documents and have the same typed getters
+     */
+    public boolean basicDBObjects;
 }
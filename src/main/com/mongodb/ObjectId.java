@@ -19,11 +19,10 @@
 package com.mongodb;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.nio.*;
 import java.net.*;
 
-import com.mongodb.util.*;
-
 /**
  * A globally unique identifier for objects.
  * <p>Consists of 12 bytes, divided as follows:
@@ -46,6 +45,25 @@ public class ObjectId implements Comparable<ObjectId>{
     public static ObjectId get(){
         return new ObjectId();
     }
+
+    /** Gets n new ids at once, for a batch of inserts.
+     * The incs are reserved as one block, so it's a single atomic add however big n is.
+     * @return n ids with the same time, in increasing order
+     */
+    public static ObjectId[] generate( int n ){
+        if ( n < 0 )
+            throw new IllegalArgumentException( "n has to be >= 0" );
+
+        final int time = _time();
+        final int start = _nextInc.getAndAdd( n );
+
+        ObjectId[] ids = new ObjectId[n];
+        for ( int i=0; i<n; i++ ){
+            ids[i] = new ObjectId( time , _genmachine , start + i );
+            ids[i]._new = true;
+        }
+        return ids;
+    }
     
     /** Checks if a string could be an <code>ObjectId</code>.
      * @return whether the string could be an object id
@@ -146,13 +164,9 @@ public class ObjectId implements Comparable<ObjectId>{
     /** Create a new object id.
      */
     public ObjectId(){
-        _time = _gentime;
+        _time = _time();
         _machine = _genmachine;
-        
-        synchronized ( _incLock ){
-            _inc = _nextInc++;
-        }
-        
+        _inc = _nextInc.getAndIncrement();
         _new = true;
     }
 
@@ -275,29 +289,27 @@ public class ObjectId implements Comparable<ObjectId>{
     boolean _new;
 
     static int _flip( int x ){
-        if ( true ){
-            byte b[] = new byte[4];
-            ByteBuffer bb = ByteBuffer.wrap( b );
-            bb.order( ByteOrder.LITTLE_ENDIAN );
-            bb.putInt( x );
-            bb.flip();
-            bb.order( ByteOrder.BIG_ENDIAN );
-            return bb.getInt();
+        return Integer.reverseBytes( x );
+    }
+
+    /**
+     * the current second, flipped.  never goes backwards in this process even if the clock does.
+     * only writes when the second changes, so it's just a read almost all the time
+     */
+    static int _time(){
+        final int now = (int)( System.currentTimeMillis() / 1000 );
+        while ( true ){
+            final int last = _lastTime.get();
+            if ( now <= last )
+                return _flip( last );
+            if ( _lastTime.compareAndSet( last , now ) )
+                return _flip( now );
         }
-        int z = 0;
-        z |= ( x & 0xFF ) << 24;
-        z |= ( x & 0xFF00 ) << 8;
-        z |= ( x & 0xFF00000 ) >> 8;
-        z |= ( x & 0xFF000000 ) >> 24;
-        return z;
     }
     
-    private static int _nextInc = (new java.util.Random()).nextInt();
-    private static final String _incLock = new String( "ObjectId._incLock" );
-
-    private static int _gentime = _flip( (int)(System.currentTimeMillis()/1000) );
+    private static final AtomicInteger _nextInc = new AtomicInteger( (new java.util.Random()).nextInt() );
+    private static final AtomicInteger _lastTime = new AtomicInteger( (int)( System.currentTimeMillis() / 1000 ) );
     
-    static final Thread _timeFixer;
     private static final int _genmachine;
     static {
 
@@ -324,23 +336,12 @@ public class ObjectId implements Comparable<ObjectId>{
         catch ( java.io.IOException ioe ){
             throw new RuntimeException( ioe );
         }
-
-        _timeFixer = new Thread("ObjectId-TimeFixer"){
-                public void run(){
-                    while ( true ){
-                        ThreadUtil.sleep( 499 );
-                        _gentime = _flip( (int)(System.currentTimeMillis()/1000) );
-                    }
-                }
-            };
-        _timeFixer.setDaemon( true );
-        _timeFixer.start();
     }
 
     public static void main( String args[] ){
         
         if ( true ){
-            int z = _nextInc;
+            int z = _nextInc.get();
             System.out.println( Integer.toHexString( z ) );
             System.out.println( Integer.toHexString( _flip( z ) ) );
             System.out.println( Integer.toHexString( _flip( _flip( z ) ) ) );
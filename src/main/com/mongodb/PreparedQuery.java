@@ -0,0 +1,154 @@
+// PreparedQuery.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.util.*;
+
+/**
+ * A query whose constant part is encoded once.  Each call copies those bytes
+ * and only encodes the parameter values.  Get one from DBCollection.prepareQuery().
+ * <blockquote><pre>
+ *     PreparedQuery byId = collection.prepareQuery( new BasicDBObject( "_id" , null ) , null , "_id" );
+ *     DBObject a = byId.findOne( 17 );
+ *     DBObject b = byId.findOne( 18 );
+ * </pre></blockquote>
+ * It can be used from any number of threads.
+ */
+public class PreparedQuery {
+
+    PreparedQuery( DBApiLayer.MyCollection collection , DBObject query , DBObject fields , String[] params ){
+        if ( query == null )
+            query = new BasicDBObject();
+
+        for ( String p : params )
+            if ( ! query.containsField( p ) )
+                throw new IllegalArgumentException( "param [" + p + "] isn't a field of the query" );
+
+        _collection = collection;
+        _params = params;
+        _ns = collection._nsBytes;
+
+        List<Integer> holes = new ArrayList<Integer>();
+        List<Integer> order = new ArrayList<Integer>();
+
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            // the query's fields without its length, which depends on the values
+            for ( String key : query.keySet() ){
+                final int p = Arrays.asList( params ).indexOf( key );
+                if ( p >= 0 ){
+                    holes.add( (int)encoder.getPosition() );
+                    order.add( p );
+                    continue;
+                }
+                encoder.putField( key , query.get( key ) );
+            }
+            encoder._putByte( Bytes.EOO );
+            _queryEnd = (int)encoder.getPosition();
+
+            if ( fields != null )
+                encoder.putObject( fields );
+
+            _template = encoder.getBytes();
+        }
+        finally {
+            encoder.done();
+        }
+
+        _holes = new int[ holes.size() ];
+        _order = new int[ order.size() ];
+        for ( int i=0; i<_holes.length; i++ ){
+            _holes[i] = holes.get( i );
+            _order[i] = order.get( i );
+        }
+    }
+
+    /**
+     * @param values one for each param, in the order they were named
+     * @return the first match, or null
+     */
+    public DBObject findOne( Object ... values )
+        throws MongoException {
+        Iterator<DBObject> i = _collection.find( _encode( -1 , values ) , -1 );
+        if ( i == null || ! i.hasNext() )
+            return null;
+        return i.next();
+    }
+
+    /**
+     * @param values one for each param, in the order they were named
+     * @return everything that matches
+     */
+    public Iterator<DBObject> find( Object ... values )
+        throws MongoException {
+        Iterator<DBObject> i = _collection.find( _encode( 0 , values ) , 0 );
+        if ( i == null )
+            return new LinkedList<DBObject>().iterator();
+        return i;
+    }
+
+    /**
+     * the whole query message, with the values in the holes.  flipped and ready to send
+     */
+    ByteEncoder _encode( int numToReturn , Object[] values ){
+        if ( values.length != _params.length )
+            throw new IllegalArgumentException( "need " + _params.length + " values, got " + values.length );
+
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder._putInt( 0 ); // options
+            encoder._putBytes( _ns );
+            encoder._putInt( 0 ); // skip
+            encoder._putInt( numToReturn );
+
+            final int start = (int)encoder.getPosition();
+            encoder._putInt( 0 ); // query size, set below
+
+            int from = 0;
+            for ( int i=0; i<_holes.length; i++ ){
+                encoder._putBytes( _template , from , _holes[i] - from );
+                encoder.putField( _params[ _order[i] ] , values[ _order[i] ] );
+                from = _holes[i];
+            }
+            encoder._putBytes( _template , from , _queryEnd - from );
+            encoder._putInt( start , (int)encoder.getPosition() - start );
+
+            encoder._putBytes( _template , _queryEnd , _template.length - _queryEnd );
+            encoder.flip();
+            return encoder;
+        }
+        catch ( RuntimeException e ){
+            encoder.done();
+            throw e;
+        }
+    }
+
+    final DBApiLayer.MyCollection _collection;
+    final String[] _params;
+    final byte[] _ns;
+
+    /** the query's fields, its EOO, and the fields to return */
+    final byte[] _template;
+    /** where in _template each param's field goes, in query order */
+    final int[] _holes;
+    /** which param goes in each hole */
+    final int[] _order;
+    /** where the query ends in _template */
+    final int _queryEnd;
+}
@@ -91,34 +91,21 @@ public class RawDBObject implements DBObject {
 
     public Set<String> keySet(){    
         Set<String> keys = new HashSet<String>();
-        
-        ElementIter i = new ElementIter();
-        while ( i.hasNext() ){
-            Element e = i.next();
-	    if ( e.eoo() )
-		break;
+        for ( Element e : _elements() )
             keys.add( e.fieldName() );
-        }
-        
         return keys;
     }
-    String _readCStr( final int start ){
-	return _readCStr( start , null );
-    }
-    
-    String _readCStr( final int start , final int[] end ){
-        synchronized ( _cStrBuf ){
-            int pos = 0;
-            while ( _buf.get( pos + start ) != 0 ){
-                _cStrBuf[pos] = _buf.get( pos + start );
-                pos++;
-                if ( pos >= _cStrBuf.length )
-                    throw new IllegalArgumentException( "c string too big for RawDBObject.  so far[" + new String( _cStrBuf ) + "]" );
-            }
-            if ( end != null && end.length > 0 )
-                end[0] = start + pos;
-            return new String( _cStrBuf , 0 , pos );
 
+    String _readCStr( final int start ){
+        final int len = _cStrLength( start ) - 1;
+        final byte[] b = new byte[len];
+        for ( int pos=0; pos<len; pos++ )
+            b[pos] = _buf.get( pos + start );
+        try {
+            return new String( b , "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException uee ){
+            return new String( b );
         }
     }
 
@@ -126,11 +113,8 @@ public class RawDBObject implements DBObject {
 	int size = _buf.getInt( start ) - 1;
 	
 	byte[] b = new byte[size];
-
-	int old = _buf.position();
-	_buf.position( start + 4 );
-	_buf.get( b , 0 , b.length );
-	_buf.position( old );
+	for ( int i=0; i<size; i++ )
+	    b[i] = _buf.get( start + 4 + i );
 	
 	try {
 	    return new String( b , "UTF-8" );
@@ -151,13 +135,50 @@ public class RawDBObject implements DBObject {
     }
 
     Element findElement( String name ){
+        final byte[] utf8 = _isAscii( name ) ? null : _utf8( name );
+        for ( Element e : _elements() )
+            if ( utf8 == null ? e.nameIs( name ) : e.nameIs( utf8 ) )
+                return e;
+        return null;
+    }
+
+    /**
+     * every element but the terminating one, found on first use.
+     * Elements don't touch the buffer's position, so any number of threads can share this
+     */
+    Element[] _elements(){
+        Element[] all = _elements;
+        if ( all != null )
+            return all;
+
+        List<Element> lst = new ArrayList<Element>();
         ElementIter i = new ElementIter();
         while ( i.hasNext() ){
             Element e = i.next();
-            if ( e.fieldName().equals( name ) )
-                return e;
+            if ( e.eoo() )
+                break;
+            lst.add( e );
+        }
+
+        all = lst.toArray( new Element[ lst.size() ] );
+        _elements = all;
+        return all;
+    }
+
+    static boolean _isAscii( String s ){
+        for ( int i=0; i<s.length(); i++ )
+            if ( s.charAt( i ) >= 0x80 )
+                return false;
+        return true;
+    }
+
+    static byte[] _utf8( String s ){
+        try {
+            return s.getBytes( "UTF-8" );
+        }
+        catch ( java.io.UnsupportedEncodingException uee ){
+            return s.getBytes();
         }
-        return null;
     }
 
     public boolean isPartialObject(){
@@ -177,12 +198,11 @@ public class RawDBObject implements DBObject {
         Element( final int start ){
             _start = start;
             _type = _buf.get( _start );
-            int end[] = new int[1];
-            _name = eoo() ? "" : _readCStr( _start + 1 , end );
+            _nameLength = eoo() ? 0 : _cStrLength( _start + 1 ) - 1;
             
-	    if ( DEBUG ) System.out.println( "name [" + _name + "] type [" + _type + "]" );
+	    if ( DEBUG ) System.out.println( "name [" + fieldName() + "] type [" + _type + "]" );
 	    
-            int size = 1 + ( end[0] - _start); // 1 for the end of the string
+            int size = eoo() ? 1 : 1 + _nameLength + 1; // type, name, 0 at the end of the name
             _dataStart = _start + size;
 
             switch ( _type ){
@@ -236,7 +256,35 @@ public class RawDBObject implements DBObject {
         }
 
         String fieldName(){
-            return _name;
+            String n = _name;
+            if ( n == null ){
+                n = eoo() ? "" : _readCStr( _start + 1 );
+                _name = n;
+            }
+            return n;
+        }
+
+        /**
+         * true if name is plain ascii and equal to this element's name.  no String gets made
+         */
+        boolean nameIs( String name ){
+            if ( name.length() != _nameLength )
+                return false;
+            final int start = _start + 1;
+            for ( int i=0; i<_nameLength; i++ )
+                if ( _buf.get( start + i ) != name.charAt( i ) )
+                    return false;
+            return true;
+        }
+
+        boolean nameIs( byte[] utf8 ){
+            if ( utf8.length != _nameLength )
+                return false;
+            final int start = _start + 1;
+            for ( int i=0; i<_nameLength; i++ )
+                if ( _buf.get( start + i ) != utf8[i] )
+                    return false;
+            return true;
         }
 
         boolean eoo(){
@@ -291,10 +339,12 @@ public class RawDBObject implements DBObject {
 
         final int _start;
         final byte _type;
-        final String _name;
+        final int _nameLength;
         final int _dataStart;
         final int _size;
 
+        String _name;
+
         Object _cached;
     }
     
@@ -305,7 +355,7 @@ public class RawDBObject implements DBObject {
         }
         
         boolean hasNext(){
-            return ! _done && _pos < _buf.limit();
+            return ! _done && _pos < _offset + _end;
         }
         
         Element next(){
@@ -323,5 +373,6 @@ public class RawDBObject implements DBObject {
     final ByteBuffer _buf;
     final int _offset;
     final int _end;
-    private final static byte[] _cStrBuf = new byte[1024];
+
+    private volatile Element[] _elements;
 }
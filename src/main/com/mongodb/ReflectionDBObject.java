@@ -19,6 +19,7 @@
 package com.mongodb;
 
 import java.util.*;
+import java.lang.ref.*;
 import java.lang.reflect.*;
 
 import com.mongodb.util.*;
@@ -101,12 +102,18 @@ public abstract class ReflectionDBObject implements DBObject {
     JavaWrapper _wrapper;
     Object _id;
 
+    /**
+     * Everything needed to read and write one class's fields, worked out once per class.
+     * Fields are looked up by hash, and the encoder walks them as an array.
+     * The getters and setters are made accessible up front, so each call skips the access check,
+     * and the jvm turns a Method that gets called a lot into generated bytecode on its own.
+     */
     public static class JavaWrapper {
         JavaWrapper( Class c ){
             _class = c;
             _name = c.getName();
 
-            _fields = new TreeMap<String,FieldInfo>();
+            TreeMap<String,FieldInfo> fields = new TreeMap<String,FieldInfo>();
             for ( Method m : c.getMethods() ){
                 if ( ! ( m.getName().startsWith( "get" ) || m.getName().startsWith( "set" ) ) )
                     continue;
@@ -117,24 +124,34 @@ public abstract class ReflectionDBObject implements DBObject {
 
                 Class type = m.getName().startsWith( "get" ) ? m.getReturnType() : m.getParameterTypes()[0];
 
-                FieldInfo fi = _fields.get( name );
+                FieldInfo fi = fields.get( name );
                 if ( fi == null ){
                     fi = new FieldInfo( name , type );
-                    _fields.put( name , fi );
+                    fields.put( name , fi );
                 }
                 
                 if ( m.getName().startsWith( "get" ) )
-                    fi._getter = m;
+                    fi._getter = _accessible( m );
                 else
-                    fi._setter = m;
+                    fi._setter = _accessible( m );
             }
 
-            Set<String> names = new HashSet<String>( _fields.keySet() );
+            Set<String> names = new HashSet<String>( fields.keySet() );
             for ( String name : names )
-                if ( ! _fields.get( name ).ok() )
-                    _fields.remove( name );
+                if ( ! fields.get( name ).ok() )
+                    fields.remove( name );
             
-            _keys = Collections.unmodifiableSet( _fields.keySet() );
+            _keys = Collections.unmodifiableSet( new LinkedHashSet<String>( fields.keySet() ) );
+            _fields = new HashMap<String,FieldInfo>( fields );
+
+            // the order the encoder writes them in, _id first like any other object
+            List<FieldInfo> ordered = new ArrayList<FieldInfo>( fields.values() );
+            FieldInfo id = fields.get( "_id" );
+            if ( id != null ){
+                ordered.remove( id );
+                ordered.add( 0 , id );
+            }
+            _ordered = ordered.toArray( new FieldInfo[ ordered.size() ] );
         }
 
         public Set<String> keySet(){
@@ -149,12 +166,7 @@ public abstract class ReflectionDBObject implements DBObject {
             FieldInfo i = _fields.get( name );
             if ( i == null )
                 return null;
-            try {
-                return i._getter.invoke( t );
-            }
-            catch ( Exception e ){
-                throw new RuntimeException( "could not invoke getter for [" + name + "] on [" + _name + "]" , e );
-            }
+            return i.get( t , _name );
         }
 
         public Object set( ReflectionDBObject t , String name , Object val ){
@@ -163,12 +175,7 @@ public abstract class ReflectionDBObject implements DBObject {
             FieldInfo i = _fields.get( name );
             if ( i == null )
                 throw new IllegalArgumentException( "no field [" + name + "] on [" + _name + "]" );
-            try {
-                return i._setter.invoke( t , val );
-            }
-            catch ( Exception e ){
-                throw new RuntimeException( "could not invoke setter for [" + name + "] on [" + _name + "]" , e );
-            }
+            return i.set( t , val , _name );
         }
 
         Class getInternalClass( String path ){
@@ -197,6 +204,7 @@ public abstract class ReflectionDBObject implements DBObject {
         final String _name;
         final Map<String,FieldInfo> _fields;
         final Set<String> _keys;
+        final FieldInfo[] _ordered;
     }
     
     static class FieldInfo {
@@ -210,6 +218,37 @@ public abstract class ReflectionDBObject implements DBObject {
                 _getter != null &&
                 _setter != null;
         }
+
+        Object get( Object t , String className ){
+            try {
+                return _getter.invoke( t );
+            }
+            catch ( InvocationTargetException ite ){
+                throw _rethrow( ite , "getter" , className );
+            }
+            catch ( IllegalAccessException iae ){
+                throw new RuntimeException( "could not invoke getter for [" + _name + "] on [" + className + "]" , iae );
+            }
+        }
+
+        Object set( Object t , Object val , String className ){
+            try {
+                return _setter.invoke( t , val );
+            }
+            catch ( InvocationTargetException ite ){
+                throw _rethrow( ite , "setter" , className );
+            }
+            catch ( IllegalAccessException iae ){
+                throw new RuntimeException( "could not invoke setter for [" + _name + "] on [" + className + "]" , iae );
+            }
+        }
+
+        /** what the getter or setter threw, as is if it can be */
+        private RuntimeException _rethrow( InvocationTargetException ite , String what , String className ){
+            if ( ite.getCause() instanceof RuntimeException )
+                return (RuntimeException)ite.getCause();
+            return new RuntimeException( "could not invoke " + what + " for [" + _name + "] on [" + className + "]" , ite.getCause() );
+        }
         
         final String _name;
         final Class _class;
@@ -223,16 +262,37 @@ public abstract class ReflectionDBObject implements DBObject {
         return null;
     }
 
+    /**
+     * Wrappers are cached per class.  The class is a weak key and the wrapper is softly held,
+     * since it refers back to the class, so the cache doesn't keep a classloader around.
+     * Collections and objects hold on to the wrapper they use.
+     */
     public static JavaWrapper getWrapper( Class c ){
-        JavaWrapper w = _wrappers.get( c );
-        if ( w == null ){
-            w = new JavaWrapper( c );
-            _wrappers.put( c , w );
+        synchronized ( _wrappers ){
+            SoftReference<JavaWrapper> ref = _wrappers.get( c );
+            JavaWrapper w = ref == null ? null : ref.get();
+            if ( w == null ){
+                w = new JavaWrapper( c );
+                _wrappers.put( c , new SoftReference<JavaWrapper>( w ) );
+            }
+            return w;
+        }
+    }
+
+    /**
+     * public methods of a class that isn't public can't be called through reflection until they're made accessible
+     */
+    static <T extends AccessibleObject> T _accessible( T m ){
+        try {
+            m.setAccessible( true );
+        }
+        catch ( SecurityException se ){
+            // fine, the access check just happens every call
         }
-        return w;
+        return m;
     }
     
-    private static final Map<Class,JavaWrapper> _wrappers = Collections.synchronizedMap( new HashMap<Class,JavaWrapper>() );
+    private static final Map<Class,SoftReference<JavaWrapper>> _wrappers = new WeakHashMap<Class,SoftReference<JavaWrapper>>();
     private static final Set<String> IGNORE_FIELDS = new HashSet<String>();
     static {
         IGNORE_FIELDS.add( "Int" );
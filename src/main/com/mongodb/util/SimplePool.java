@@ -19,6 +19,8 @@
 package com.mongodb.util;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public abstract class SimplePool<T> {
 
@@ -66,16 +68,19 @@ public abstract class SimplePool<T> {
      * @param t Object to add
      */
     public void done( T t ){
-        _where.remove( _hash( t ) );
+        if ( _trackLeaks ){
+            synchronized ( _where ){
+                _where.remove( _hash( t ) );
+            }
+        }
         
-        if ( ! ok( t ) ){
-            synchronized ( _avail ){
+        _lock.lock();
+        try {
+            if ( ! ok( t ) ){
                 _all.remove( t );
+                return;
             }
-            return;
-        }
 
-        synchronized ( _avail ){
             if ( _maxToKeep < 0 || _avail.size() < _maxToKeep ){
                 for ( int i=0; i<_avail.size(); i++ )
                     if ( _avail.get( i ) == t )
@@ -86,6 +91,11 @@ public abstract class SimplePool<T> {
                     _avail.add( t );
             }
         }
+        finally {
+            // either it's available or there's room to make another
+            _returned.signal();
+            _lock.unlock();
+        }
     }
 
     /** Gets an object from the pool - will block if none are available
@@ -109,7 +119,9 @@ public abstract class SimplePool<T> {
             if ( _trackLeaks ){
                 Throwable stack = new Throwable();
                 stack.fillInStackTrace();
-                _where.put( _hash( t ) , stack );
+                synchronized ( _where ){
+                    _where.put( _hash( t ) , stack );
+                }
             }
         }
         return t;
@@ -119,10 +131,19 @@ public abstract class SimplePool<T> {
         return System.identityHashCode( t );
     }
     
+    /**
+     * waits on a Condition rather than sleeping, so done() wakes a waiter right away,
+     * and a virtual thread waiting here doesn't pin its carrier.
+     * the wait is still in _sleepTime slices, since leaked objects only free up room when they're collected
+     */
     private T _get( long waitTime ){
-	long totalSlept = 0;
+	final long start = System.currentTimeMillis();
         while ( true ){
-            synchronized ( _avail ){
+            long totalSlept = System.currentTimeMillis() - start;
+            boolean gc = false;
+
+            _lock.lock();
+            try {
 
                 while ( _avail.size() > 0 ){
                     T t = _avail.remove( _avail.size() - 1 );
@@ -142,35 +163,77 @@ public abstract class SimplePool<T> {
                     return t;
                 }
 		
+                T idle = idle();
+                if ( idle != null ){
+                    if ( ok( idle ) )
+                        return idle;
+                    _all.remove( idle );
+                    continue;
+                }
+
                 if ( _trackLeaks && _trackPrintCount++ % 200 == 0 ){
                     _wherePrint();
                     _trackPrintCount = 1;
                 }
-            }
 	    
-	    if ( waitTime == 0 )
-		return null;
+                if ( waitTime == 0 )
+                    return null;
 
-	    if ( waitTime > 0 && totalSlept >= waitTime )
-		return null;
-	    
-            if ( _consecutiveSleeps > 100 && totalSlept > _sleepTime * 2 )
-                _gcIfNeeded();
+                if ( waitTime > 0 && totalSlept >= waitTime )
+                    return null;
+
+                gc = _consecutiveSleeps > 100 && totalSlept > _sleepTime * 2;
+                _consecutiveSleeps++;
+
+                long slice = _sleepTime;
+                if ( waitTime > 0 )
+                    slice = Math.min( slice , waitTime - totalSlept );
+                _waiting++;
+                try {
+                    _returned.await( slice , TimeUnit.MILLISECONDS );
+                }
+                catch ( InterruptedException ie ){
+                    // same as ThreadUtil.sleep, keep waiting
+                }
+                finally {
+                    _waiting--;
+                }
+            }
+            finally {
+                _lock.unlock();
+            }
 
-            _consecutiveSleeps++;
-	    totalSlept += _sleepTime;
-            ThreadUtil.sleep( _sleepTime );
+            if ( gc )
+                _gcIfNeeded();
         }
     }
 
+    /**
+     * called with the pool empty and full, before waiting.
+     * lets a subclass give back an object it's holding on to outside _avail
+     * @return an object already counted in this pool, or null
+     */
+    protected T idle(){
+        return null;
+    }
+
+    /**
+     * @return true if some thread is waiting in get() for an object to come back, more or less
+     */
+    protected boolean hasWaiters(){
+        return _waiting > 0;
+    }
+
     private void _wherePrint(){
         StringBuilder buf = new StringBuilder( "Pool : " + _name + " waiting b/c of\n" );
-        for ( Throwable t : _where.values() ){
-            buf.append( "--\n" );
-            final StackTraceElement[] st = t.getStackTrace();
-            for ( int i=0; i<st.length; i++ )
-                buf.append( "  " ).append( st[i] ).append( "\n" );
-            buf.append( "----\n" );
+        synchronized ( _where ){
+            for ( Throwable t : _where.values() ){
+                buf.append( "--\n" );
+                final StackTraceElement[] st = t.getStackTrace();
+                for ( int i=0; i<st.length; i++ )
+                    buf.append( "  " ).append( st[i] ).append( "\n" );
+                buf.append( "----\n" );
+            }
         }
 
         System.out.println( buf );
@@ -178,9 +241,17 @@ public abstract class SimplePool<T> {
 
     /** Clears the pool of all objects. */
     protected void clear(){
-        _avail.clear();
-        _all.clear();
-        _where.clear(); // is this correct
+        _lock.lock();
+        try {
+            _avail.clear();
+            _all.clear();
+        }
+        finally {
+            _lock.unlock();
+        }
+        synchronized ( _where ){
+            _where.clear(); // is this correct
+        }
     }
 
     public int total(){
@@ -220,6 +291,8 @@ public abstract class SimplePool<T> {
     protected final boolean _trackLeaks;
     protected final boolean _debug;
 
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _returned = _lock.newCondition();
     private final List<T> _avail = new ArrayList<T>();
     private final WeakBag<T> _all = new WeakBag<T>();
     private final Map<Integer,Throwable> _where = new HashMap<Integer,Throwable>();
@@ -227,6 +300,7 @@ public abstract class SimplePool<T> {
     private int _everCreated = 0;
     private int _trackPrintCount = 0;
     private int _consecutiveSleeps = 0;
+    private volatile int _waiting = 0;
 
 
     private static void _gcIfNeeded(){
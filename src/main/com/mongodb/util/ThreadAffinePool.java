@@ -0,0 +1,184 @@
+// ThreadAffinePool.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb.util;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A SimplePool where up to maxToKeep threads each own a slot, so they get back the object
+ * they gave back last without taking the pool's lock.  Threads past that go to the pool as usual.
+ * Everything in the slots came from the pool and counts against maxTotal,
+ * and when the pool runs dry the slots are emptied before anyone waits.
+ * Slots of threads that have died are taken back, then or when threads without one keep asking.
+ * Only give back objects that came from get(): unlike SimplePool, done() doesn't check.
+ */
+public abstract class ThreadAffinePool<T> extends SimplePool<T> {
+
+    public ThreadAffinePool( String name , int maxToKeep , int maxTotal ){
+        super( name , maxToKeep , maxTotal );
+        _maxOwners = maxToKeep >= 0 ? maxToKeep : Integer.MAX_VALUE;
+    }
+
+    public T get( long waitTime ){
+        final Slot<T> s = _mine.get();
+        if ( s != null ){
+            final T t = s.getAndSet( null );
+            if ( t != null ){
+                if ( ok( t ) )
+                    return t;
+                super.done( t );
+            }
+        }
+        return super.get( waitTime );
+    }
+
+    public void done( T t ){
+        if ( ! _trackLeaks && ! hasWaiters() && ok( t ) ){
+            final Slot<T> s = _slot();
+            if ( s != null ){
+                if ( s.get() == t )
+                    throw new RuntimeException( "trying to put something back in the pool that's already there" );
+                if ( s.compareAndSet( null , t ) )
+                    return;
+            }
+        }
+        super.done( t );
+    }
+
+    /**
+     * @return this thread's slot, taking one if there's room, or null
+     */
+    private Slot<T> _slot(){
+        Slot<T> s = _mine.get();
+        if ( s != null )
+            return s;
+
+        if ( _owners.get() >= _maxOwners ){
+            if ( ( _misses.incrementAndGet() % PRUNE_EVERY ) != 0 || _prune() == 0 )
+                return null;
+        }
+
+        while ( true ){
+            final int n = _owners.get();
+            if ( n >= _maxOwners )
+                return null;
+            if ( _owners.compareAndSet( n , n + 1 ) )
+                break;
+        }
+        s = new Slot<T>( Thread.currentThread() );
+        _slots.add( s );
+        _mine.set( s );
+        return s;
+    }
+
+    /**
+     * gives up the slots of threads that are gone, putting what was in them back in the pool.
+     * if another thread is already at it this one doesn't wait
+     * @return how many were given up
+     */
+    private int _prune(){
+        if ( ! _pruning.tryLock() )
+            return 0;
+        try {
+            int n = 0;
+            for ( Iterator<Slot<T>> i = _slots.iterator(); i.hasNext(); ){
+                final Slot<T> s = i.next();
+                if ( s.alive() )
+                    continue;
+                i.remove();
+                _owners.decrementAndGet();
+                n++;
+                final T t = s.getAndSet( null );
+                if ( t != null )
+                    super.done( t );
+            }
+            return n;
+        }
+        finally {
+            _pruning.unlock();
+        }
+    }
+
+    /**
+     * called with the pool's lock held, so doesn't give anything back to it
+     */
+    protected T idle(){
+        for ( Slot<T> s : _slots ){
+            final T t = s.getAndSet( null );
+            if ( t != null )
+                return t;
+        }
+        return null;
+    }
+
+    protected void clear(){
+        for ( Slot<T> s : _slots )
+            s.set( null );
+        super.clear();
+    }
+
+    public int inUse(){
+        return super.inUse() - cached();
+    }
+
+    /**
+     * @return how many objects are sitting in the slots right now, more or less
+     */
+    public int cached(){
+        int n = 0;
+        for ( Slot<T> s : _slots )
+            if ( s.get() != null )
+                n++;
+        return n;
+    }
+
+    /**
+     * @return how many threads have a slot
+     */
+    public int owners(){
+        return _owners.get();
+    }
+
+    static class Slot<T> extends AtomicReference<T> {
+        Slot( Thread owner ){
+            _owner = new WeakReference<Thread>( owner );
+        }
+
+        boolean alive(){
+            final Thread t = _owner.get();
+            return t != null && t.isAlive();
+        }
+
+        final WeakReference<Thread> _owner;
+    }
+
+    /** how many times threads without a slot ask for one between looks for dead owners */
+    static final int PRUNE_EVERY = 256;
+
+    private final int _maxOwners;
+    private final AtomicInteger _owners = new AtomicInteger();
+    private final AtomicInteger _misses = new AtomicInteger();
+    private final Lock _pruning = new ReentrantLock();
+    private final Queue<Slot<T>> _slots = new ConcurrentLinkedQueue<Slot<T>>();
+    private final ThreadLocal<Slot<T>> _mine = new ThreadLocal<Slot<T>>();
+}
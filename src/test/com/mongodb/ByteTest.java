@@ -18,10 +18,18 @@ package com.mongodb;
 
 import java.util.*;
 import java.util.regex.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.BufferOverflowException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.*;
 
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.ExpectedExceptions;
 import org.testng.annotations.Test;
 
@@ -47,13 +55,15 @@ public class ByteTest extends TestCase {
         
         encoder.flip();
         
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteBuffer buf = encoder.asBuffer();
+        
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         
         assertEquals( "horowitz" , read.get( "eliot" ).toString() );
         assertEquals( 517.0 , ((Integer)read.get( "num" )).doubleValue() );
         
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
     }
 
     @Test(groups = {"basic"})
@@ -71,13 +81,15 @@ public class ByteTest extends TestCase {
         
         encoder.flip();
         
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteBuffer buf = encoder.asBuffer();
+        
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         
         assertEquals( eliot , read.get( "eliot" ).toString() );
         assertEquals( 517.0 , ((Integer)read.get( "num" )).doubleValue() );
         
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
     }
 
     @Test(groups = {"basic"})
@@ -98,8 +110,10 @@ public class ByteTest extends TestCase {
         encoder.putObject( o );
 
         encoder.flip();
+
+        ByteBuffer buf = encoder.asBuffer();
         
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         
         assertEquals( "horowitz" , read.get( "eliot" ).toString() );
@@ -109,7 +123,7 @@ public class ByteTest extends TestCase {
         assertEquals( "y" , read.get( "z" ).toString() );
         assertEquals( o.keySet().size() , read.keySet().size() );
 
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
     }
 
     @Test(groups = {"basic"})
@@ -137,7 +151,9 @@ public class ByteTest extends TestCase {
         
         encoder.flip();
         
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteBuffer buf = encoder.asBuffer();
+        
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         
         assertEquals( "horowitz" , read.get( "eliot" ).toString() );
@@ -154,7 +170,7 @@ public class ByteTest extends TestCase {
         assertEquals( false , (Boolean)o.get("myf") );
         //assertEquals( o.get( "r" ).toString() , read.get("r").toString() );
 
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
     }
 
     @Test(groups = {"basic"})
@@ -185,14 +201,16 @@ public class ByteTest extends TestCase {
         assertEquals( pos, 277 );
 
         encoder.flip();
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+
+        ByteBuffer buf = encoder.asBuffer();
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         byte[] b = (byte[])read.get( "bytes" );
         for( int i=0; i<256; i++ ) {
             assertEquals( b[i], barray[i] );
         }
         assertEquals( o.keySet().size() , read.keySet().size() );
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
 
         encoder.done();
         decoder.done();
@@ -208,10 +226,12 @@ public class ByteTest extends TestCase {
         assertEquals( pos, serialized_len );
 
         encoder.flip();
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+
+        ByteBuffer buf = encoder.asBuffer();
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         assertEquals( o.keySet().size() - transient_fields, read.keySet().size() );
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
 
         encoder.done();
         decoder.done();
@@ -243,6 +263,38 @@ public class ByteTest extends TestCase {
     	
     	Assert.fail("BufferOverflowExceptiion not encountered");
     }
+
+    @Test(groups = {"basic"})
+    public void testSpansChunks(){
+        StringBuilder big = new StringBuilder();
+        for ( int i=0; i<ByteEncoder.CHUNK_SIZE; i++ )
+            big.append( (char)( 'a' + ( i % 26 ) ) );
+        big.append( "\u00e9\u4e2d" );
+
+        DBObject o = new BasicDBObject();
+        o.put( "big" , big.toString() );
+        for ( int i=0; i<5000; i++ )
+            o.put( "n" + i , i );
+        o.put( "bytes" , new byte[ ByteEncoder.CHUNK_SIZE * 2 + 7 ] );
+
+        ByteEncoder encoder = ByteEncoder.get();
+        int len = encoder.putObject( o );
+        encoder.flip();
+        assertTrue( encoder.buffers().length > 1 );
+
+        ByteBuffer buf = encoder.asBuffer();
+        assertEquals( len , buf.limit() );
+        assertEquals( len , buf.getInt( 0 ) );
+
+        ByteDecoder decoder = new ByteDecoder( buf );
+        DBObject read = decoder.readObject();
+        assertEquals( big.toString() , read.get( "big" ) );
+        assertEquals( 4999 , read.get( "n4999" ) );
+        assertEquals( ByteEncoder.CHUNK_SIZE * 2 + 7 , ((byte[])read.get( "bytes" )).length );
+        assertEquals( buf.limit() , buf.position() );
+
+        encoder.done();
+    }
     
     @Test(groups = {"basic"})
     public void testEncodeDecode() {
@@ -340,6 +392,143 @@ public class ByteTest extends TestCase {
         assertEquals( Bytes.cameFromDB( o ), true );
     }
 
+    @Test(groups = {"basic"})
+    public void testLazyObject() {
+        DBObject o = new BasicDBObject();
+        o.put( "_id" , new ObjectId() );
+        o.put( "s" , "horowitz\u00e9" );
+        o.put( "i" , 517 );
+        o.put( "l" , 5L );
+        o.put( "d" , 5.5 );
+        o.put( "b" , true );
+        o.put( "n" , null );
+        o.put( "date" , new Date( 1000 ) );
+        o.put( "r" , Pattern.compile( "a.*b" , Pattern.CASE_INSENSITIVE ) );
+        o.put( "bin" , new byte[]{ 1 , 2 , 3 } );
+        o.put( "sub" , new BasicDBObject( "x" , 1 ) );
+        o.put( "a" , Arrays.asList( new Object[]{ 1 , "z" , new BasicDBObject( "y" , 2 ) } ) );
+        o.put( "\u00fcber" , "last" );
+
+        ByteEncoder encoder = ByteEncoder.get();
+        encoder.putObject( o );
+        encoder.flip();
+
+        ByteBuffer buf = encoder.asBuffer();
+        LazyDBObject lazy = new LazyDBObject( buf , 0 , _db , "lazytest" );
+        DBObject read = new ByteDecoder( buf.duplicate().order( Bytes.ORDER ) ).readObject();
+        encoder.done();
+
+        assertEquals( read.get( "_id" ) , lazy.get( "_id" ) );
+        assertEquals( "horowitz\u00e9" , lazy.get( "s" ) );
+        assertEquals( 517 , lazy.get( "i" ) );
+        assertEquals( 5L , lazy.get( "l" ) );
+        assertEquals( 5.5 , lazy.get( "d" ) );
+        assertEquals( true , lazy.get( "b" ) );
+        assertNull( lazy.get( "n" ) );
+        assertTrue( lazy.containsField( "n" ) );
+        assertEquals( new Date( 1000 ) , lazy.get( "date" ) );
+        assertEquals( "a.*b" , ((Pattern)lazy.get( "r" )).pattern() );
+        assertEquals( Pattern.CASE_INSENSITIVE , ((Pattern)lazy.get( "r" )).flags() );
+        assertEquals( 3 , ((byte[])lazy.get( "bin" )).length );
+        assertEquals( 1 , ((DBObject)lazy.get( "sub" )).get( "x" ) );
+        assertEquals( 3 , ((List)lazy.get( "a" )).size() );
+        assertEquals( 2 , ((DBObject)((List)lazy.get( "a" )).get( 2 )).get( "y" ) );
+        assertEquals( "last" , lazy.get( "\u00fcber" ) );
+        assertNull( lazy.get( "nothere" ) );
+
+        assertEquals( "lazytest" , lazy.get( "_ns" ) );
+        assertTrue( Bytes.cameFromDB( lazy ) );
+        assertEquals( read.keySet().size() + 1 , lazy.keySet().size() );
+
+        DBObject full = lazy.materialize();
+        assertEquals( BasicDBObject.class , full.get( "sub" ).getClass() );
+        assertEquals( BasicDBObject.class , ((List)full.get( "a" )).get( 2 ).getClass() );
+        full.put( "s" , "changed" );
+        assertEquals( "horowitz\u00e9" , lazy.get( "s" ) );
+
+        boolean threw = false;
+        try {
+            lazy.put( "s" , "x" );
+        }
+        catch ( RuntimeException e ){
+            threw = true;
+        }
+        assertTrue( threw );
+    }
+
+    @Test(groups = {"basic"})
+    public void testRawObject() {
+        DBObject o = new BasicDBObject();
+        o.put( "a" , "x" );
+        o.put( "ab" , 5 );
+        o.put( "\u00fcber" , "u" );
+        o.put( "$err" , "not master" );
+
+        ByteEncoder encoder = ByteEncoder.get();
+        encoder._putInt( 7 ); // something in front, like a reply header
+        encoder.putObject( o );
+        encoder.flip();
+        ByteBuffer buf = ByteBuffer.wrap( encoder.getBytes() );
+        buf.order( Bytes.ORDER );
+        encoder.done();
+
+        RawDBObject raw = new RawDBObject( buf , 4 );
+        assertEquals( "x" , raw.get( "a" ) );
+        assertEquals( 5 , raw.get( "ab" ) );
+        assertEquals( "u" , raw.get( "\u00fcber" ) );
+        assertEquals( "not master" , raw.get( "$err" ) );
+        assertNull( raw.get( "abc" ) );
+        assertNull( raw.get( "" ) );
+        assertEquals( o.keySet() , raw.keySet() );
+        assertEquals( 0 , buf.position() );
+    }
+
+    @Test(groups = {"basic"})
+    public void testFieldNameCache() {
+        ByteEncoder encoder = ByteEncoder.get();
+        encoder.putObject( new BasicDBObject( "someName" , 1 ) );
+        encoder.flip();
+        ByteBuffer buf = encoder.asBuffer();
+
+        FieldNameCache cache = ByteDecoder.getFieldNameCache();
+        new ByteDecoder( buf.duplicate().order( Bytes.ORDER ) ).readObject();
+        long hits = cache.getHits();
+
+        DBObject read = new ByteDecoder( buf.duplicate().order( Bytes.ORDER ) ).readObject();
+        encoder.done();
+
+        assertEquals( 1 , read.get( "someName" ) );
+        assertTrue( cache.getHits() > hits );
+        assertTrue( cache.getHitRate() > 0 );
+        assertTrue( read.keySet().iterator().next() == cache.get( "someName".getBytes() , 8 , _hash( "someName" ) ) );
+    }
+
+    private static int _hash( String s ){
+        int h = 0;
+        for ( byte b : s.getBytes() )
+            h = FieldNameCache.hash( h , b );
+        return h;
+    }
+
+    @Test(groups = {"basic"})
+    public void testDecoderGrows() {
+        ByteDecoder decoder = ByteDecoder.get( _db , null );
+        assertEquals( ByteDecoder.SLAB_SIZE , decoder._buf.capacity() );
+
+        ByteBuffer small = decoder.ensureCapacity( 100 );
+        assertEquals( ByteDecoder.SLAB_SIZE , small.capacity() );
+        assertEquals( 100 , small.remaining() );
+
+        int big = ByteDecoder.SLAB_SIZE * 3 + 1;
+        ByteBuffer large = decoder.ensureCapacity( big );
+        assertEquals( ByteDecoder.SLAB_SIZE * 4 , large.capacity() );
+        assertEquals( big , large.remaining() );
+        assertEquals( Bytes.ORDER , large.order() );
+
+        decoder.done();
+        assertEquals( ByteDecoder.SLAB_SIZE , decoder._buf.capacity() );
+    }
+
 
     @Test(groups = {"basic"})
     public void testPatternFlags() {
@@ -395,13 +584,14 @@ public class ByteTest extends TestCase {
         ByteEncoder encoder = ByteEncoder.get();
         encoder.putObject( o );
         encoder.flip();
+        ByteBuffer buf = encoder.asBuffer();
 
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         Pattern p2 = (Pattern)read.get( "p" );
         assertEquals( p2.pattern(), p.pattern() );
         assertEquals( o.keySet().size(), read.keySet().size() );
-        assertEquals( encoder._buf.limit() , encoder._buf.position() );
+        assertEquals( buf.limit() , buf.position() );
 
         encoder.done();
         decoder.done();
@@ -425,6 +615,377 @@ public class ByteTest extends TestCase {
         assertEquals(r.get("l"), 9223372036854775807l);
     }
 
+    @Test
+    public void testUTF8() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for ( int i=0; i<ByteEncoder.CHUNK_SIZE / 3; i++ )
+            buf.append( "a\u00fc\u20ac" );
+        String mixed = buf.toString();
+        String ascii = mixed.replaceAll( "[^a]" , "b" );
+        String pair = "x\ud834\udd1ey";
+
+        DBObject o = new BasicDBObject();
+        o.put( "\u00e9t\u00e9" , 1 );
+        o.put( "mixed" , mixed );
+        o.put( "ascii" , ascii );
+        o.put( "pair" , pair );
+        o.put( "half" , "a\ud834b" );
+
+        DBObject read = _roundTrip( o );
+        assertEquals( 1 , read.get( "\u00e9t\u00e9" ) );
+        assertEquals( mixed , read.get( "mixed" ) );
+        assertEquals( ascii , read.get( "ascii" ) );
+        assertEquals( pair , read.get( "pair" ) );
+        assertEquals( "a?b" , read.get( "half" ) );
+
+        // same bytes the jdk makes
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder._put( mixed + pair );
+            byte[] b = encoder.getBytes();
+            byte[] jdk = ( mixed + pair ).getBytes( "UTF-8" );
+            assertEquals( jdk.length + 1 , b.length );
+            for ( int i=0; i<jdk.length; i++ )
+                assertEquals( jdk[i] , b[i] );
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
+    enum Color { RED , GREEN }
+
+    @Test
+    public void testCodec() {
+        ByteEncoder.addCodec( java.math.BigDecimal.class , new ByteEncoder.Codec(){
+                public void put( ByteEncoder encoder , String name , Object val ){
+                    encoder.putField( name , val.toString() );
+                }
+            } );
+        ByteEncoder.addCodec( Enum.class , new ByteEncoder.Codec(){
+                public void put( ByteEncoder encoder , String name , Object val ){
+                    encoder.putField( name , ((Enum)val).name() );
+                }
+            } );
+        // exactly Integer beats the built in Number
+        ByteEncoder.addCodec( Integer.class , new ByteEncoder.Codec(){
+                public void put( ByteEncoder encoder , String name , Object val ){
+                    encoder.putField( name , ((Integer)val).longValue() );
+                }
+            } );
+
+        try {
+            DBObject o = new BasicDBObject();
+            o.put( "price" , new java.math.BigDecimal( "19.99" ) );
+            o.put( "color" , Color.GREEN );
+            o.put( "colors" , Arrays.asList( Color.RED , Color.GREEN ) );
+            o.put( "n" , 5 );
+            o.put( "d" , 1.5 );
+
+            DBObject read = _roundTrip( o );
+            assertEquals( "19.99" , read.get( "price" ) );
+            assertEquals( "GREEN" , read.get( "color" ) );
+            assertEquals( "RED" , ((List)read.get( "colors" )).get( 0 ) );
+            assertEquals( 5L , read.get( "n" ) );
+            assertEquals( 1.5 , read.get( "d" ) );
+        }
+        finally {
+            ByteEncoder.removeCodec( java.math.BigDecimal.class );
+            ByteEncoder.removeCodec( Enum.class );
+            ByteEncoder.removeCodec( Integer.class );
+        }
+
+        assertEquals( 5 , _roundTrip( new BasicDBObject( "n" , 5 ) ).get( "n" ) );
+        try {
+            _roundTrip( new BasicDBObject( "color" , Color.RED ) );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e ){
+            // no codec any more
+        }
+    }
+
+    /** loaded on its own by testCodecCacheIsWeak */
+    public static class Unknown {}
+
+    @Test
+    public void testCodecCacheIsWeak()
+        throws Exception {
+        java.net.URL here = Unknown.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new java.net.URLClassLoader( new java.net.URL[]{ here } , null );
+        Class<?> c = loader.loadClass( Unknown.class.getName() );
+        assertTrue( c != Unknown.class );
+
+        assertTrue( ByteEncoder._codec( c ) == ByteEncoder.CANT_SERIALIZE );
+        assertTrue( ByteEncoder._codec( c ) == ByteEncoder.CANT_SERIALIZE );
+
+        java.lang.ref.WeakReference<ClassLoader> ref = new java.lang.ref.WeakReference<ClassLoader>( loader );
+        loader = null;
+        c = null;
+        for ( int i=0; i<50 && ref.get() != null; i++ ){
+            System.gc();
+            Thread.sleep( 20 );
+        }
+        assertNull( ref.get() );
+    }
+
+    @Test
+    public void testCodecTable(){
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        Class<?> c = Object.class;
+        for ( int i=0; i<200; i++ ){
+            classes.add( c );
+            c = java.lang.reflect.Array.newInstance( c , 0 ).getClass();
+        }
+
+        ByteEncoder.CodecTable t = new ByteEncoder.CodecTable();
+        List<ByteEncoder.CodecTable> all = new ArrayList<ByteEncoder.CodecTable>();
+        for ( int i=0; i<classes.size(); i++ ){
+            all.add( t );
+            t = t.with( classes.get( i ) , ByteEncoder.BUILT_IN[ i % ByteEncoder.BUILT_IN.length ] );
+        }
+
+        for ( int i=0; i<classes.size(); i++ ){
+            assertTrue( t.get( classes.get( i ) ) == ByteEncoder.BUILT_IN[ i % ByteEncoder.BUILT_IN.length ] );
+            // adding to a table doesn't change it
+            assertNull( all.get( i ).get( classes.get( i ) ) );
+        }
+        assertNull( t.get( String.class ) );
+    }
+
+    @Test(groups = {"basic"})
+    public void testCompactObject() {
+        ByteEncoder encoder = ByteEncoder.get();
+        for ( int i=0; i<2; i++ )
+            encoder.putObject( new BasicDBObject( "_id" , i ).append( "a" , "x" + i ).append( "sub" , new BasicDBObject( "b" , i ) ).append( "l" , Arrays.asList( 1 , 2 ) ) );
+        DBObject big = new BasicDBObject();
+        for ( int i=0; i<20; i++ )
+            big.put( "f" + i , i );
+        encoder.putObject( big );
+        encoder.flip();
+
+        ByteDecoder decoder = new ByteDecoder( encoder.asBuffer() );
+        CompactDBObject a = (CompactDBObject)decoder.readObject();
+        CompactDBObject b = (CompactDBObject)decoder.readObject();
+        CompactDBObject c = (CompactDBObject)decoder.readObject();
+        encoder.done();
+
+        assertTrue( a._shape == b._shape );
+        assertTrue( ((CompactDBObject)a.get( "sub" ))._shape == ((CompactDBObject)b.get( "sub" ))._shape );
+        assertEquals( Arrays.asList( "_id" , "a" , "sub" , "l" ) , new ArrayList<String>( b.keySet() ) );
+        assertEquals( "x1" , b.get( "a" ) );
+        assertEquals( 1 , ((DBObject)b.get( "sub" )).get( "b" ) );
+        assertEquals( 2 , ((List)b.get( "l" )).size() );
+        assertNull( b.get( "zzz" ) );
+        assertEquals( big , c );
+        assertEquals( 19 , c.get( "f19" ) );
+
+        b._setNS( "foo" );
+        assertEquals( 5 , b.size() );
+        assertEquals( "foo" , b.get( "_ns" ) );
+        assertTrue( b.containsField( "_ns" ) );
+
+        CompactDBObject.Shape shared = a._shape;
+        b.put( "a" , "changed" );
+        b.removeField( "_id" );
+        assertNull( b._shape );
+        assertEquals( Arrays.asList( "a" , "sub" , "l" , "_ns" ) , new ArrayList<String>( b.keySet() ) );
+        assertEquals( "changed" , b.get( "a" ) );
+        assertEquals( "x0" , a.get( "a" ) );
+        assertTrue( a._shape == shared );
+        assertEquals( 4 , a.toMap().size() );
+    }
+
+    /**
+     * a document of int fields, built by hand since the encoder won't write a name twice
+     */
+    static void _putInts( ByteBuffer buf , String ... names ){
+        final int start = buf.position();
+        buf.putInt( 0 );
+        for ( int i=0; i<names.length; i++ ){
+            buf.put( Bytes.NUMBER_INT );
+            for ( char c : names[i].toCharArray() )
+                buf.put( (byte)c );
+            buf.put( (byte)0 );
+            buf.putInt( i );
+        }
+        buf.put( Bytes.EOO );
+        buf.putInt( start , buf.position() - start );
+    }
+
+    @Test(groups = {"basic"})
+    public void testCompactObjectRepeatedKey() {
+        ByteBuffer buf = ByteBuffer.allocate( 1024 );
+        buf.order( Bytes.ORDER );
+        _putInts( buf , "a" , "b" , "a" , "c" , "b" );
+        _putInts( buf , "a" , "b" , "c" );
+        List<String> names = new ArrayList<String>();
+        for ( int i=0; i<20; i++ )
+            names.add( "f" + i );
+        names.add( "f3" );
+        _putInts( buf , names.toArray( new String[0] ) );
+        buf.flip();
+        ByteDecoder decoder = new ByteDecoder( buf );
+
+        CompactDBObject o = (CompactDBObject)decoder.readObject();
+        assertEquals( Arrays.asList( "a" , "b" , "c" ) , new ArrayList<String>( o.keySet() ) );
+        assertEquals( 3 , o.size() );
+        assertEquals( 2 , o.get( "a" ) );
+        assertEquals( 4 , o.get( "b" ) );
+        assertEquals( 3 , o.entrySet().size() );
+        assertEquals( new BasicDBObject( "a" , 2 ).append( "b" , 4 ).append( "c" , 3 ) , o );
+
+        // the same names without the repeats share its shape
+        CompactDBObject p = (CompactDBObject)decoder.readObject();
+        assertTrue( p._shape == o._shape );
+
+        // big enough to be hashed
+        CompactDBObject big = (CompactDBObject)decoder.readObject();
+        assertEquals( 20 , big.size() );
+        assertEquals( 20 , big.get( "f3" ) );
+        assertEquals( 19 , big.get( "f19" ) );
+        assertEquals( "f3" , new ArrayList<String>( big.keySet() ).get( 3 ) );
+    }
+
+    CompactDBObject _decodeCompact(){
+        ByteEncoder encoder = ByteEncoder.get();
+        encoder.putObject( new BasicDBObject( "a" , 1 ).append( "b" , "x" ) );
+        encoder.flip();
+        CompactDBObject o = (CompactDBObject)(new ByteDecoder( encoder.asBuffer() )).readObject();
+        encoder.done();
+        o._setNS( "foo" );
+        return o;
+    }
+
+    /**
+     * calls one of the Map methods java 8 added, this builds as 1.5
+     */
+    static Object _call( Map m , String name , Object ... args )
+        throws Exception {
+        for ( Method meth : Map.class.getMethods() )
+            if ( meth.getName().equals( name ) && meth.getParameterTypes().length == args.length )
+                return meth.invoke( m , args );
+        throw new SkipException( "no Map." + name + ", needs java 8" );
+    }
+
+    abstract static class Fn implements InvocationHandler {
+        abstract Object apply( Object[] args );
+
+        public Object invoke( Object proxy , Method m , Object[] args ){
+            return apply( args );
+        }
+
+        Object as( String iface )
+            throws Exception {
+            Class c = Class.forName( "java.util.function." + iface );
+            return Proxy.newProxyInstance( ByteTest.class.getClassLoader() , new Class[]{ c } , this );
+        }
+    }
+
+    @Test
+    public void testCompactObjectMapMethods()
+        throws Exception {
+        Map o = _decodeCompact();
+        assertEquals( 1 , _call( o , "getOrDefault" , "a" , 5 ) );
+        assertEquals( 5 , _call( o , "getOrDefault" , "zzz" , 5 ) );
+        assertEquals( "foo" , _call( o , "getOrDefault" , "_ns" , null ) );
+
+        final List<String> seen = new ArrayList<String>();
+        _call( _decodeCompact() , "forEach" , new Fn(){
+                Object apply( Object[] args ){
+                    seen.add( args[0] + "=" + args[1] );
+                    return null;
+                }
+            }.as( "BiConsumer" ) );
+        assertEquals( Arrays.asList( "a=1" , "b=x" , "_ns=foo" ) , seen );
+
+        o = _decodeCompact();
+        assertEquals( 1 , _call( o , "putIfAbsent" , "a" , 2 ) );
+        assertEquals( 1 , o.get( "a" ) );
+        assertNull( _call( o , "putIfAbsent" , "c" , 3 ) );
+        assertEquals( 3 , o.get( "c" ) );
+
+        Object bang = new Fn(){
+                Object apply( Object[] args ){
+                    return args[0] + "!";
+                }
+            }.as( "Function" );
+        o = _decodeCompact();
+        assertEquals( 1 , _call( o , "computeIfAbsent" , "a" , bang ) );
+        assertEquals( "c!" , _call( o , "computeIfAbsent" , "c" , bang ) );
+        assertEquals( "c!" , o.get( "c" ) );
+
+        o = _decodeCompact();
+        assertEquals( 2 , _call( o , "compute" , "a" , new Fn(){
+                Object apply( Object[] args ){
+                    return ((Integer)args[1]) + 1;
+                }
+            }.as( "BiFunction" ) ) );
+        assertEquals( 2 , o.get( "a" ) );
+
+        o = _decodeCompact();
+        assertEquals( "xy" , _call( o , "merge" , "b" , "y" , new Fn(){
+                Object apply( Object[] args ){
+                    return "" + args[0] + args[1];
+                }
+            }.as( "BiFunction" ) ) );
+        assertEquals( "xy" , o.get( "b" ) );
+
+        o = _decodeCompact();
+        assertEquals( 1 , _call( o , "replace" , "a" , 7 ) );
+        assertEquals( 7 , o.get( "a" ) );
+        assertNull( _call( o , "replace" , "zzz" , 7 ) );
+        assertFalse( o.containsKey( "zzz" ) );
+        o = _decodeCompact();
+        assertEquals( true , _call( o , "replace" , "b" , "x" , "z" ) );
+        assertEquals( "z" , o.get( "b" ) );
+
+        o = _decodeCompact();
+        _call( o , "replaceAll" , new Fn(){
+                Object apply( Object[] args ){
+                    return args[0];
+                }
+            }.as( "BiFunction" ) );
+        assertEquals( "a" , o.get( "a" ) );
+        assertEquals( "b" , o.get( "b" ) );
+        assertEquals( "_ns" , o.get( "_ns" ) );
+        assertEquals( 3 , o.size() );
+    }
+
+    @Test
+    public void testCompactObjectIsADBObject()
+        throws Exception {
+        CompactDBObject o = _decodeCompact();
+        DBObject basic = new BasicDBObject( "a" , 1.0 ).append( "b" , "x" ).append( "_ns" , "foo" );
+        assertTrue( o.equals( basic ) );
+        assertTrue( basic.equals( o ) );
+        assertEquals( new BasicDBObject( o ).hashCode() , o.hashCode() );
+        assertEquals( "{ \"a\" : 1 , \"b\" : \"x\" , \"_ns\" : \"foo\"}" , o.toString() );
+
+        o.markAsPartialObject();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream( out );
+        oout.writeObject( o );
+        oout.close();
+        Object back = new ObjectInputStream( new ByteArrayInputStream( out.toByteArray() ) ).readObject();
+        assertEquals( BasicDBObject.class , back.getClass() );
+        assertTrue( ((DBObject)back).isPartialObject() );
+        assertTrue( o.equals( back ) );
+        assertTrue( o._shape != null );
+    }
+
+    DBObject _roundTrip( DBObject o ){
+        ByteEncoder encoder = ByteEncoder.get();
+        try {
+            encoder.putObject( o );
+            encoder.flip();
+            return new ByteDecoder( encoder.asBuffer() ).readObject();
+        }
+        finally {
+            encoder.done();
+        }
+    }
+
     final DB _db;
 
     public static void main( String args[] )
@@ -0,0 +1,184 @@
+// ConnectorStress.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import com.mongodb.util.*;
+
+/**
+ * runs a lot of concurrent finds through one Mongo against a FakeMongod, so doesn't need a db.
+ * on a jvm with virtual threads every find gets its own virtual thread,
+ * and the tests fail if the jvm reports the driver pinning a carrier.
+ * the tests are skipped on a jvm without virtual threads.
+ * main() runs a bigger load, spread over [threads] platform threads where there are no virtual threads.
+ * usage: ConnectorStress [finds] [threads] [multiplex] [latencyMS]
+ */
+public class ConnectorStress extends TestCase {
+
+    @Test
+    public void testNoPinning()
+        throws Exception {
+        _noPinning( false );
+    }
+
+    @Test
+    public void testNoPinningMultiplexed()
+        throws Exception {
+        _noPinning( true );
+    }
+
+    /**
+     * jdk.tracePinnedThreads is read when the first virtual thread starts,
+     * so it's set here before that, and the trace it prints on System.out is captured.
+     * if something started a virtual thread earlier, run with -Djdk.tracePinnedThreads=full
+     */
+    void _noPinning( boolean multiplex )
+        throws Exception {
+        if ( _startVirtualThread() == null )
+            throw new SkipException( "no virtual threads on this jvm" );
+
+        if ( System.getProperty( "jdk.tracePinnedThreads" ) == null )
+            System.setProperty( "jdk.tracePinnedThreads" , "full" );
+
+        final PrintStream out = System.out;
+        final ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        System.setOut( new PrintStream( trace , true ) );
+        long failed;
+        try {
+            failed = run( 5000 , 0 , multiplex , 1 , false );
+        }
+        finally {
+            System.setOut( out );
+        }
+
+        final String s = trace.toString();
+        out.print( s );
+        assertEquals( 0 , failed );
+        assertTrue( s.indexOf( "onPinned" ) < 0 && s.indexOf( "<== monitors" ) < 0 , "pinned a carrier:\n" + s );
+    }
+
+    /**
+     * @param threads how many platform threads to use when there are no virtual threads
+     * @return how many finds failed
+     */
+    static long run( final int finds , final int threads , final boolean multiplex , final int latency , final boolean print )
+        throws Exception {
+
+        FakeMongod fake = new FakeMongod();
+        fake.setLatency( latency );
+
+        MongoOptions options = new MongoOptions();
+        options.multiplex = multiplex;
+        options.threadsAllowedToBlockForConnectionMultiplier = ( finds / options.connectionsPerHost ) + 1;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , fake.getPort() , "stress" ) , options );
+
+        try {
+            final DBCollection c = m.getDB( "stress" ).getCollection( "stress" );
+            c.drop();
+            // acknowledged, or a find on another connection can get there first
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            for ( int i=0; i<100; i++ )
+                c.insert( new BasicDBObject( "_id" , i ).append( "x" , "foo" + i ) );
+
+            final AtomicLong ok = new AtomicLong();
+            final AtomicLong failed = new AtomicLong();
+            final CountDownLatch finished = new CountDownLatch( finds );
+
+            final Runnable find = new Runnable(){
+                    public void run(){
+                        try {
+                            int id = (int)( Thread.currentThread().getId() % 100 );
+                            if ( c.findOne( new BasicDBObject( "_id" , id ) ) != null )
+                                ok.incrementAndGet();
+                            else
+                                failed.incrementAndGet();
+                        }
+                        catch ( RuntimeException e ){
+                            if ( failed.incrementAndGet() == 1 )
+                                e.printStackTrace();
+                        }
+                        finally {
+                            finished.countDown();
+                        }
+                    }
+                };
+
+            final Method startVirtual = _startVirtualThread();
+            final long start = System.currentTimeMillis();
+
+            if ( startVirtual != null ){
+                for ( int i=0; i<finds; i++ )
+                    startVirtual.invoke( null , find );
+            }
+            else {
+                ExecutorService pool = Executors.newFixedThreadPool( threads );
+                for ( int i=0; i<finds; i++ )
+                    pool.execute( find );
+                pool.shutdown();
+            }
+
+            finished.await();
+            final long ms = Math.max( 1 , System.currentTimeMillis() - start );
+
+            if ( print ){
+                System.out.println( ( startVirtual != null ? "virtual threads" : threads + " platform threads" ) +
+                                    " multiplex: " + multiplex + " latency: " + latency + "ms" );
+                System.out.println( "finds: " + finds + " ok: " + ok.get() + " failed: " + failed.get() );
+                System.out.println( "took: " + ms + "ms  finds per second: " + ( finds * 1000L / ms ) );
+                System.out.println( "connections: " + fake.connections() );
+            }
+            return failed.get();
+        }
+        finally {
+            m.close();
+            fake.close();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception {
+
+        final int finds = args.length > 0 ? Integer.parseInt( args[0] ) : 100000;
+        final int threads = args.length > 1 ? Integer.parseInt( args[1] ) : 200;
+        final boolean multiplex = args.length > 2 && Boolean.parseBoolean( args[2] );
+        final int latency = args.length > 3 ? Integer.parseInt( args[3] ) : 1;
+
+        System.exit( run( finds , threads , multiplex , latency , true ) == 0 ? 0 : 1 );
+    }
+
+    /**
+     * Thread.startVirtualThread, if this jvm has it
+     */
+    static Method _startVirtualThread(){
+        try {
+            return Thread.class.getMethod( "startVirtualThread" , Runnable.class );
+        }
+        catch ( NoSuchMethodException nsme ){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+// DBPortPoolTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.net.*;
+import java.util.*;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DBPortPoolTest extends com.mongodb.util.TestCase {
+
+    DBPortPool _pool( int perHost , int multiplier ){
+        MongoOptions options = new MongoOptions();
+        options.connectionsPerHost = perHost;
+        options.threadsAllowedToBlockForConnectionMultiplier = multiplier;
+        return new DBPortPool( new InetSocketAddress( "127.0.0.1" , DBPort.PORT ) , options );
+    }
+
+    @Test
+    public void testReuse(){
+        DBPortPool p = _pool( 2 , 1 );
+
+        DBPort a = p.get();
+        DBPort b = p.get();
+        assertTrue( a != b );
+        assertEquals( 2 , p.inUse() );
+        assertEquals( 0 , p.available() );
+
+        p.done( a );
+        assertEquals( 1 , p.inUse() );
+        assertTrue( a == p.get() );
+        assertEquals( 2 , p.everCreated() );
+    }
+
+    @Test
+    public void testDoubleDone(){
+        DBPortPool p = _pool( 2 , 1 );
+        DBPort a = p.get();
+        p.done( a );
+        try {
+            p.done( a );
+            Assert.fail( "should have thrown" );
+        }
+        catch ( IllegalStateException e ){
+            // good
+        }
+        assertEquals( 0 , p.inUse() );
+    }
+
+    @Test
+    public void testClearDropsOldPorts(){
+        DBPortPool p = _pool( 2 , 1 );
+        DBPort a = p.get();
+        DBPort b = p.get();
+        p.done( b );
+
+        p.clear();
+        // a still counts until it comes back
+        assertEquals( 1 , p.inUse() );
+        assertEquals( 1 , p.available() );
+
+        p.done( a );
+        assertEquals( 0 , p.inUse() );
+        DBPort c = p.get();
+        assertTrue( c != a );
+        assertTrue( c != b );
+    }
+
+    @Test
+    public void testWaiterGetsReturnedPort()
+        throws InterruptedException {
+        final DBPortPool p = _pool( 1 , 2 );
+        final DBPort a = p.get();
+        final DBPort[] got = new DBPort[1];
+
+        Thread t = new Thread(){
+                public void run(){
+                    got[0] = p.get();
+                }
+            };
+        t.start();
+        Thread.sleep( 100 );
+        assertNull( got[0] );
+
+        p.done( a );
+        t.join( 5000 );
+        assertTrue( got[0] == a );
+    }
+
+    @Test
+    public void testTooManyWaiters()
+        throws InterruptedException {
+        final DBPortPool p = _pool( 1 , 1 );
+        final DBPort a = p.get();
+
+        Thread t = new Thread(){
+                public void run(){
+                    // gets a once it's returned at the end
+                    p.get();
+                }
+            };
+        t.setDaemon( true );
+        t.start();
+        Thread.sleep( 100 );
+
+        try {
+            p.get();
+            Assert.fail( "should have thrown" );
+        }
+        catch ( DBPortPool.NoMoreConnection nmc ){
+            // good
+        }
+        finally {
+            p.done( a );
+        }
+    }
+
+    @Test
+    public void testListenerAndStats(){
+        final List<String> events = new ArrayList<String>();
+        ConnectionPoolListener l = new ConnectionPoolListener(){
+                public void connectionCheckedOut( InetSocketAddress host , long waitNanos ){
+                    events.add( "out" );
+                }
+                public void connectionCheckedIn( InetSocketAddress host ){
+                    events.add( "in" );
+                }
+                public void checkoutFailed( InetSocketAddress host , boolean timedOut ){
+                    events.add( "failed" );
+                }
+                public void connectionOpened( InetSocketAddress host ){
+                    events.add( "opened" );
+                }
+                public void connectionClosed( InetSocketAddress host ){
+                    events.add( "closed" );
+                }
+                public void gotError( InetSocketAddress host , Exception e , boolean cleared ){
+                    events.add( "error " + cleared );
+                }
+            };
+
+        MongoOptions options = new MongoOptions();
+        options.connectionsPerHost = 1;
+        options.threadsAllowedToBlockForConnectionMultiplier = 1;
+        DBPortPool p = new DBPortPool( new InetSocketAddress( "127.0.0.1" , DBPort.PORT ) , options ,
+                                       Collections.singletonList( l ) );
+
+        DBPort a = p.get();
+        p.done( a );
+        p.gotError( new java.io.IOException( "fake" ) );
+
+        assertEquals( "[out, in, error true]" , events.toString() );
+
+        ConnectionPoolStats stats = p.getStats();
+        assertEquals( 1 , stats.getCheckouts() );
+        assertEquals( 1 , stats.getErrors() );
+        assertEquals( 1 , stats.getClears() );
+        assertEquals( 1 , stats.getCheckoutWaitHistogram()[0] + stats.getCheckoutWaitHistogram()[1] );
+        assertEquals( 0 , stats.getInUse() );
+    }
+
+    public static void main( String args[] ){
+        (new DBPortPoolTest()).runConsole();
+    }
+}
@@ -17,6 +17,7 @@
 package com.mongodb;
 
 import java.net.*;
+import java.nio.*;
 import java.util.*;
 
 import org.testng.annotations.Test;
@@ -55,7 +56,9 @@ public class DBRefTest extends TestCase {
         
         encoder.flip();
         
-        ByteDecoder decoder = new ByteDecoder( encoder._buf );
+        ByteBuffer buf = encoder.asBuffer();
+        
+        ByteDecoder decoder = new ByteDecoder( buf );
         DBObject read = decoder.readObject();
         
         String correct = "{\"!\":{\"$ref\":\"hello\",\"$id\":\"world\"}}";
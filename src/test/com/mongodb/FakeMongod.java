@@ -0,0 +1,800 @@
+// FakeMongod.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+/**
+ * An in-process stand in for mongod, for load testing the driver without a real server.
+ * Speaks the opcodes DBApiLayer sends: insert, query, getmore, update, delete and kill cursors,
+ * plus the handful of commands the driver itself runs.
+ * Collections are kept in memory.  Queries support equality, dotted fields, regexes,
+ * $gt $gte $lt $lte $ne $in $nin $exists, orderby and field selection.
+ * Updates support whole-document replacement, $set $unset $inc $push, upsert and multi.
+ * Every message can be delayed by a fixed latency plus random jitter.
+ * usage: new FakeMongod() then new Mongo( "127.0.0.1" , fake.getPort() )
+ */
+public class FakeMongod {
+
+    /** Listens on an ephemeral loopback port */
+    public FakeMongod()
+        throws IOException {
+        this( 0 );
+    }
+
+    public FakeMongod( int port )
+        throws IOException {
+        _server = ServerSocketChannel.open();
+        _server.socket().setReuseAddress( true );
+        _server.socket().bind( new InetSocketAddress( "127.0.0.1" , port ) );
+
+        Thread t = new Thread( "FakeMongod-accept" ){
+                public void run(){
+                    _accept();
+                }
+            };
+        t.setDaemon( true );
+        t.start();
+    }
+
+    public int getPort(){
+        return _server.socket().getLocalPort();
+    }
+
+    /**
+     * @param ms how long every message waits before it's handled
+     */
+    public void setLatency( long ms ){
+        _latency = ms;
+    }
+
+    /**
+     * @param ms up to this much more, picked at random per message
+     */
+    public void setJitter( long ms ){
+        _jitter = ms;
+    }
+
+    /**
+     * @param n most documents in a reply when the client doesn't say
+     */
+    public void setDefaultBatchSize( int n ){
+        _defaultBatchSize = n;
+    }
+
+    public long messages(){
+        return _messages.get();
+    }
+
+    public int openCursors(){
+        return _cursors.size();
+    }
+
+    public int connections(){
+        return _connections.get();
+    }
+
+    /**
+     * @param ns full name space, like "test.foo"
+     * @return a copy of what's in it
+     */
+    public List<DBObject> collection( String ns ){
+        Coll c = _colls.get( ns );
+        if ( c == null )
+            return new ArrayList<DBObject>();
+        synchronized ( c ){
+            return new ArrayList<DBObject>( c._docs );
+        }
+    }
+
+    /** Drops everything and forgets all cursors */
+    public void clear(){
+        _colls.clear();
+        _cursors.clear();
+    }
+
+    public void close(){
+        try {
+            _server.close();
+        }
+        catch ( IOException ioe ){
+            // don't care
+        }
+    }
+
+    // ---- connections ----
+
+    private void _accept(){
+        while ( _server.isOpen() ){
+            final SocketChannel sock;
+            try {
+                sock = _server.accept();
+                sock.socket().setTcpNoDelay( true );
+            }
+            catch ( IOException ioe ){
+                return;
+            }
+
+            Thread t = new Thread( "FakeMongod-conn" ){
+                    public void run(){
+                        _connections.incrementAndGet();
+                        try {
+                            new Conn( sock ).run();
+                        }
+                        finally {
+                            _connections.decrementAndGet();
+                        }
+                    }
+                };
+            t.setDaemon( true );
+            t.start();
+        }
+    }
+
+    /**
+     * one per socket.  getlasterror is per connection, like the real thing
+     */
+    class Conn {
+        Conn( SocketChannel sock ){
+            _sock = sock;
+            _header.order( Bytes.ORDER );
+        }
+
+        void run(){
+            try {
+                while ( true ){
+                    _header.clear();
+                    DBPort._readFully( _sock , _header );
+
+                    final int len = _header.getInt( 0 );
+                    final int id = _header.getInt( 4 );
+                    final int op = _header.getInt( 12 );
+
+                    ByteBuffer body = ByteBuffer.allocate( len - DBMessage.HEADER_LENGTH );
+                    body.order( Bytes.ORDER );
+                    DBPort._readFully( _sock , body );
+                    body.flip();
+
+                    _messages.incrementAndGet();
+                    _delay();
+
+                    switch ( op ){
+                    case 2001: _update( body ); break;
+                    case 2002: _insert( body ); break;
+                    case 2004: _reply( id , _query( body ) ); break;
+                    case 2005: _reply( id , _getMore( body ) ); break;
+                    case 2006: _delete( body ); break;
+                    case 2007: _killCursors( body ); break;
+                    default:
+                        throw new IOException( "FakeMongod doesn't know op " + op );
+                    }
+                }
+            }
+            catch ( IOException ioe ){
+                // client went away
+            }
+            finally {
+                try {
+                    _sock.close();
+                }
+                catch ( IOException ioe ){
+                    // don't care
+                }
+            }
+        }
+
+        private void _delay(){
+            long ms = _latency;
+            final long jitter = _jitter;
+            if ( jitter > 0 )
+                ms += (long)( _random.nextDouble() * jitter );
+            if ( ms <= 0 )
+                return;
+            try {
+                Thread.sleep( ms );
+            }
+            catch ( InterruptedException ie ){
+                // fine
+            }
+        }
+
+        // ---- ops ----
+
+        private void _insert( ByteBuffer body ){
+            final boolean continueOnError = ( body.getInt() & 1 ) != 0;
+            final String ns = _cstr( body );
+            _decoder.reset( body );
+
+            _lastError = null;
+            _lastN = 0;
+
+            final Coll c = _coll( ns , true );
+            DBObject o;
+            while ( ( o = _decoder.readObject() ) != null ){
+                synchronized ( c ){
+                    if ( o.get( "_id" ) != null && c.byId( o.get( "_id" ) ) != null ){
+                        _lastError = "E11000 duplicate key error index: " + ns + ".$_id_  dup key: { : " + o.get( "_id" ) + " }";
+                        if ( continueOnError )
+                            continue;
+                        return;
+                    }
+                    c._docs.add( o );
+                }
+            }
+        }
+
+        private void _update( ByteBuffer body ){
+            body.getInt(); // reserved
+            final String ns = _cstr( body );
+            final int flags = body.getInt();
+            _decoder.reset( body );
+            final DBObject query = _decoder.readObject();
+            final DBObject update = _decoder.readObject();
+
+            final boolean upsert = ( flags & 1 ) != 0;
+            final boolean multi = ( flags & 2 ) != 0;
+
+            _lastError = null;
+            _lastN = 0;
+
+            final Coll c = _coll( ns , true );
+            synchronized ( c ){
+                for ( int i=0; i<c._docs.size(); i++ ){
+                    DBObject doc = c._docs.get( i );
+                    if ( ! _matches( doc , query ) )
+                        continue;
+                    try {
+                        c._docs.set( i , _applyUpdate( doc , update ) );
+                    }
+                    catch ( IllegalArgumentException iae ){
+                        // like mongod, the error goes to getlasterror
+                        _lastError = iae.getMessage();
+                        return;
+                    }
+                    _lastN++;
+                    if ( ! multi )
+                        break;
+                }
+
+                if ( _lastN == 0 && upsert ){
+                    DBObject doc = new BasicDBObject();
+                    for ( String k : query.keySet() )
+                        if ( ! k.startsWith( "$" ) && ! ( query.get( k ) instanceof DBObject ) )
+                            doc.put( k , query.get( k ) );
+                    doc = _applyUpdate( doc , update );
+                    if ( doc.get( "_id" ) == null )
+                        doc.put( "_id" , new ObjectId() );
+                    c._docs.add( doc );
+                    _lastN = 1;
+                }
+            }
+        }
+
+        private void _delete( ByteBuffer body ){
+            body.getInt(); // reserved
+            final String ns = _cstr( body );
+            final int flags = body.getInt();
+            _decoder.reset( body );
+            final DBObject query = _decoder.readObject();
+
+            _lastError = null;
+            _lastN = 0;
+
+            final Coll c = _coll( ns , false );
+            if ( c == null )
+                return;
+            synchronized ( c ){
+                for ( Iterator<DBObject> i = c._docs.iterator(); i.hasNext(); ){
+                    if ( ! _matches( i.next() , query ) )
+                        continue;
+                    i.remove();
+                    _lastN++;
+                    if ( ( flags & 1 ) != 0 )
+                        break;
+                }
+            }
+        }
+
+        private void _killCursors( ByteBuffer body ){
+            body.getInt(); // reserved
+            final int n = body.getInt();
+            for ( int i=0; i<n; i++ )
+                _cursors.remove( body.getLong() );
+        }
+
+        private Batch _query( ByteBuffer body ){
+            body.getInt(); // options
+            final String ns = _cstr( body );
+            final int skip = body.getInt();
+            final int nToReturn = body.getInt();
+            _decoder.reset( body );
+            DBObject query = _decoder.readObject();
+            final DBObject fields = _decoder.readObject();
+
+            if ( ns.endsWith( ".$cmd" ) )
+                return new Batch( 0 , Collections.singletonList( _command( ns.substring( 0 , ns.length() - 5 ) , query ) ) );
+
+            DBObject orderBy = null;
+            if ( query.containsField( "query" ) && query.get( "query" ) instanceof DBObject ){
+                orderBy = (DBObject)query.get( "orderby" );
+                query = (DBObject)query.get( "query" );
+            }
+
+            List<DBObject> found = new ArrayList<DBObject>();
+            if ( ns.endsWith( ".system.namespaces" ) ){
+                final String db = ns.substring( 0 , ns.length() - ".system.namespaces".length() );
+                for ( String name : _colls.keySet() )
+                    if ( name.startsWith( db + "." ) )
+                        found.add( new BasicDBObject( "name" , name ) );
+            }
+            else {
+                Coll c = _coll( ns , false );
+                if ( c != null ){
+                    synchronized ( c ){
+                        for ( DBObject doc : c._docs )
+                            if ( _matches( doc , query ) )
+                                found.add( doc );
+                    }
+                }
+            }
+
+            if ( orderBy != null && orderBy.keySet().size() > 0 )
+                Collections.sort( found , new Order( orderBy ) );
+
+            if ( skip > 0 )
+                found = skip >= found.size() ? new ArrayList<DBObject>() : new ArrayList<DBObject>( found.subList( skip , found.size() ) );
+
+            if ( fields != null && fields.keySet().size() > 0 ){
+                List<DBObject> projected = new ArrayList<DBObject>( found.size() );
+                for ( DBObject doc : found )
+                    projected.add( _project( doc , fields ) );
+                found = projected;
+            }
+
+            Cursor cursor = new Cursor( found );
+            // negative or 1 is a hard limit: one batch and no cursor
+            if ( nToReturn < 0 || nToReturn == 1 )
+                return new Batch( 0 , cursor.next( Math.abs( nToReturn ) ) );
+
+            List<DBObject> first = cursor.next( nToReturn == 0 ? _defaultBatchSize : nToReturn );
+            if ( ! cursor.more() )
+                return new Batch( 0 , first );
+
+            final long id = _cursorIds.incrementAndGet();
+            _cursors.put( id , cursor );
+            return new Batch( id , first );
+        }
+
+        private Batch _getMore( ByteBuffer body ){
+            body.getInt(); // reserved
+            _cstr( body );
+            final int nToReturn = body.getInt();
+            final long id = body.getLong();
+
+            final Cursor cursor = _cursors.get( id );
+            if ( cursor == null )
+                return new Batch( 0 , new ArrayList<DBObject>() );
+
+            List<DBObject> next = cursor.next( nToReturn <= 0 ? _defaultBatchSize : nToReturn );
+            if ( cursor.more() )
+                return new Batch( id , next );
+
+            _cursors.remove( id );
+            return new Batch( 0 , next );
+        }
+
+        private DBObject _command( String db , DBObject cmd ){
+            final String name = cmd.keySet().iterator().next();
+            final BasicDBObject res = new BasicDBObject();
+
+            if ( name.equals( "getlasterror" ) || name.equals( "getpreverror" ) ){
+                res.put( "err" , _lastError );
+                res.put( "n" , _lastN );
+            }
+            else if ( name.equals( "reseterror" ) ){
+                _lastError = null;
+            }
+            else if ( name.equals( "ismaster" ) ){
+                res.put( "ismaster" , 1 );
+            }
+            else if ( name.equals( "count" ) ){
+                Coll c = _coll( db + "." + cmd.get( "count" ) , false );
+                if ( c == null ){
+                    res.put( "errmsg" , "ns does not exist" );
+                    res.put( "ok" , 0.0 );
+                    return res;
+                }
+                DBObject query = (DBObject)cmd.get( "query" );
+                int n = 0;
+                synchronized ( c ){
+                    for ( DBObject doc : c._docs )
+                        if ( _matches( doc , query ) )
+                            n++;
+                }
+                res.put( "n" , (double)n );
+            }
+            else if ( name.equals( "drop" ) ){
+                if ( _colls.remove( db + "." + cmd.get( "drop" ) ) == null ){
+                    res.put( "errmsg" , "ns not found" );
+                    res.put( "ok" , 0.0 );
+                    return res;
+                }
+            }
+            else if ( name.equals( "deleteIndexes" ) || name.equals( "dropIndexes" ) ){
+                if ( _coll( db + "." + cmd.get( name ) , false ) == null ){
+                    res.put( "errmsg" , "ns not found" );
+                    res.put( "ok" , 0.0 );
+                    return res;
+                }
+            }
+            else if ( name.equals( "dropDatabase" ) ){
+                for ( Iterator<String> i = _colls.keySet().iterator(); i.hasNext(); )
+                    if ( i.next().startsWith( db + "." ) )
+                        i.remove();
+            }
+            else if ( name.equals( "getnonce" ) ){
+                res.put( "nonce" , Long.toHexString( _random.nextLong() ) );
+            }
+            else if ( ! name.equals( "ping" ) && ! name.equals( "authenticate" ) && ! name.equals( "forceerror" ) ){
+                res.put( "errmsg" , "no such cmd" );
+                res.put( "bad cmd" , cmd );
+                res.put( "ok" , 0.0 );
+                return res;
+            }
+
+            if ( name.equals( "forceerror" ) )
+                _lastError = "forced error";
+
+            res.put( "ok" , 1.0 );
+            return res;
+        }
+
+        private void _reply( int responseTo , Batch batch )
+            throws IOException {
+            final ByteEncoder encoder = _encoder;
+            encoder.reset();
+            try {
+                encoder._putInt( 0 ); // flags
+                encoder._putLong( batch._cursor );
+                encoder._putInt( 0 ); // starting from
+                encoder._putInt( batch._docs.size() );
+                for ( DBObject doc : batch._docs )
+                    encoder.putObject( doc );
+                encoder.flip();
+
+                ByteBuffer[] body = encoder.buffers();
+                int len = DBMessage.HEADER_LENGTH;
+                for ( ByteBuffer b : body )
+                    len += b.limit();
+
+                ByteBuffer header = ByteBuffer.allocate( DBMessage.HEADER_LENGTH );
+                header.order( Bytes.ORDER );
+                header.putInt( len );
+                header.putInt( _replyIds.incrementAndGet() );
+                header.putInt( responseTo );
+                header.putInt( 1 ); // OP_REPLY
+                header.flip();
+
+                DBPort._writeFully( _sock , header , body );
+            }
+            finally {
+                encoder.reset();
+            }
+        }
+
+        final SocketChannel _sock;
+        final ByteBuffer _header = ByteBuffer.allocate( DBMessage.HEADER_LENGTH );
+        final ByteDecoder _decoder = new ByteDecoder( ByteBuffer.allocate( 0 ).order( Bytes.ORDER ) );
+        // not from the pool, so the driver's threads in this jvm can't starve the server
+        final ByteEncoder _encoder = new ByteEncoder();
+        final Random _random = new Random();
+
+        String _lastError;
+        int _lastN;
+    }
+
+    // ---- matching and updating ----
+
+    static boolean _matches( DBObject doc , DBObject query ){
+        if ( query == null )
+            return true;
+
+        for ( String k : query.keySet() ){
+            final Object want = query.get( k );
+            final Object have = _get( doc , k );
+
+            if ( want instanceof DBObject && ! ( want instanceof List ) && _isOperators( (DBObject)want ) ){
+                if ( ! _matchesOperators( have , (DBObject)want , _has( doc , k ) ) )
+                    return false;
+            }
+            else if ( ! _matchesValue( have , want ) ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean _isOperators( DBObject o ){
+        Set<String> keys = o.keySet();
+        if ( keys.size() == 0 )
+            return false;
+        for ( String k : keys )
+            if ( ! k.startsWith( "$" ) )
+                return false;
+        return true;
+    }
+
+    static boolean _matchesOperators( Object have , DBObject ops , boolean exists ){
+        for ( String op : ops.keySet() ){
+            final Object arg = ops.get( op );
+            if ( op.equals( "$exists" ) ){
+                if ( exists != Boolean.TRUE.equals( arg ) )
+                    return false;
+            }
+            else if ( op.equals( "$ne" ) ){
+                if ( _matchesValue( have , arg ) )
+                    return false;
+            }
+            else if ( op.equals( "$in" ) || op.equals( "$nin" ) ){
+                boolean any = false;
+                for ( Object o : (List)arg )
+                    any = any || _matchesValue( have , o );
+                if ( any != op.equals( "$in" ) )
+                    return false;
+            }
+            else if ( op.equals( "$gt" ) || op.equals( "$gte" ) || op.equals( "$lt" ) || op.equals( "$lte" ) ){
+                if ( have == null || ! _comparable( have , arg ) )
+                    return false;
+                final int c = _compare( have , arg );
+                if ( op.equals( "$gt" ) && c <= 0 ) return false;
+                if ( op.equals( "$gte" ) && c < 0 ) return false;
+                if ( op.equals( "$lt" ) && c >= 0 ) return false;
+                if ( op.equals( "$lte" ) && c > 0 ) return false;
+            }
+            else {
+                throw new IllegalArgumentException( "FakeMongod doesn't support " + op );
+            }
+        }
+        return true;
+    }
+
+    static boolean _matchesValue( Object have , Object want ){
+        if ( want instanceof Pattern )
+            return have instanceof String && ((Pattern)want).matcher( (String)have ).find();
+
+        if ( have instanceof List && ! ( want instanceof List ) ){
+            for ( Object o : (List)have )
+                if ( _matchesValue( o , want ) )
+                    return true;
+            return false;
+        }
+
+        if ( have == null || want == null )
+            return have == want;
+
+        if ( have instanceof Number && want instanceof Number )
+            return ((Number)have).doubleValue() == ((Number)want).doubleValue();
+
+        return have.equals( want );
+    }
+
+    static boolean _comparable( Object a , Object b ){
+        if ( a instanceof Number && b instanceof Number )
+            return true;
+        return a.getClass() == b.getClass() && a instanceof Comparable;
+    }
+
+    /**
+     * nulls first, then numbers, then everything else by its natural order or class name
+     */
+    static int _compare( Object a , Object b ){
+        if ( a == null || b == null )
+            return a == b ? 0 : ( a == null ? -1 : 1 );
+
+        if ( a instanceof Number && b instanceof Number )
+            return Double.compare( ((Number)a).doubleValue() , ((Number)b).doubleValue() );
+        if ( a instanceof Number )
+            return -1;
+        if ( b instanceof Number )
+            return 1;
+
+        if ( a.getClass() == b.getClass() && a instanceof Comparable )
+            return ((Comparable)a).compareTo( b );
+        return a.getClass().getName().compareTo( b.getClass().getName() );
+    }
+
+    static Object _get( DBObject doc , String path ){
+        Object cur = doc;
+        for ( String p : path.split( "\\." ) ){
+            if ( ! ( cur instanceof DBObject ) )
+                return null;
+            cur = ((DBObject)cur).get( p );
+        }
+        return cur;
+    }
+
+    static boolean _has( DBObject doc , String path ){
+        final int dot = path.lastIndexOf( '.' );
+        final Object parent = dot < 0 ? doc : _get( doc , path.substring( 0 , dot ) );
+        return parent instanceof DBObject && ((DBObject)parent).containsField( path.substring( dot + 1 ) );
+    }
+
+    static DBObject _applyUpdate( DBObject doc , DBObject update ){
+        if ( ! _isOperators( update ) ){
+            DBObject replacement = new BasicDBObject();
+            if ( doc.get( "_id" ) != null )
+                replacement.put( "_id" , doc.get( "_id" ) );
+            for ( String k : update.keySet() )
+                replacement.put( k , update.get( k ) );
+            return replacement;
+        }
+
+        for ( String op : update.keySet() ){
+            final DBObject args = (DBObject)update.get( op );
+            for ( String k : args.keySet() ){
+                final Object v = args.get( k );
+                if ( op.equals( "$set" ) ){
+                    doc.put( k , v );
+                }
+                else if ( op.equals( "$unset" ) ){
+                    doc.removeField( k );
+                }
+                else if ( op.equals( "$inc" ) ){
+                    final Object cur = doc.get( k );
+                    if ( cur == null )
+                        doc.put( k , v );
+                    else if ( ! ( cur instanceof Number ) )
+                        throw new IllegalArgumentException( "Cannot apply $inc modifier to non-number" );
+                    else if ( cur instanceof Integer && v instanceof Integer )
+                        doc.put( k , (Integer)cur + (Integer)v );
+                    else if ( ( cur instanceof Integer || cur instanceof Long ) && ( v instanceof Integer || v instanceof Long ) )
+                        doc.put( k , ((Number)cur).longValue() + ((Number)v).longValue() );
+                    else
+                        doc.put( k , ((Number)cur).doubleValue() + ((Number)v).doubleValue() );
+                }
+                else if ( op.equals( "$push" ) ){
+                    Object cur = doc.get( k );
+                    BasicDBList lst = new BasicDBList();
+                    if ( cur instanceof List )
+                        lst.addAll( (List)cur );
+                    lst.add( v );
+                    doc.put( k , lst );
+                }
+                else {
+                    throw new IllegalArgumentException( "FakeMongod doesn't support " + op );
+                }
+            }
+        }
+        return doc;
+    }
+
+    static DBObject _project( DBObject doc , DBObject fields ){
+        DBObject out = new BasicDBObject();
+        out.put( "_id" , doc.get( "_id" ) );
+        for ( String k : fields.keySet() ){
+            Object want = fields.get( k );
+            if ( want instanceof Number && ((Number)want).intValue() == 0 )
+                continue;
+            if ( doc.containsField( k ) )
+                out.put( k , doc.get( k ) );
+        }
+        return out;
+    }
+
+    static String _cstr( ByteBuffer buf ){
+        final int start = buf.position();
+        while ( buf.get() != 0 )
+            ;
+        byte[] b = new byte[ buf.position() - start - 1 ];
+        for ( int i=0; i<b.length; i++ )
+            b[i] = buf.get( start + i );
+        try {
+            return new String( b , "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException uee ){
+            throw new RuntimeException( uee );
+        }
+    }
+
+    private Coll _coll( String ns , boolean create ){
+        Coll c = _colls.get( ns );
+        if ( c != null || ! create )
+            return c;
+        c = new Coll();
+        Coll had = _colls.putIfAbsent( ns , c );
+        return had == null ? c : had;
+    }
+
+    static class Coll {
+        DBObject byId( Object id ){
+            for ( DBObject o : _docs )
+                if ( _matchesValue( o.get( "_id" ) , id ) )
+                    return o;
+            return null;
+        }
+
+        final List<DBObject> _docs = new ArrayList<DBObject>();
+    }
+
+    static class Cursor {
+        Cursor( List<DBObject> docs ){
+            _docs = docs;
+        }
+
+        synchronized List<DBObject> next( int n ){
+            final int end = Math.min( _docs.size() , _pos + n );
+            List<DBObject> lst = new ArrayList<DBObject>( _docs.subList( _pos , end ) );
+            _pos = end;
+            return lst;
+        }
+
+        synchronized boolean more(){
+            return _pos < _docs.size();
+        }
+
+        final List<DBObject> _docs;
+        int _pos = 0;
+    }
+
+    static class Batch {
+        Batch( long cursor , List<DBObject> docs ){
+            _cursor = cursor;
+            _docs = docs;
+        }
+
+        final long _cursor;
+        final List<DBObject> _docs;
+    }
+
+    static class Order implements Comparator<DBObject> {
+        Order( DBObject orderBy ){
+            _orderBy = orderBy;
+        }
+
+        public int compare( DBObject a , DBObject b ){
+            for ( String k : _orderBy.keySet() ){
+                int c = _compare( _get( a , k ) , _get( b , k ) );
+                if ( c != 0 )
+                    return ((Number)_orderBy.get( k )).intValue() < 0 ? -c : c;
+            }
+            return 0;
+        }
+
+        final DBObject _orderBy;
+    }
+
+    final ServerSocketChannel _server;
+    final ConcurrentHashMap<String,Coll> _colls = new ConcurrentHashMap<String,Coll>();
+    final ConcurrentHashMap<Long,Cursor> _cursors = new ConcurrentHashMap<Long,Cursor>();
+    final AtomicLong _cursorIds = new AtomicLong();
+    final AtomicInteger _replyIds = new AtomicInteger();
+    final AtomicLong _messages = new AtomicLong();
+    final AtomicInteger _connections = new AtomicInteger();
+
+    private volatile long _latency = 0;
+    private volatile long _jitter = 0;
+    private volatile int _defaultBatchSize = 101;
+}
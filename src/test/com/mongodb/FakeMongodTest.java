@@ -0,0 +1,828 @@
+// FakeMongodTest.java
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mongodb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import org.testng.annotations.*;
+
+import com.mongodb.util.*;
+
+/**
+ * runs the driver against FakeMongod, so needs no server
+ */
+public class FakeMongodTest extends TestCase {
+
+    public FakeMongodTest()
+        throws IOException , MongoException {
+        _fake = new FakeMongod();
+        _db = new Mongo( "127.0.0.1" , _fake.getPort() ).getDB( "fake" );
+    }
+
+    @AfterClass
+    public void shutdown(){
+        _fake.close();
+    }
+
+    /**
+     * cursors an earlier test dropped get killed whenever the gc finds them,
+     * which would throw off this test's counts.  so get that done first
+     */
+    @BeforeMethod
+    public void reapLeftovers()
+        throws InterruptedException {
+        CursorReaper reaper = ((DBApiLayer)_db)._reaper();
+        for ( int i=0; i<100 && _fake.openCursors() > 0; i++ ){
+            System.gc();
+            reaper.flush();
+            Thread.sleep( 10 );
+        }
+    }
+
+    @Test
+    public void testInsertFind(){
+        DBCollection c = _db.getCollection( "insertfind" );
+        c.drop();
+        for ( int i=0; i<250; i++ )
+            c.insert( new BasicDBObject( "x" , i ).append( "s" , "foo" + i ) );
+
+        final int before = _fake.openCursors();
+        assertEquals( 250 , c.find().count() );
+        assertEquals( 250 , c.find().batchSize( 20 ).toArray().size() );
+        assertEquals( before , _fake.openCursors() );
+
+        assertEquals( "foo7" , c.findOne( new BasicDBObject( "x" , 7 ) ).get( "s" ) );
+        assertEquals( 10 , c.find( new BasicDBObject( "x" , new BasicDBObject( "$gte" , 10 ).append( "$lt" , 20 ) ) ).count() );
+        assertEquals( 3 , c.find( new BasicDBObject( "x" , new BasicDBObject( "$in" , Arrays.asList( 1 , 2 , 3 , 1000 ) ) ) ).count() );
+        assertEquals( 11 , c.find( new BasicDBObject( "s" , Pattern.compile( "^foo1.?$" ) ) ).count() );
+
+        DBObject last = c.find().sort( new BasicDBObject( "x" , -1 ) ).limit( 1 ).next();
+        assertEquals( 249 , last.get( "x" ) );
+
+        DBObject partial = c.findOne( new BasicDBObject( "x" , 3 ) , new BasicDBObject( "x" , 1 ) );
+        assertEquals( 3 , partial.get( "x" ) );
+        assertNull( partial.get( "s" ) );
+    }
+
+    @Test
+    public void testLazy(){
+        DBCollection c = _db.getCollection( "lazy" );
+        c.drop();
+        for ( int i=0; i<100; i++ )
+            c.save( new BasicDBObject( "x" , i ).append( "s" , "foo" + i ) );
+
+        int total = 0;
+        for ( DBObject o : c.find().lazy().sort( new BasicDBObject( "x" , 1 ) ).batchSize( 10 ) ){
+            assertTrue( o instanceof LazyDBObject );
+            assertEquals( "foo" + o.get( "x" ) , o.get( "s" ) );
+            total += (Integer)o.get( "x" );
+        }
+        assertEquals( 4950 , total );
+        assertEquals( 100 , c.find().lazy().toArray().size() );
+    }
+
+    @Test
+    public void testUpdateRemove(){
+        DBCollection c = _db.getCollection( "updateremove" );
+        c.drop();
+        for ( int i=0; i<10; i++ )
+            c.insert( new BasicDBObject( "x" , i % 2 ).append( "n" , 0 ) );
+
+        c.update( new BasicDBObject( "x" , 1 ) , new BasicDBObject( "$inc" , new BasicDBObject( "n" , 5 ) ) , false , true );
+        assertEquals( 5 , c.find( new BasicDBObject( "n" , 5 ) ).count() );
+
+        c.update( new BasicDBObject( "x" , 7 ) , new BasicDBObject( "$set" , new BasicDBObject( "n" , 1 ) ) , true , false );
+        assertEquals( 11 , c.find().count() );
+        assertEquals( 1 , c.findOne( new BasicDBObject( "x" , 7 ) ).get( "n" ) );
+
+        c.remove( new BasicDBObject( "x" , 0 ) );
+        assertEquals( 6 , c.find().count() );
+    }
+
+    @Test
+    public void testDuplicateKey(){
+        DBCollection c = _db.getCollection( "dup" );
+        c.drop();
+        c.insert( new BasicDBObject( "_id" , 1 ) );
+
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+        try {
+            c.insert( new BasicDBObject( "_id" , 1 ) );
+            assertTrue( false );
+        }
+        catch ( MongoException.DuplicateKey dk ){
+            // good
+        }
+        assertEquals( 1 , c.find().count() );
+    }
+
+    @Test
+    public void testCollectionNames(){
+        _db.getCollection( "names1" ).insert( new BasicDBObject( "x" , 1 ) );
+        assertTrue( _db.getCollectionNames().contains( "names1" ) );
+        _db.getCollection( "names1" ).drop();
+        assertFalse( _db.getCollectionNames().contains( "names1" ) );
+    }
+
+    @Test
+    public void testLatency(){
+        DBCollection c = _db.getCollection( "latency" );
+        c.drop();
+        _fake.setLatency( 20 );
+        try {
+            long start = System.currentTimeMillis();
+            c.findOne();
+            assertTrue( System.currentTimeMillis() - start >= 20 );
+        }
+        finally {
+            _fake.setLatency( 0 );
+        }
+    }
+
+    @Test
+    public void testCursorReaper()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.cursorReaperInterval = 20;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            DBCollection c = m.getDB( "fake" ).getCollection( "reaper" );
+            c.drop();
+            for ( int i=0; i<50; i++ )
+                c.insert( new BasicDBObject( "x" , i ) );
+
+            CursorReaper reaper = m._connector.getCursorReaper();
+
+            // read to the end, nothing left to kill
+            assertEquals( 50 , c.find().batchSize( 10 ).toArray().size() );
+            assertEquals( 0 , reaper.tracked() );
+
+            final int before = _fake.openCursors();
+
+            // abandon two halfway through
+            for ( int i=0; i<2; i++ ){
+                DBCursor cur = c.find().batchSize( 10 );
+                cur.next();
+            }
+            assertEquals( before + 2 , _fake.openCursors() );
+
+            for ( int i=0; i<100 && ( _fake.openCursors() > before || reaper.killed() < 2 ); i++ ){
+                System.gc();
+                Thread.sleep( 20 );
+            }
+            assertEquals( before , _fake.openCursors() );
+            assertEquals( 0 , reaper.tracked() );
+            assertEquals( 2 , reaper.killed() );
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testPrefetch()
+        throws Exception {
+        DBCollection c = _db.getCollection( "prefetch" );
+        c.drop();
+        for ( int i=0; i<1000; i++ )
+            c.insert( new BasicDBObject( "x" , i ) );
+
+        DBCursor plain = c.find().sort( new BasicDBObject( "x" , 1 ) ).batchSize( 10 );
+        int n = 0;
+        while ( plain.hasNext() )
+            assertEquals( n++ , plain.next().get( "x" ) );
+        assertEquals( 1000 , n );
+        assertEquals( 99 , plain.numGetMores() );
+
+        final int before = _fake.openCursors();
+        _fake.setLatency( 2 );
+        try {
+            DBCursor cur = c.find().sort( new BasicDBObject( "x" , 1 ) ).batchSize( 10 ).prefetch( 2 );
+            n = 0;
+            while ( cur.hasNext() )
+                assertEquals( n++ , cur.next().get( "x" ) );
+            assertEquals( 1000 , n );
+            // reading is much faster than fetching, so batches got bigger
+            assertTrue( cur.numGetMores() < 50 );
+            assertEquals( before , _fake.openCursors() );
+
+            // with a limit the batch size stays put
+            cur = c.find().sort( new BasicDBObject( "x" , 1 ) ).batchSize( 10 ).limit( 95 ).prefetch( 3 );
+            assertEquals( 95 , cur.toArray().size() );
+        }
+        finally {
+            _fake.setLatency( 0 );
+        }
+    }
+
+    @Test
+    public void testParallelScan()
+        throws Exception {
+        DBCollection c = _db.getCollection( "parallel" );
+        c.drop();
+
+        // ids a minute apart, so the split is by time
+        final int now = (int)( System.currentTimeMillis() / 1000 );
+        for ( int i=0; i<200; i++ )
+            c.insert( new BasicDBObject( "_id" , new ObjectId( ObjectId._flip( now - 60 * i ) , 0 , i ) ).append( "x" , i ) );
+        _checkScan( c , new BasicDBObject() , 4 , 200 );
+        _checkScan( c , new BasicDBObject( "x" , new BasicDBObject( "$lt" , 50 ) ) , 3 , 50 );
+
+        // same second, falls back to sampling
+        c.drop();
+        for ( int i=0; i<100; i++ )
+            c.insert( new BasicDBObject( "x" , i ) );
+        _checkScan( c , new BasicDBObject() , 5 , 100 );
+
+        c.drop();
+        for ( int i=0; i<100; i++ )
+            c.insert( new BasicDBObject( "_id" , i ) );
+        _checkScan( c , null , 7 , 100 );
+
+        assertEquals( 1 , c.parallelScan( new BasicDBObject( "_id" , 5 ) , 4 ).size() );
+    }
+
+    @Test
+    public void testClose()
+        throws Exception {
+        DBCollection c = _db.getCollection( "close" );
+        c.drop();
+        for ( int i=0; i<100; i++ )
+            c.insert( new BasicDBObject( "x" , i ) );
+        CursorReaper reaper = ((DBApiLayer)_db)._reaper();
+        final int before = _fake.openCursors();
+
+        DBCursor cur = c.find().batchSize( 10 );
+        for ( int i=0; i<15; i++ )
+            cur.next();
+        assertEquals( before + 1 , _fake.openCursors() );
+        cur.close();
+        assertFalse( cur.hasNext() );
+        reaper.flush();
+        _waitForCursors( before );
+
+        // hitting the limit asks for only what's left, then closes
+        cur = c.find().batchSize( 10 ).limit( 25 );
+        assertEquals( 25 , cur.toArray().size() );
+        assertEquals( Arrays.asList( 10 , 10 , 5 ) , cur.getSizes() );
+        reaper.flush();
+        _waitForCursors( before );
+    }
+
+    @Test
+    public void testAcknowledgedWrites()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.multiplex = true;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            DBCollection c = m.getDB( "fake" ).getCollection( "acked" );
+            c.drop();
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+
+            // write and getlasterror go out together on the shared socket
+            c.insert( new BasicDBObject( "_id" , 1 ) );
+            try {
+                c.insert( new BasicDBObject( "_id" , 1 ) );
+                assertTrue( false );
+            }
+            catch ( MongoException.DuplicateKey dk ){
+                // good
+            }
+
+            // lots in flight before waiting on any of them
+            List<Future<DBObject>> acks = new ArrayList<Future<DBObject>>();
+            for ( int i=2; i<100; i++ )
+                acks.add( c.insertAsync( new BasicDBObject( "_id" , i ) ) );
+            Future<DBObject> dup = c.insertAsync( new BasicDBObject( "_id" , 50 ) );
+
+            for ( Future<DBObject> f : acks )
+                assertNull( f.get().get( "err" ) );
+            try {
+                dup.get();
+                assertTrue( false );
+            }
+            catch ( ExecutionException ee ){
+                assertTrue( ee.getCause() instanceof MongoException.DuplicateKey );
+            }
+            assertEquals( 99 , c.find().count() );
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testAsync()
+        throws Exception {
+        DBCollection c = _db.getCollection( "async" );
+        c.drop();
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+
+        List<Future<DBObject>> inserts = new ArrayList<Future<DBObject>>();
+        for ( int i=0; i<10; i++ )
+            inserts.add( c.insertAsync( new BasicDBObject( "_id" , i ).append( "x" , i % 2 ) ) );
+        for ( Future<DBObject> f : inserts )
+            assertNull( f.get().get( "err" ) );
+
+        Future<Iterator<DBObject>> found = c.findAsync( new BasicDBObject( "x" , 1 ) );
+        int n = 0;
+        for ( Iterator<DBObject> i = found.get(); i.hasNext(); i.next() )
+            n++;
+        assertEquals( 5 , n );
+
+        c.updateAsync( new BasicDBObject( "x" , 1 ) , new BasicDBObject( "$set" , new BasicDBObject( "y" , 1 ) ) , false , true ).get();
+        assertEquals( 5 , c.find( new BasicDBObject( "y" , 1 ) ).count() );
+
+        c.removeAsync( new BasicDBObject( "x" , 0 ) ).get();
+        assertEquals( 5 , c.find().count() );
+
+        try {
+            c.insertAsync( new BasicDBObject( "_id" , 1 ) ).get();
+            assertTrue( false );
+        }
+        catch ( ExecutionException ee ){
+            assertTrue( ee.getCause() instanceof MongoException.DuplicateKey );
+        }
+    }
+
+    /**
+     * a DBCollection from outside the driver, which only has the synchronous calls
+     */
+    static class SyncCollection extends DBCollection {
+        SyncCollection( DBCollection real ){
+            super( real.getDB() , real.getName() );
+            _real = real;
+        }
+
+        public DBObject insert( DBObject doc ){ return _real.insert( doc ); }
+        public DBObject[] insert( DBObject[] arr ){ return _real.insert( arr ); }
+        public List<DBObject> insert( List<DBObject> list ){ return _real.insert( list ); }
+        public DBObject update( DBObject q , DBObject o , boolean upsert , boolean multi ){ return _real.update( q , o , upsert , multi ); }
+        protected void doapply( DBObject o ){}
+        public void remove( DBObject o ){ _real.remove( o ); }
+        public Iterator<DBObject> find( DBObject ref , DBObject fields , int numToSkip , int batchSize ){ return _real.find( ref , fields , numToSkip , batchSize ); }
+        public void ensureIndex( DBObject keys , String name ){ _real.ensureIndex( keys , name ); }
+        public void ensureIndex( DBObject keys , String name , boolean unique ){ _real.ensureIndex( keys , name , unique ); }
+
+        final DBCollection _real;
+    }
+
+    @Test
+    public void testAsyncDefaults()
+        throws Exception {
+        DBCollection real = _db.getCollection( "asyncdefaults" );
+        real.drop();
+        DBCollection c = new SyncCollection( real );
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+
+        Future<DBObject> f = c.insertAsync( new BasicDBObject( "_id" , 1 ).append( "x" , 1 ) , new BasicDBObject( "_id" , 2 ).append( "x" , 2 ) );
+        assertTrue( f.isDone() );
+        assertNull( f.get().get( "err" ) );
+        assertEquals( 2 , real.find().count() );
+
+        c.updateAsync( new BasicDBObject( "_id" , 1 ) , new BasicDBObject( "$set" , new BasicDBObject( "y" , 1 ) ) , false , false ).get();
+        assertEquals( 1 , real.find( new BasicDBObject( "y" , 1 ) ).count() );
+
+        int n = 0;
+        for ( Iterator<DBObject> i = c.findAsync( new BasicDBObject( "x" , 2 ) ).get(); i.hasNext(); i.next() )
+            n++;
+        assertEquals( 1 , n );
+
+        c.removeAsync( new BasicDBObject( "_id" , 2 ) ).get();
+        assertEquals( 1 , real.find().count() );
+
+        try {
+            c.insertAsync( new BasicDBObject( "_id" , 1 ) ).get();
+            assertTrue( false );
+        }
+        catch ( ExecutionException ee ){
+            assertTrue( ee.getCause() instanceof MongoException.DuplicateKey );
+        }
+
+        c.setWriteConcern( DB.WriteConcern.NORMAL );
+        assertNull( c.insertAsync( new BasicDBObject( "_id" , 3 ) ).get() );
+    }
+
+    @Test
+    public void testMongoClose()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.jmx = true;
+        options.multiplex = true;
+        final int before = _fake.connections();
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+
+        DBCollection c = m.getDB( "fake" ).getCollection( "mongoclose" );
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+        c.insertAsync( new BasicDBObject( "x" , 1 ) ).get();
+        c.insert( new BasicDBObject( "x" , 2 ) );
+        assertEquals( 2 , c.find().batchSize( 1 ).toArray().size() );
+        c.getDB().requestStart();
+        c.insert( new BasicDBObject( "x" , 3 ) );
+        c.getDB().requestDone();
+
+        javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        final String pattern = "com.mongodb:type=ConnectionPool,port=" + _fake.getPort() + ",*";
+        assertEquals( 1 , server.queryNames( new javax.management.ObjectName( pattern ) , null ).size() );
+        AsyncDBConnector async = m._connector.getAsync();
+        assertTrue( _fake.connections() > before );
+
+        m.close();
+
+        async._thread.join( 5000 );
+        assertFalse( async._thread.isAlive() );
+        assertEquals( 0 , server.queryNames( new javax.management.ObjectName( pattern ) , null ).size() );
+        // connections left from earlier tests can go away meanwhile, so before is an upper bound
+        for ( int i=0; i<100 && _fake.connections() > before; i++ )
+            Thread.sleep( 10 );
+        assertTrue( _fake.connections() <= before );
+    }
+
+    @Test
+    public void testAsyncClose()
+        throws Exception {
+        Mongo m = new Mongo( "127.0.0.1" , _fake.getPort() );
+        try {
+            DBCollection c = m.getDB( "fake" ).getCollection( "asyncclose" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            c.insertAsync( new BasicDBObject( "x" , 1 ) ).get();
+
+            AsyncDBConnector async = m._connector.getAsync();
+            async.close();
+            async._thread.join( 5000 );
+            assertFalse( async._thread.isAlive() );
+
+            try {
+                c.insertAsync( new BasicDBObject( "x" , 2 ) ).get();
+                assertTrue( false );
+            }
+            catch ( ExecutionException ee ){
+                assertTrue( ee.getCause() instanceof IOException );
+            }
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testAsyncSocketTimeout()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.socketTimeout = 100;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            DBCollection c = m.getDB( "fake" ).getCollection( "asynctimeout" );
+            c.setWriteConcern( DB.WriteConcern.STRICT );
+            c.insertAsync( new BasicDBObject( "x" , 1 ) ).get();
+
+            _fake.setLatency( 1000 );
+            long start = System.currentTimeMillis();
+            try {
+                c.findAsync( new BasicDBObject() ).get();
+                assertTrue( false );
+            }
+            catch ( ExecutionException ee ){
+                assertTrue( ee.getCause() instanceof MongoException.Network );
+            }
+            assertTrue( System.currentTimeMillis() - start < 900 );
+            _fake.setLatency( 0 );
+
+            // the late reply gets dropped, and the connection still works
+            Thread.sleep( 1000 );
+            assertNull( c.insertAsync( new BasicDBObject( "x" , 2 ) ).get( 5 , TimeUnit.SECONDS ).get( "err" ) );
+            Iterator<DBObject> i = c.findAsync( new BasicDBObject( "x" , 2 ) ).get( 5 , TimeUnit.SECONDS );
+            assertEquals( 2 , i.next().get( "x" ) );
+        }
+        finally {
+            _fake.setLatency( 0 );
+            m.close();
+        }
+    }
+
+    @Test
+    public void testAsyncConnectTimeout()
+        throws Exception {
+        // with its backlog full the SYNs get dropped, so connects to it hang
+        java.net.ServerSocket blackhole = new java.net.ServerSocket( 0 , 1 , java.net.InetAddress.getByName( "127.0.0.1" ) );
+        List<java.nio.channels.SocketChannel> filler = new ArrayList<java.nio.channels.SocketChannel>();
+        MongoOptions options = new MongoOptions();
+        options.connectTimeout = 200;
+        Mongo m = null;
+        try {
+            for ( int i=0; i<8; i++ ){
+                java.nio.channels.SocketChannel f = java.nio.channels.SocketChannel.open();
+                f.configureBlocking( false );
+                f.connect( blackhole.getLocalSocketAddress() );
+                filler.add( f );
+            }
+
+            m = new Mongo( new DBAddress( "127.0.0.1" , blackhole.getLocalPort() , "fake" ) , options );
+            DBCollection c = m.getDB( "fake" ).getCollection( "connecttimeout" );
+            long start = System.currentTimeMillis();
+            try {
+                c.findAsync( new BasicDBObject() ).get( 10 , TimeUnit.SECONDS );
+                assertTrue( false );
+            }
+            catch ( ExecutionException ee ){
+                assertTrue( ee.getCause() instanceof MongoException.Network );
+            }
+            assertTrue( System.currentTimeMillis() - start < 5000 );
+        }
+        finally {
+            if ( m != null )
+                m.close();
+            for ( java.nio.channels.SocketChannel f : filler )
+                f.close();
+            blackhole.close();
+        }
+    }
+
+    @Test
+    public void testDecodedObjects()
+        throws Exception {
+        DBCollection c = _db.getCollection( "decoded" );
+        c.drop();
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+        c.insert( new BasicDBObject( "x" , 1 ).append( "l" , 5L ).append( "sub" , new BasicDBObject( "s" , "y" ) ) );
+
+        DBObject o = c.findOne();
+        assertTrue( o instanceof CompactDBObject );
+        assertTrue( o.get( "sub" ) instanceof CompactDBObject );
+        assertEquals( 1 , ((CompactDBObject)o).getInt( "x" ) );
+        assertEquals( 5L , ((CompactDBObject)o).getLong( "l" ) );
+        assertEquals( "y" , ((CompactDBObject)o.get( "sub" )).getString( "s" ) );
+
+        // the driver's own commands don't care what their replies are decoded as
+        assertEquals( 1 , c.find().count() );
+        c.dropIndexes();
+        c.drop();
+        c.drop();
+        assertEquals( 0 , c.find().count() );
+        assertTrue( _db.authenticate( "u" , "p".toCharArray() ) );
+        _db.getSisterDB( "decodeddrop" ).dropDatabase();
+
+        MongoOptions options = new MongoOptions();
+        options.basicDBObjects = true;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            DBCollection b = m.getDB( "fake" ).getCollection( "decoded" );
+            b.setWriteConcern( DB.WriteConcern.STRICT );
+            b.insert( new BasicDBObject( "x" , 2 ).append( "sub" , new BasicDBObject( "s" , "z" ) ) );
+            BasicDBObject found = (BasicDBObject)b.findOne();
+            assertEquals( 2 , found.getInt( "x" ) );
+            assertEquals( "z" , ((BasicDBObject)found.get( "sub" )).getString( "s" ) );
+            assertEquals( 1 , b.find().count() );
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testMultiplexedReadsOwnWrites()
+        throws Exception {
+        MongoOptions options = new MongoOptions();
+        options.multiplex = true;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            DBCollection c = m.getDB( "fake" ).getCollection( "ownwrites" );
+            c.drop();
+            for ( long latency = 0; latency < 2; latency++ ){
+                _fake.setLatency( latency );
+                for ( int i=0; i<300; i++ ){
+                    int x = (int)latency * 1000 + i;
+                    c.insert( new BasicDBObject( "x" , x ) );
+                    assertNotNull( c.findOne( new BasicDBObject( "x" , x ) ) );
+                }
+            }
+        }
+        finally {
+            _fake.setLatency( 0 );
+            m.close();
+        }
+    }
+
+    @Test
+    public void testClearClosesMultiplexed()
+        throws Exception {
+        DBPortPool pool = new DBPortPool( new java.net.InetSocketAddress( "127.0.0.1" , _fake.getPort() ) , new MongoOptions() );
+        final int before = _fake.connections();
+        pool.getMultiplexed().ensureOpen();
+        _waitForConnections( before + 1 );
+
+        pool.clear();
+        _waitForConnections( before );
+    }
+
+    void _waitForConnections( int n )
+        throws InterruptedException {
+        for ( int i=0; i<100 && _fake.connections() != n; i++ )
+            Thread.sleep( 10 );
+        assertEquals( n , _fake.connections() );
+    }
+
+    @Test
+    public void testPreparedQuery(){
+        DBCollection c = _db.getCollection( "prepared" );
+        c.drop();
+        for ( int i=0; i<50; i++ )
+            c.insert( new BasicDBObject( "_id" , i ).append( "x" , i % 5 ).append( "s" , "s" + i ) );
+
+        PreparedQuery byId = c.prepareQuery( new BasicDBObject( "_id" , null ) , null , "_id" );
+        for ( int i=0; i<50; i++ )
+            assertEquals( "s" + i , byId.findOne( i ).get( "s" ) );
+        assertNull( byId.findOne( 1000 ) );
+
+        // params in a different order than the query, constant fields between them, and a projection
+        PreparedQuery q = c.prepareQuery( new BasicDBObject( "x" , 0 ).append( "s" , new BasicDBObject( "$exists" , true ) ).append( "_id" , 0 ) ,
+                                          new BasicDBObject( "s" , 1 ) , "_id" , "x" );
+        DBObject o = q.findOne( 7 , 2 );
+        assertEquals( "s7" , o.get( "s" ) );
+        assertNull( o.get( "x" ) );
+        assertNull( q.findOne( 7 , 3 ) );
+
+        int n = 0;
+        for ( Iterator<DBObject> i = q.find( new BasicDBObject( "$gte" , 40 ) , 1 ); i.hasNext(); i.next() )
+            n++;
+        assertEquals( 2 , n );
+        assertFalse( q.find( 1000 , 1 ).hasNext() );
+
+        // a prepared command
+        PreparedQuery count = _db.getCollection( "$cmd" ).prepareQuery( new BasicDBObject( "count" , "prepared" ).append( "query" , null ) , null , "query" );
+        assertEquals( 10 , ((Number)count.findOne( new BasicDBObject( "x" , 3 ) ).get( "n" )).intValue() );
+
+        try {
+            c.prepareQuery( new BasicDBObject( "x" , 1 ) , null , "y" );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e ){
+            // good
+        }
+    }
+
+    @Test
+    public void testBulk(){
+        DBCollection c = _db.getCollection( "bulk" );
+        c.drop();
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+
+        BulkWriteOperation bulk = c.initializeOrderedBulkOperation();
+        for ( int i=0; i<2500; i++ )
+            bulk.insert( new BasicDBObject( "_id" , i ).append( "x" , i % 10 ) );
+        bulk.update( new BasicDBObject( "x" , 1 ) , new BasicDBObject( "$set" , new BasicDBObject( "y" , 1 ) ) , false , true );
+        bulk.remove( new BasicDBObject( "x" , 2 ) );
+        bulk.insert( new BasicDBObject( "_id" , "last" ) );
+
+        long before = _fake.messages();
+        // 2500 inserts in 3 messages, the update, the remove, and one more insert, each with its getlasterror
+        assertEquals( 6 , bulk.execute() );
+        assertEquals( before + 12 , _fake.messages() );
+        assertEquals( 2251 , c.find().count() );
+        assertEquals( 250 , c.find( new BasicDBObject( "y" , 1 ) ).count() );
+
+        // ordered stops at the first error
+        bulk = c.initializeOrderedBulkOperation();
+        bulk.insert( new BasicDBObject( "_id" , "a" ) );
+        bulk.insert( new BasicDBObject( "_id" , 5 ) );
+        bulk.insert( new BasicDBObject( "_id" , "b" ) );
+        bulk.remove( new BasicDBObject() );
+        try {
+            bulk.execute();
+            assertTrue( false );
+        }
+        catch ( MongoException.DuplicateKey dk ){
+            // good
+        }
+        assertEquals( 2252 , c.find().count() );
+
+        // unordered sends all of it before reading any getlasterror, and still reports the error
+        bulk = c.initializeUnorderedBulkOperation();
+        bulk.update( new BasicDBObject( "_id" , "a" ) , new BasicDBObject( "$set" , new BasicDBObject( "y" , 2 ) ) , false , false );
+        bulk.insert( new BasicDBObject( "_id" , "b" ) );
+        bulk.insert( new BasicDBObject( "_id" , 5 ) );
+        bulk.insert( new BasicDBObject( "_id" , "c" ) );
+        before = _fake.messages();
+        try {
+            bulk.execute();
+            assertTrue( false );
+        }
+        catch ( MongoException.DuplicateKey dk ){
+            // good
+        }
+        assertEquals( before + 4 , _fake.messages() );
+        assertEquals( 2254 , c.find().count() );
+        assertEquals( 2 , c.findOne( new BasicDBObject( "_id" , "a" ) ).get( "y" ) );
+    }
+
+    @Test
+    public void testBulkUnorderedFailingUpdate()
+        throws Exception {
+        _checkFailingUpdate( _db.getCollection( "bulkfail" ) );
+
+        MongoOptions options = new MongoOptions();
+        options.multiplex = true;
+        Mongo m = new Mongo( new DBAddress( "127.0.0.1" , _fake.getPort() , "fake" ) , options );
+        try {
+            _checkFailingUpdate( m.getDB( "fake" ).getCollection( "bulkfailmultiplexed" ) );
+        }
+        finally {
+            m.close();
+        }
+    }
+
+    /** an update in the middle of an unordered operation fails, and an update after it doesn't hide that */
+    void _checkFailingUpdate( DBCollection c ){
+        c.drop();
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+        c.insert( new BasicDBObject( "_id" , 1 ).append( "s" , "foo" ) );
+        c.insert( new BasicDBObject( "_id" , 2 ).append( "n" , 1 ) );
+
+        BulkWriteOperation bulk = c.initializeUnorderedBulkOperation();
+        bulk.insert( new BasicDBObject( "_id" , 3 ) );
+        bulk.update( new BasicDBObject( "_id" , 1 ) , new BasicDBObject( "$inc" , new BasicDBObject( "s" , 1 ) ) , false , false );
+        bulk.update( new BasicDBObject( "_id" , 2 ) , new BasicDBObject( "$inc" , new BasicDBObject( "n" , 1 ) ) , false , false );
+        bulk.remove( new BasicDBObject( "_id" , 3 ) );
+        bulk.insert( new BasicDBObject( "_id" , 4 ) );
+
+        long before = _fake.messages();
+        try {
+            bulk.execute();
+            assertTrue( false );
+        }
+        catch ( MongoException me ){
+            assertTrue( me.getMessage().indexOf( "$inc" ) >= 0 , me.getMessage() );
+        }
+        // five messages, each with its own getlasterror
+        assertEquals( before + 10 , _fake.messages() );
+        assertEquals( "foo" , c.findOne( new BasicDBObject( "_id" , 1 ) ).get( "s" ) );
+        assertEquals( 2 , c.findOne( new BasicDBObject( "_id" , 2 ) ).get( "n" ) );
+        assertNull( c.findOne( new BasicDBObject( "_id" , 3 ) ) );
+        assertNotNull( c.findOne( new BasicDBObject( "_id" , 4 ) ) );
+    }
+
+    @Test
+    public void testBulkSplitsBySize(){
+        DBCollection c = _db.getCollection( "bulksize" );
+        c.drop();
+        c.setWriteConcern( DB.WriteConcern.STRICT );
+
+        StringBuilder buf = new StringBuilder();
+        while ( buf.length() < 1024 * 1024 + 1024 )
+            buf.append( "0123456789abcdef" );
+
+        BulkWriteOperation bulk = c.initializeUnorderedBulkOperation();
+        for ( int i=0; i<10; i++ )
+            bulk.insert( new BasicDBObject( "_id" , i ).append( "s" , buf.toString() ) );
+        // three documents just over 1mb fit in a message, four don't
+        assertEquals( 4 , bulk.execute() );
+        assertEquals( 10 , c.find().count() );
+    }
+
+    /** kill cursors doesn't get a reply, so give the server a moment */
+    void _waitForCursors( int n )
+        throws InterruptedException {
+        for ( int i=0; i<100 && _fake.openCursors() != n; i++ )
+            Thread.sleep( 10 );
+        assertEquals( n , _fake.openCursors() );
+    }
+
+    void _checkScan( DBCollection c , DBObject query , int partitions , int total ){
+        List<DBCursor> cursors = c.parallelScan( query , partitions );
+        assertEquals( partitions , cursors.size() );
+
+        Set<Object> seen = new HashSet<Object>();
+        for ( DBCursor cur : cursors ){
+            int n = 0;
+            while ( cur.hasNext() ){
+                assertTrue( seen.add( cur.next().get( "_id" ) ) );
+                n++;
+            }
+            assertTrue( n > 0 );
+        }
+        assertEquals( total , seen.size() );
+    }
+
+    final FakeMongod _fake;
+    final DB _db;
+}
@@ -18,6 +18,8 @@
 
 package com.mongodb;
 
+import java.util.*;
+
 import org.testng.annotations.Test;
 
 import com.mongodb.util.*;
@@ -78,6 +80,48 @@ public class ObjectIdTest extends TestCase {
         assertNotEquals( a , b );
     }
 
+    @Test
+    public void testGenerate(){
+        ObjectId before = new ObjectId();
+        ObjectId[] ids = ObjectId.generate( 1000 );
+        assertEquals( 1000 , ids.length );
+        assertEquals( 0 , ObjectId.generate( 0 ).length );
+
+        for ( int i=1; i<ids.length; i++ ){
+            assertEquals( ids[i-1].getTime() , ids[i].getTime() );
+            assertEquals( ids[i-1].getInc() + 1 , ids[i].getInc() );
+        }
+        assertEquals( before.getInc() + 1 , ids[0].getInc() );
+        assertEquals( ids[999].getInc() + 1 , new ObjectId().getInc() );
+    }
+
+    @Test
+    public void testConcurrentUnique()
+        throws InterruptedException {
+        final Set<ObjectId> all = java.util.Collections.synchronizedSet( new HashSet<ObjectId>() );
+        Thread[] threads = new Thread[8];
+        for ( int i=0; i<threads.length; i++ ){
+            final boolean block = i % 2 == 0;
+            threads[i] = new Thread(){
+                    public void run(){
+                        List<ObjectId> mine = new ArrayList<ObjectId>();
+                        for ( int j=0; j<100; j++ ){
+                            if ( block )
+                                mine.addAll( Arrays.asList( ObjectId.generate( 100 ) ) );
+                            else
+                                for ( int k=0; k<100; k++ )
+                                    mine.add( new ObjectId() );
+                        }
+                        all.addAll( mine );
+                    }
+                };
+            threads[i].start();
+        }
+        for ( Thread t : threads )
+            t.join();
+        assertEquals( 8 * 100 * 100 , all.size() );
+    }
+
     public static void main( String args[] )
         throws Exception {
         (new ObjectIdTest()).runConsole();
@@ -109,6 +109,70 @@ public class ReflectionTest extends TestCase {
         assertEquals( 17 , o.getInner().getNumber() );
     }
 
+    // not public, so its getters and setters only work once they're made accessible
+    static class Hidden extends ReflectionDBObject {
+        public int getCount(){ return _count; }
+        public void setCount( int count ){
+            if ( count < 0 )
+                throw new IllegalStateException( "negative" );
+            _count = count;
+        }
+
+        int _count;
+    }
+
+    @Test
+    public void test3()
+        throws MongoException {
+        DBCollection c = _db.getCollection( "hidden" );
+        c.drop();
+        c.setObjectClass( Hidden.class );
+
+        Hidden h = new Hidden();
+        h.setCount( 5 );
+        c.save( h );
+
+        DBObject out = c.findOne();
+        assertTrue( out instanceof Hidden , "didn't come out as Hidden" );
+        assertEquals( 5 , ((Hidden)out).getCount() );
+        assertEquals( h.get_id() , out.get( "_id" ) );
+
+        try {
+            out.put( "Count" , -1 );
+            assertTrue( false );
+        }
+        catch ( IllegalStateException e ){
+            // what the setter threw, not wrapped
+        }
+    }
+
+    public static class NoDefault extends BasicDBObject {
+        public NoDefault( int x ){
+            put( "x" , x );
+        }
+    }
+
+    @Test
+    public void testNeedsNoArgConstructor(){
+        DBCollection c = _db.getCollection( "nodefault" );
+        try {
+            c.setObjectClass( NoDefault.class );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e ){
+            // good
+        }
+        assertNull( c.getObjectClass() );
+
+        try {
+            c.setInternalClass( "a" , NoDefault.class );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e ){
+            // good
+        }
+    }
+
     final DB _db;
     
     public static void main( String args[] )
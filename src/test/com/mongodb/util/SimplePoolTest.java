@@ -104,6 +104,141 @@ public class SimplePoolTest extends com.mongodb.util.TestCase {
 	assertEquals( 2 , (int)p.get( 1 ) );
     }
     
+    class MyAffinePool extends ThreadAffinePool<Object> {
+
+	MyAffinePool( int maxToKeep , int maxTotal ){
+	    super( "blah" , maxToKeep , maxTotal );
+	}
+
+	public Object createNew(){
+	    return new Object();
+	}
+    }
+
+    @org.testng.annotations.Test
+    public void testThreadAffine()
+        throws InterruptedException {
+	final MyAffinePool p = new MyAffinePool( 10 , 1 );
+
+	final Object a = p.get();
+	assertEquals( 1 , p.total() );
+	p.done( a );
+	assertEquals( 0 , p.inUse() );
+	assertTrue( a == p.get() );
+
+	// the cached one still counts, so nesting hits the limit
+	assertNull( p.get( 0 ) );
+	p.done( a );
+
+	// another thread takes it out of our slot rather than going over
+	final Object[] got = new Object[1];
+	Thread t = new Thread(){
+		public void run(){
+		    got[0] = p.get( 0 );
+		}
+	    };
+	t.start();
+	t.join();
+	assertTrue( a == got[0] );
+	assertEquals( 1 , p.total() );
+	assertEquals( 1 , p.everCreated() );
+    }
+
+    @org.testng.annotations.Test
+    public void testThreadAffineWaiter()
+        throws InterruptedException {
+	final MyAffinePool p = new MyAffinePool( 10 , 1 );
+	final Object a = p.get();
+	final Object[] got = new Object[1];
+
+	Thread t = new Thread(){
+		public void run(){
+		    got[0] = p.get();
+		}
+	    };
+	t.start();
+	Thread.sleep( 100 );
+	assertNull( got[0] );
+
+	p.done( a );
+	t.join( 5000 );
+	assertTrue( a == got[0] );
+    }
+
+    @org.testng.annotations.Test
+    public void testThreadAffineManyThreads()
+        throws InterruptedException {
+	final int owners = 8;
+	final int threads = owners * 4;
+	final int rounds = 200;
+	// no limit on the total, so nobody waits and the owners keep their slots to themselves
+	final MyAffinePool p = new MyAffinePool( owners , 0 );
+	final int[] hits = new int[threads];
+	final int[] owned = new int[1];
+	// every thread gets, then every thread gives back, so they're all in the pool at once however they're scheduled
+	final java.util.concurrent.CyclicBarrier step = new java.util.concurrent.CyclicBarrier( threads , new Runnable(){
+		public void run(){
+		    owned[0] = Math.max( owned[0] , p.owners() );
+		}
+	    } );
+
+	Thread[] all = new Thread[threads];
+	for ( int i=0; i<threads; i++ ){
+	    final int me = i;
+	    all[i] = new Thread(){
+		    public void run(){
+			try {
+			    Object last = null;
+			    for ( int j=0; j<rounds; j++ ){
+				Object o = p.get();
+				if ( o == last )
+				    hits[me]++;
+				step.await();
+				p.done( o );
+				last = o;
+				step.await();
+			    }
+			}
+			catch ( Exception e ){
+			    throw new RuntimeException( e );
+			}
+		    }
+		};
+	    all[i].start();
+	}
+	for ( Thread t : all )
+	    t.join();
+
+	assertEquals( owners , owned[0] );
+	// every owner got its own object back every time after the first
+	int perfect = 0;
+	for ( int h : hits )
+	    if ( h == rounds - 1 )
+		perfect++;
+	assertEquals( owners , perfect );
+    }
+
+    @org.testng.annotations.Test
+    public void testThreadAffineDeadOwner()
+        throws InterruptedException {
+	final MyAffinePool p = new MyAffinePool( 1 , 10 );
+	Thread t = new Thread(){
+		public void run(){
+		    p.done( p.get() );
+		}
+	    };
+	t.start();
+	t.join();
+	assertEquals( 1 , p.owners() );
+
+	// asking enough times takes the dead thread's slot, and what was in it goes back to the pool
+	for ( int i=0; i<=ThreadAffinePool.PRUNE_EVERY; i++ )
+	    p.done( p.get() );
+	assertEquals( 1 , p.owners() );
+	p.get();
+	p.get();
+	assertEquals( 2 , p.everCreated() );
+    }
 
     public static void main( String args[] ){
 	SimplePoolTest t = new SimplePoolTest();